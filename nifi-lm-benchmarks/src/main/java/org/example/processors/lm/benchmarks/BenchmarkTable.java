@@ -0,0 +1,185 @@
+package org.example.processors.lm.benchmarks;
+
+import com.nhl.dflib.jdbc.Jdbc;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.example.processors.lm.util.DBCPServiceDataSource;
+
+import java.sql.Connection;
+import java.sql.Date;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * A benchmark target table in an embedded H2 DB, and a generator of records to save to it. The table has a BIGINT
+ * "ID" primary key, followed by columns of the types cycling through VARCHAR, BIGINT, INTEGER, DATE and TIMESTAMP.
+ * A copy of the table data is kept in a "baseline" table, so that the target can be reset between invocations.
+ */
+public class BenchmarkTable {
+
+    public static final String TABLE = "BENCH_TABLE";
+    private static final String BASELINE_TABLE = "BENCH_TABLE_BASELINE";
+
+    private static final String[] SQL_TYPES = {"VARCHAR(100)", "BIGINT", "INTEGER", "DATE", "TIMESTAMP"};
+    private static final RecordFieldType[] RECORD_TYPES = {
+            RecordFieldType.STRING,
+            RecordFieldType.LONG,
+            RecordFieldType.INT,
+            RecordFieldType.DATE,
+            RecordFieldType.TIMESTAMP
+    };
+
+    private static final LocalDate START_DATE = LocalDate.of(2020, 1, 1);
+    private static final LocalDateTime START_TIME = START_DATE.atStartOfDay();
+
+    private final int columns;
+    private final H2ConnectionPool pool;
+    private final RecordSchema schema;
+
+    /**
+     * @param dbName  a name of the in-memory DB
+     * @param columns the total number of columns, including the ID. Must be at least 2
+     */
+    public BenchmarkTable(String dbName, int columns) {
+
+        if (columns < 2) {
+            throw new IllegalArgumentException("At least 2 columns required: " + columns);
+        }
+
+        this.columns = columns;
+        this.pool = new H2ConnectionPool("jdbc:h2:mem:" + dbName + ";DB_CLOSE_DELAY=-1");
+
+        List<RecordField> fields = new ArrayList<>(columns);
+        fields.add(new RecordField("ID", RecordFieldType.LONG.getDataType(), false));
+        for (int c = 1; c < columns; c++) {
+            fields.add(new RecordField(column(c), RECORD_TYPES[(c - 1) % RECORD_TYPES.length].getDataType()));
+        }
+
+        this.schema = new SimpleRecordSchema(fields);
+    }
+
+    private static String column(int c) {
+        return "C" + c;
+    }
+
+    public DBCPService getPool() {
+        return pool;
+    }
+
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    public DbTableMetadata getTableMetadata() {
+        return Jdbc.connector(new DBCPServiceDataSource(pool)).getMetadata().getTable(TABLE);
+    }
+
+    /**
+     * (Re)creates the target and baseline tables, filling the baseline with the given number of rows.
+     */
+    public void create(int baselineRows) throws SQLException {
+
+        StringBuilder ddl = new StringBuilder(" (ID BIGINT PRIMARY KEY");
+        for (int c = 1; c < columns; c++) {
+            ddl.append(", ").append(column(c)).append(" ").append(SQL_TYPES[(c - 1) % SQL_TYPES.length]);
+        }
+        ddl.append(")");
+
+        try (Connection connection = pool.getConnection(); Statement st = connection.createStatement()) {
+            st.executeUpdate("DROP TABLE IF EXISTS " + TABLE);
+            st.executeUpdate("DROP TABLE IF EXISTS " + BASELINE_TABLE);
+            st.executeUpdate("CREATE TABLE " + TABLE + ddl);
+            st.executeUpdate("CREATE TABLE " + BASELINE_TABLE + ddl);
+        }
+
+        StringBuilder insert = new StringBuilder("INSERT INTO " + BASELINE_TABLE + " VALUES (?");
+        for (int c = 1; c < columns; c++) {
+            insert.append(", ?");
+        }
+        insert.append(")");
+
+        try (Connection connection = pool.getConnection();
+             PreparedStatement st = connection.prepareStatement(insert.toString())) {
+
+            for (int i = 0; i < baselineRows; i++) {
+                st.setLong(1, i);
+                for (int c = 1; c < columns; c++) {
+                    st.setObject(c + 1, value(i, c, false));
+                }
+
+                st.addBatch();
+                if (i % 1000 == 999) {
+                    st.executeBatch();
+                }
+            }
+
+            st.executeBatch();
+        }
+
+        reset();
+    }
+
+    /**
+     * Restores the target table to the baseline state.
+     */
+    public void reset() throws SQLException {
+        try (Connection connection = pool.getConnection(); Statement st = connection.createStatement()) {
+            st.executeUpdate("DELETE FROM " + TABLE);
+            st.executeUpdate("INSERT INTO " + TABLE + " SELECT * FROM " + BASELINE_TABLE);
+        }
+    }
+
+    /**
+     * Generates records with IDs from 0 to "rows - 1". Rows that exist in the baseline are either identical to it,
+     * or, for the "changeRatio" share of the rows, have a changed "C1" column.
+     */
+    public List<Record> records(int rows, double changeRatio) {
+
+        // spread the changed rows evenly
+        int changeEvery = changeRatio > 0 ? Math.max(1, (int) Math.round(1 / changeRatio)) : 0;
+
+        List<Record> records = new ArrayList<>(rows);
+        for (int i = 0; i < rows; i++) {
+            boolean changed = changeEvery > 0 && i % changeEvery == 0;
+
+            Map<String, Object> values = new HashMap<>((int) (columns / 0.75) + 1);
+            values.put("ID", (long) i);
+            for (int c = 1; c < columns; c++) {
+                values.put(column(c), value(i, c, changed));
+            }
+
+            records.add(new MapRecord(schema, values));
+        }
+
+        return records;
+    }
+
+    private static Object value(int row, int column, boolean changed) {
+        switch ((column - 1) % SQL_TYPES.length) {
+            case 0:
+                return (changed && column == 1 ? "changed_" : "v") + row + "_" + column;
+            case 1:
+                return (long) row * column;
+            case 2:
+                return row + column;
+            case 3:
+                return Date.valueOf(START_DATE.plusDays(row % 1000));
+            default:
+                return Timestamp.valueOf(START_TIME.plusSeconds(row));
+        }
+    }
+}
@@ -0,0 +1,54 @@
+package org.example.processors.lm.benchmarks;
+
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.MockComponentLog;
+import org.example.processors.lm.util.ConvertableRecordField;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures per-record conversion of all fields of a record to the target column types.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ConvertableRecordFieldBenchmark {
+
+    private static final int ROWS = 1000;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    private ConvertableRecordField[] fields;
+    private List<Record> records;
+
+    @Setup
+    public void setUp() throws SQLException {
+        BenchmarkTable table = new BenchmarkTable("convert_field_" + columns, columns);
+        table.create(0);
+
+        fields = ConvertableRecordField.createFieldConverters(
+                table.getSchema(),
+                table.getTableMetadata(),
+                new MockComponentLog("benchmark", this));
+
+        records = table.records(ROWS, 0);
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(ROWS)
+    public void convert(Blackhole bh) {
+        for (Record r : records) {
+            for (ConvertableRecordField f : fields) {
+                bh.consume(f.convert(r));
+            }
+        }
+    }
+}
@@ -0,0 +1,31 @@
+package org.example.processors.lm.benchmarks;
+
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.SQLException;
+
+/**
+ * A DBCPService over an embedded H2 database, opening a new connection on every call. Connections to an in-memory
+ * H2 DB are cheap, so there's no need for a real pool.
+ */
+public class H2ConnectionPool extends AbstractControllerService implements DBCPService {
+
+    private final String url;
+
+    public H2ConnectionPool(String url) {
+        this.url = url;
+    }
+
+    @Override
+    public Connection getConnection() throws ProcessException {
+        try {
+            return DriverManager.getConnection(url);
+        } catch (SQLException e) {
+            throw new ProcessException("Failed to connect to " + url, e);
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package org.example.processors.lm.benchmarks;
+
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.util.List;
+
+/**
+ * A RecordReader over in-memory records, so that benchmarks don't measure record parsing.
+ */
+public class ListRecordReader implements RecordReader {
+
+    private final RecordSchema schema;
+    private final List<Record> records;
+    private int next;
+
+    public ListRecordReader(RecordSchema schema, List<Record> records) {
+        this.schema = schema;
+        this.records = records;
+    }
+
+    @Override
+    public Record nextRecord(boolean coerceTypes, boolean dropUnknownFields) {
+        return next < records.size() ? records.get(next++) : null;
+    }
+
+    @Override
+    public RecordSchema getSchema() {
+        return schema;
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+}
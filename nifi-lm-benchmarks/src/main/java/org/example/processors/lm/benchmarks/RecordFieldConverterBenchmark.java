@@ -0,0 +1,90 @@
+package org.example.processors.lm.benchmarks;
+
+import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
+import org.example.processors.lm.util.RecordFieldConverter;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.sql.Date;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares direct conversion of typed record values with the String round trip it replaced.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordFieldConverterBenchmark {
+
+    private static final int VALUES = 1024;
+
+    @Param({"long", "int", "date", "timestamp"})
+    public String type;
+
+    private RecordFieldConverter converter;
+    private DataType dataType;
+    private Object[] values;
+
+    @Setup
+    public void setUp() {
+
+        values = new Object[VALUES];
+
+        switch (type) {
+            case "long":
+                converter = RecordFieldConverter.converter(Long.class);
+                dataType = RecordFieldType.LONG.getDataType();
+                for (int i = 0; i < VALUES; i++) {
+                    values[i] = 1_000_000_000L * i;
+                }
+                break;
+            case "int":
+                converter = RecordFieldConverter.converter(Integer.class);
+                dataType = RecordFieldType.INT.getDataType();
+                for (int i = 0; i < VALUES; i++) {
+                    values[i] = i * 1000;
+                }
+                break;
+            case "date":
+                converter = RecordFieldConverter.converter(LocalDate.class);
+                dataType = RecordFieldType.DATE.getDataType();
+                for (int i = 0; i < VALUES; i++) {
+                    values[i] = Date.valueOf(LocalDate.of(2020, 1, 1).plusDays(i));
+                }
+                break;
+            case "timestamp":
+                converter = RecordFieldConverter.converter(LocalDateTime.class);
+                dataType = RecordFieldType.TIMESTAMP.getDataType();
+                for (int i = 0; i < VALUES; i++) {
+                    values[i] = Timestamp.valueOf(LocalDateTime.of(2020, 1, 1, 0, 0).plusSeconds(i));
+                }
+                break;
+            default:
+                throw new IllegalArgumentException("Unknown type: " + type);
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void convertValue(Blackhole bh) {
+        for (Object v : values) {
+            bh.consume(converter.convertValue(dataType, v));
+        }
+    }
+
+    @Benchmark
+    @OperationsPerInvocation(VALUES)
+    public void convertViaString(Blackhole bh) {
+        for (Object v : values) {
+            bh.consume(converter.convert(dataType, DataTypeUtils.toString(v, dataType.getFormat())));
+        }
+    }
+}
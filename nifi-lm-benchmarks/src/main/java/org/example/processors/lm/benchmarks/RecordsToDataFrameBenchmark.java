@@ -0,0 +1,53 @@
+package org.example.processors.lm.benchmarks;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.MockComponentLog;
+import org.example.processors.lm.util.RecordsToDataFrameConverter;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures conversion of a record set to a DataFrame, including the conversion plan setup.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RecordsToDataFrameBenchmark {
+
+    @Param({"1000", "100000"})
+    public int rows;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    private BenchmarkTable table;
+    private DbTableMetadata tableMetadata;
+    private List<Record> records;
+    private MockComponentLog logger;
+
+    @Setup
+    public void setUp() throws SQLException {
+        table = new BenchmarkTable("to_df_" + columns, columns);
+        table.create(0);
+
+        tableMetadata = table.getTableMetadata();
+        records = table.records(rows, 0);
+        logger = new MockComponentLog("benchmark", this);
+    }
+
+    @Benchmark
+    public DataFrame toDataFrame() throws IOException, MalformedRecordException {
+        return new RecordsToDataFrameConverter(logger)
+                .toDataFrame(new ListRecordReader(table.getSchema(), records), tableMetadata);
+    }
+}
@@ -0,0 +1,67 @@
+package org.example.processors.lm.benchmarks;
+
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.util.MockComponentLog;
+import org.example.processors.lm.util.UpsertBuilder;
+import org.example.processors.lm.util.UpsertStats;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures an end-to-end upsert of a record set to an embedded DB table, already containing all the record keys.
+ * "changeRatio" is the share of the records that differ from the table rows. The table is restored before each
+ * invocation.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class UpsertBenchmark {
+
+    @Param({"1000", "10000"})
+    public int rows;
+
+    @Param({"5", "20"})
+    public int columns;
+
+    @Param({"0", "0.1", "1"})
+    public double changeRatio;
+
+    @Param({"pk", "native_pk"})
+    public String matchStrategy;
+
+    private BenchmarkTable table;
+    private List<Record> records;
+    private UpsertBuilder upserter;
+
+    @Setup(Level.Trial)
+    public void setUp() throws SQLException {
+        table = new BenchmarkTable("upsert_" + columns, columns);
+        table.create(rows);
+        records = table.records(rows, changeRatio);
+
+        upserter = UpsertBuilder
+                .create(new MockComponentLog("benchmark", this))
+                .db(table.getPool())
+                .matchStrategy(matchStrategy)
+                .targetTable(BenchmarkTable.TABLE);
+    }
+
+    // the upsert changes the table, so it has to be restored for each invocation to measure the same work
+    @Setup(Level.Invocation)
+    public void resetTable() throws SQLException {
+        table.reset();
+    }
+
+    @Benchmark
+    public UpsertStats upsert() throws IOException, MalformedRecordException {
+        return upserter.upsert(new ListRecordReader(table.getSchema(), records));
+    }
+}
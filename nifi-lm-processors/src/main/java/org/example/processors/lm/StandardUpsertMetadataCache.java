@@ -0,0 +1,190 @@
+package org.example.processors.lm;
+
+import com.nhl.dflib.jdbc.Jdbc;
+import com.nhl.dflib.jdbc.connector.JdbcConnector;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.apache.nifi.annotation.documentation.CapabilityDescription;
+import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnDisabled;
+import org.apache.nifi.annotation.lifecycle.OnEnabled;
+import org.apache.nifi.components.PropertyDescriptor;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.controller.ConfigurationContext;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.util.StandardValidators;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.example.processors.lm.util.ConvertableRecordField;
+import org.example.processors.lm.util.DBCPServiceDataSource;
+
+import java.util.Collections;
+import java.util.List;
+import java.util.Objects;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+@Tags({"etl", "sql", "link-move", "cache"})
+@CapabilityDescription("Caches target table metadata and record conversion plans used by UpsertSQL. Entries expire " +
+        "after a configurable time-to-live. Disabling the service clears the cache.")
+public class StandardUpsertMetadataCache extends AbstractControllerService implements UpsertMetadataCache {
+
+    public static final PropertyDescriptor TTL_PROPERTY = new PropertyDescriptor.Builder()
+            .name("cache-ttl")
+            .displayName("Cache entry TTL")
+            .description("How long cached metadata is considered valid. After this time the metadata is reloaded " +
+                    "from the database, picking up any changes to the target tables")
+            .required(true)
+            .defaultValue("10 min")
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    private final ConcurrentMap<String, Entry<JdbcConnector>> connectors = new ConcurrentHashMap<>();
+    private final ConcurrentMap<TableKey, Entry<DbTableMetadata>> tables = new ConcurrentHashMap<>();
+    private final ConcurrentMap<ConvertersKey, Entry<ConvertableRecordField[]>> converters = new ConcurrentHashMap<>();
+
+    private volatile long ttlMs;
+
+    @Override
+    protected List<PropertyDescriptor> getSupportedPropertyDescriptors() {
+        return Collections.singletonList(TTL_PROPERTY);
+    }
+
+    @OnEnabled
+    public void onEnabled(ConfigurationContext context) {
+        this.ttlMs = context.getProperty(TTL_PROPERTY).asTimePeriod(TimeUnit.MILLISECONDS);
+    }
+
+    @OnDisabled
+    public void onDisabled() {
+        invalidate();
+    }
+
+    @Override
+    public JdbcConnector getConnector(DBCPService db) {
+        return get(connectors, db.getIdentifier(), () -> Jdbc.connector(new DBCPServiceDataSource(db)));
+    }
+
+    @Override
+    public DbTableMetadata getTableMetadata(DBCPService db, String tableName) {
+        // the shared connector caches its own metadata forever, so a reload goes through a fresh one
+        return get(
+                tables,
+                new TableKey(db.getIdentifier(), tableName),
+                () -> Jdbc.connector(new DBCPServiceDataSource(db)).getMetadata().getTable(tableName));
+    }
+
+    @Override
+    public ConvertableRecordField[] getFieldConverters(
+            DBCPService db,
+            String tableName,
+            RecordSchema schema,
+            ComponentLog logger) {
+
+        return get(
+                converters,
+                new ConvertersKey(db.getIdentifier(), tableName, schema),
+                () -> ConvertableRecordField.createFieldConverters(schema, getTableMetadata(db, tableName), logger));
+    }
+
+    @Override
+    public void invalidate(DBCPService db, String tableName) {
+
+        TableKey key = new TableKey(db.getIdentifier(), tableName);
+        tables.remove(key);
+        converters.keySet().removeIf(k -> k.table.equals(key));
+    }
+
+    @Override
+    public void invalidate() {
+        connectors.clear();
+        tables.clear();
+        converters.clear();
+    }
+
+    private <K, V> V get(ConcurrentMap<K, Entry<V>> cache, K key, Supplier<V> loader) {
+        long now = System.currentTimeMillis();
+
+        Entry<V> e = cache.get(key);
+        if (e == null || e.expiresAt < now) {
+
+            // concurrent loads of the same key are possible, but harmless
+            e = new Entry<>(loader.get(), now + ttlMs);
+
+            // entries of e.g. the schemas that are no longer used are never read again, so are dropped here
+            cache.values().removeIf(old -> old.expiresAt < now);
+            cache.put(key, e);
+        }
+
+        return e.value;
+    }
+
+    private static class Entry<V> {
+        final V value;
+        final long expiresAt;
+
+        Entry(V value, long expiresAt) {
+            this.value = value;
+            this.expiresAt = expiresAt;
+        }
+    }
+
+    private static class TableKey {
+        final String dbId;
+        final String table;
+
+        TableKey(String dbId, String table) {
+            this.dbId = dbId;
+            this.table = table;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof TableKey)) {
+                return false;
+            }
+
+            TableKey that = (TableKey) o;
+            return dbId.equals(that.dbId) && table.equals(that.table);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(dbId, table);
+        }
+    }
+
+    private static class ConvertersKey {
+        final TableKey table;
+        final RecordSchema schema;
+
+        ConvertersKey(String dbId, String table, RecordSchema schema) {
+            this.table = new TableKey(dbId, table);
+            this.schema = schema;
+        }
+
+        @Override
+        public boolean equals(Object o) {
+            if (this == o) {
+                return true;
+            }
+
+            if (!(o instanceof ConvertersKey)) {
+                return false;
+            }
+
+            ConvertersKey that = (ConvertersKey) o;
+            return table.equals(that.table) && schema.equals(that.schema);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hash(table, schema);
+        }
+    }
+}
@@ -0,0 +1,39 @@
+package org.example.processors.lm;
+
+import com.nhl.dflib.jdbc.connector.JdbcConnector;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.apache.nifi.controller.ControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.example.processors.lm.util.ConvertableRecordField;
+
+/**
+ * A controller service that caches target DB metadata and record conversion plans, so that they can be shared between
+ * {@link UpsertSQL} invocations and processor instances.
+ */
+public interface UpsertMetadataCache extends ControllerService {
+
+    JdbcConnector getConnector(DBCPService db);
+
+    DbTableMetadata getTableMetadata(DBCPService db, String tableName);
+
+    /**
+     * Returns a conversion plan for the records of a given schema saved to a given table.
+     */
+    ConvertableRecordField[] getFieldConverters(
+            DBCPService db,
+            String tableName,
+            RecordSchema schema,
+            ComponentLog logger);
+
+    /**
+     * Removes all cached data for a given table, forcing a reload on the next access. The DB connector is kept.
+     */
+    void invalidate(DBCPService db, String tableName);
+
+    /**
+     * Removes all cached data.
+     */
+    void invalidate();
+}
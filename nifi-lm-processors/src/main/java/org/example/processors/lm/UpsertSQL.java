@@ -19,30 +19,107 @@ package org.example.processors.lm;
 import org.apache.nifi.annotation.behavior.*;
 import org.apache.nifi.annotation.documentation.CapabilityDescription;
 import org.apache.nifi.annotation.documentation.Tags;
+import org.apache.nifi.annotation.lifecycle.OnScheduled;
+import org.apache.nifi.annotation.lifecycle.OnStopped;
 import org.apache.nifi.components.PropertyDescriptor;
 import org.apache.nifi.components.ValidationContext;
 import org.apache.nifi.components.ValidationResult;
 import org.apache.nifi.components.Validator;
+import org.apache.nifi.components.state.Scope;
+import org.apache.nifi.components.state.StateManager;
+import org.apache.nifi.components.state.StateMap;
 import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.expression.ExpressionLanguageScope;
 import org.apache.nifi.flowfile.FlowFile;
+import org.apache.nifi.flowfile.attributes.CoreAttributes;
 import org.apache.nifi.processor.*;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.processor.util.StandardValidators;
-import org.apache.nifi.serialization.RecordReader;
-import org.apache.nifi.serialization.RecordReaderFactory;
-import org.example.processors.lm.util.MatchStrategy;
-import org.example.processors.lm.util.UpsertBuilder;
+import org.apache.nifi.record.path.FieldValue;
+import org.apache.nifi.record.path.RecordPath;
+import org.apache.nifi.record.path.validation.RecordPathValidator;
+import org.apache.nifi.schema.access.SchemaNotFoundException;
+import org.apache.nifi.serialization.*;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.example.processors.lm.util.*;
 
+import java.io.IOException;
 import java.io.InputStream;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.SQLException;
 import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import static java.util.Arrays.asList;
 
 @InputRequirement(InputRequirement.Requirement.INPUT_REQUIRED)
+@WritesAttributes({
+        @WritesAttribute(attribute = UpsertSQL.INSERTED_ATTRIBUTE, description = "The number of inserted records"),
+        @WritesAttribute(attribute = UpsertSQL.UPDATED_ATTRIBUTE, description = "The number of updated records"),
+        @WritesAttribute(attribute = UpsertSQL.SKIPPED_ATTRIBUTE, description = "The number of unchanged records"),
+        @WritesAttribute(attribute = UpsertSQL.UPSERTED_ATTRIBUTE, description = "The number of records that " +
+                "were either inserted or updated, when the exact operation is not known. Only reported by the " +
+                "'native_*' matching strategies"),
+        @WritesAttribute(attribute = UpsertSQL.COLLAPSED_ATTRIBUTE, description = "The number of records that " +
+                "were not saved, as they were superseded by other records with the same key, according to " +
+                "'Duplicate key policy'"),
+        @WritesAttribute(attribute = UpsertSQL.DELETED_ATTRIBUTE, description = "The number of target rows " +
+                "deleted because they were missing from the source snapshot. Only reported by the 'full_sync' " +
+                "matching strategy. All FlowFiles of a snapshot report the same total number"),
+        @WritesAttribute(attribute = "upsert.time.read.ms", description = "Milliseconds spent reading and converting " +
+                "records"),
+        @WritesAttribute(attribute = "upsert.time.lock.ms", description = "Milliseconds spent waiting for key " +
+                "locks, if 'Key lock stripes' is set"),
+        @WritesAttribute(attribute = "upsert.time.match.ms", description = "Milliseconds spent fetching the " +
+                "matching target rows"),
+        @WritesAttribute(attribute = "upsert.time.diff.ms", description = "Milliseconds spent comparing records " +
+                "with the target rows"),
+        @WritesAttribute(attribute = "upsert.time.delete.ms", description = "Milliseconds spent deleting target " +
+                "rows missing from the source snapshot, if the matching strategy is 'full_sync'"),
+        @WritesAttribute(attribute = "upsert.time.write.ms", description = "Milliseconds spent writing to the " +
+                "target table. For records saved together with other FlowFiles, times are a share of the total " +
+                "proportional to the number of records"),
+        @WritesAttribute(attribute = UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, description = "For a FlowFile routed to " +
+                "failure, the number of its leading records that were committed before the failure"),
+        @WritesAttribute(attribute = UpsertSQL.RECOVERY_ATTRIBUTE, description = "For a FlowFile routed to failure, " +
+                "'restart' if none of its records were committed, or if it is a 'full_sync' snapshot that must be " +
+                "saved as a whole. 'resume' if its leading records were committed, or if some records of the " +
+                "failed chunk may have been, as it was saved in parallel partitions or committed every 'Commit " +
+                "interval' records. Saving such a FlowFile again is " +
+                "safe, as the committed records are matched as unchanged, except for the 'insert_only' strategy, " +
+                "that would insert them twice"),
+        @WritesAttribute(attribute = "record.count", description = "The number of records written, if 'Outcome " +
+                "record writer' is set"),
+        @WritesAttribute(attribute = "mime.type", description = "The MIME type of the written records, if 'Outcome " +
+                "record writer' is set")
+})
+@Stateful(scopes = Scope.CLUSTER, description = "If 'Watermark column' is set, stores the highest saved value of " +
+        "the column per target table. Clearing the state makes the processor match all records again")
 @Tags({"etl", "sql", "link-move"})
 @CapabilityDescription("Loads FlowFile data to a DB table. Rows missing in DB are inserted, rows already in DB are updated.")
 public class UpsertSQL extends AbstractProcessor {
 
+    public static final String INSERTED_ATTRIBUTE = "upsert.inserted";
+    public static final String UPDATED_ATTRIBUTE = "upsert.updated";
+    public static final String SKIPPED_ATTRIBUTE = "upsert.skipped";
+    public static final String UPSERTED_ATTRIBUTE = "upsert.upserted";
+    public static final String COLLAPSED_ATTRIBUTE = "upsert.collapsed";
+    public static final String DELETED_ATTRIBUTE = "upsert.deleted";
+    public static final String TIME_ATTRIBUTE_PREFIX = "upsert.time.";
+    public static final String COMMITTED_ROWS_ATTRIBUTE = "upsert.committed.rows";
+    public static final String RECOVERY_ATTRIBUTE = "upsert.recovery";
+    public static final String RECOVERY_RESTART = "restart";
+    public static final String RECOVERY_RESUME = "resume";
+
+    static final String FRAGMENT_ID_ATTRIBUTE = "fragment.identifier";
+    static final String FRAGMENT_COUNT_ATTRIBUTE = "fragment.count";
+
     public static final PropertyDescriptor SOURCE_RECORD_READER = new PropertyDescriptor.Builder()
             .name("source-record-reader")
             .displayName("Source record reader")
@@ -62,15 +139,44 @@ public class UpsertSQL extends AbstractProcessor {
     public static final PropertyDescriptor TARGET_TABLE_NAME_PROPERTY = new PropertyDescriptor.Builder()
             .name("target-table-name")
             .displayName("Target table name")
-            .description("The name of the target table for to insert or update data")
+            .description("The name of the target table for to insert or update data. May refer to FlowFile " +
+                    "attributes, in which case the FlowFiles of a batch are grouped by table, and each group is " +
+                    "saved separately")
             .required(true)
             .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .expressionLanguageSupported(ExpressionLanguageScope.FLOWFILE_ATTRIBUTES)
+            .build();
+
+    public static final PropertyDescriptor TARGET_TABLE_RECORD_PATH_PROPERTY = new PropertyDescriptor.Builder()
+            .name("target-table-record-path")
+            .displayName("Target table record path")
+            .description("An optional RecordPath to the target table name of each record, e.g. '/table', that " +
+                    "allows to load a feed of mixed records to multiple tables. Records without a value at the path " +
+                    "are saved to 'Target table name'. FlowFiles are read once, and the records of all tables of a " +
+                    "batch are saved in a single transaction over a single connection, so either all of them are " +
+                    "saved, or none. Each table is matched by its own primary key, or by 'Key columns', which must " +
+                    "then be present in all tables. Can't be used with the 'full_sync' matching strategy, " +
+                    "'sort_merge' join mode, 'Row digest index directory' or 'Outcome record writer'. 'Parallelism' " +
+                    "and 'Key lock stripes' are ignored")
+            .required(false)
+            .addValidator(UpsertSQL::customValidateTargetTableRecordPath)
             .build();
 
     public static final PropertyDescriptor MATCH_STRATEGY_PROPERTY = new PropertyDescriptor.Builder()
             .name("match-strategy")
             .displayName("Row matching strategy")
-            .description("How should we identify existing rows to be updated")
+            .description("How should we identify existing rows to be updated. 'pk' and 'key_columns' read the " +
+                    "matching rows from the target table and compare them in memory. 'native_pk' and " +
+                    "'native_key_columns' skip the read and use a single batched upsert statement in the DB " +
+                    "dialect: 'INSERT .. ON CONFLICT' for PostgreSQL, 'INSERT .. ON DUPLICATE KEY UPDATE' for " +
+                    "MySQL and 'MERGE' for H2, HSQLDB, SQL Server and Oracle. Other databases are not supported. " +
+                    "'native_key_columns' requires a unique constraint on " +
+                    "the key columns. With native strategies the exact per-row outcome may not be known. MySQL " +
+                    "only tells inserted rows from unchanged ones if the connection URL has 'useAffectedRows=true'. " +
+                    "'full_sync' matches rows like 'pk', and treats the input as a complete snapshot of the target " +
+                    "table, deleting target rows whose keys are not in it. A snapshot is either a single FlowFile, " +
+                    "or all FlowFiles with the same 'fragment.identifier', which are saved together once all " +
+                    "'fragment.count' of them are queued. Deletes are skipped if any part of the snapshot fails")
             .required(false)
             .allowableValues(MatchStrategy.values())
             .defaultValue(MatchStrategy.pk.name())
@@ -81,14 +187,301 @@ public class UpsertSQL extends AbstractProcessor {
             .name("key-columns")
             .displayName("Key columns")
             .description("A comma-separated list of the column names in the target table to use for row matching. " +
-                    "Ignored unless 'Row matching strategy' is 'key_columns'")
+                    "Ignored unless 'Row matching strategy' is 'key_columns' or 'native_key_columns'")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor IGNORED_COLUMNS_PROPERTY = new PropertyDescriptor.Builder()
+            .name("ignored-columns")
+            .displayName("Columns ignored for change detection")
+            .description("A comma-separated list of the column names in the target table that are not compared to " +
+                    "decide whether a row has changed, e.g. load timestamps or audit fields. If a row has changed in " +
+                    "other columns, these columns are updated as well. Updates only set the columns that differ " +
+                    "from the target row. Ignored by the 'native_*' and 'insert_only' matching strategies")
+            .required(false)
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor DUPLICATE_KEY_POLICY_PROPERTY = new PropertyDescriptor.Builder()
+            .name("duplicate-key-policy")
+            .displayName("Duplicate key policy")
+            .description("How to handle records with the same match key within a chunk, or within the whole FlowFile " +
+                    "for the 'sort_merge' join mode, e.g. repeated changes " +
+                    "of the same row in a CDC feed. 'keep_all' saves every record. 'last_wins' and 'first_wins' " +
+                    "only save the last or the first record with a given key, reporting the rest as 'collapsed'. " +
+                    "'fail' fails the chunk. Ignored for the 'insert_only' matching strategy")
+            .required(true)
+            .allowableValues(DuplicateKeyPolicy.values())
+            .defaultValue(DuplicateKeyPolicy.keep_all.name())
+            .build();
+
+    public static final PropertyDescriptor JOIN_MODE_PROPERTY = new PropertyDescriptor.Builder()
+            .name("join-mode")
+            .displayName("Join mode")
+            .description("How records are joined with the target table rows. 'in_memory' fetches the target rows " +
+                    "matching each chunk by key. 'sort_merge' spills chunks to local disk sorted by key, then " +
+                    "streams the whole target table ordered by key and merge-joins the two, saving all records " +
+                    "in a single transaction. Memory use stays constant regardless of the source or target size, " +
+                    "which makes it suitable for initial loads of very large FlowFiles. 'Records per chunk' sets " +
+                    "the size of the sorted runs (100000 if not set). Requires the 'pk' or 'key_columns' matching " +
+                    "strategy, and ignores the watermark, key locks and parallelism")
+            .required(true)
+            .allowableValues(JoinMode.values())
+            .defaultValue(JoinMode.in_memory.name())
+            .addValidator(UpsertSQL::customValidateJoinMode)
+            .build();
+
+    public static final PropertyDescriptor SPILL_DIRECTORY_PROPERTY = new PropertyDescriptor.Builder()
+            .name("spill-directory")
+            .displayName("Spill directory")
+            .description("A local directory for the sorted runs of the 'sort_merge' join mode. The system temp " +
+                    "directory is used if not set")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, false))
+            .build();
+
+    public static final PropertyDescriptor MERGE_FETCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+            .name("merge-fetch-size")
+            .displayName("Merge fetch size")
+            .description("The number of target rows fetched at once while streaming the whole target table: in " +
+                    "the 'sort_merge' join mode, for the 'full_sync' deletes and the row digest index rebuilds. " +
+                    "MySQL only fetches rows in such batches if the connection URL has 'useCursorFetch=true', and " +
+                    "otherwise reads them one by one")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor RECORDS_PER_CHUNK_PROPERTY = new PropertyDescriptor.Builder()
+            .name("records-per-chunk")
+            .displayName("Records per chunk")
+            .description("The maximum number of records to read, match and save as one unit. Large FlowFiles are " +
+                    "processed in chunks of this size, so that memory use does not depend on the FlowFile size. " +
+                    "When multiple FlowFiles are processed in a batch, this is also the maximum number of records " +
+                    "merged from those FlowFiles into a single unit. Each chunk is saved in its own transaction, " +
+                    "unless 'Transaction mode' says otherwise. If not set, the entire FlowFile (or a batch of " +
+                    "FlowFiles) is saved at once")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRANSACTION_MODE_PROPERTY = new PropertyDescriptor.Builder()
+            .name("transaction-mode")
+            .displayName("Transaction mode")
+            .description("How saved records are grouped into transactions. 'per_chunk' commits each chunk once " +
+                    "saved, or each of its partitions with 'Parallelism'. 'single' saves all records of a batch of " +
+                    "FlowFiles in one transaction, so that either all of them are saved, or none, at the cost of " +
+                    "holding the row locks until the end. It ignores 'Parallelism', and can't be used with 'Row " +
+                    "digest index directory'. 'commit_interval' splits each chunk into slices of 'Commit interval' " +
+                    "records, that are matched, written and committed one after another, bounding the row locks " +
+                    "and the undo log of large chunks. " +
+                    "FlowFiles routed to failure get attributes telling how many of their records were committed. " +
+                    "Ignored with 'Target table record path', which always saves a batch in a single transaction")
+            .required(true)
+            .allowableValues(TransactionMode.values())
+            .defaultValue(TransactionMode.per_chunk.name())
+            .addValidator(UpsertSQL::customValidateTransactionMode)
+            .build();
+
+    public static final PropertyDescriptor COMMIT_INTERVAL_PROPERTY = new PropertyDescriptor.Builder()
+            .name("commit-interval")
+            .displayName("Commit interval")
+            .description("The number of records to commit at once in the 'commit_interval' transaction mode")
+            .required(true)
+            .defaultValue("10000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor TRANSACTION_ISOLATION_PROPERTY = new PropertyDescriptor.Builder()
+            .name("transaction-isolation")
+            .displayName("Transaction isolation")
+            .description("The isolation level of the save transactions. 'pool_default' keeps the connection pool " +
+                    "setting. Stricter levels make concurrent saves of overlapping keys wait or fail more often")
+            .required(true)
+            .allowableValues(TransactionIsolation.values())
+            .defaultValue(TransactionIsolation.pool_default.name())
+            .build();
+
+    public static final PropertyDescriptor MAX_FLOWFILES_PER_BATCH_PROPERTY = new PropertyDescriptor.Builder()
+            .name("max-flowfiles-per-batch")
+            .displayName("Max FlowFiles per batch")
+            .description("The maximum number of FlowFiles to take from the queue on each invocation. Records from " +
+                    "all FlowFiles in a batch are merged and matched against the target table together, up to " +
+                    "'Records per chunk' records at a time. If saving merged records fails, each FlowFile is " +
+                    "retried separately, so that only the offending FlowFiles are routed to failure. Ignored by the " +
+                    "'full_sync' matching strategy, which takes all FlowFiles of a single snapshot")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor JDBC_BATCH_SIZE_PROPERTY = new PropertyDescriptor.Builder()
+            .name("jdbc-batch-size")
+            .displayName("JDBC batch size")
+            .description("The maximum number of rows sent to the database in a single JDBC batch when inserting or " +
+                    "updating rows. Ignored for the 'native_pk' and 'native_key_columns' matching strategies")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor MULTI_ROW_INSERT_PROPERTY = new PropertyDescriptor.Builder()
+            .name("multi-row-insert")
+            .displayName("Multi-row insert")
+            .description("Whether to insert multiple rows with a single \"INSERT .. VALUES (..), (..)\" statement. " +
+                    "The number of rows per statement is limited by 'JDBC batch size' and 'Max statement parameters'. " +
+                    "Usually much faster than inserting one row per statement, unless the JDBC driver already " +
+                    "rewrites batches this way")
+            .required(true)
+            .allowableValues("true", "false")
+            .defaultValue("false")
+            .build();
+
+    public static final PropertyDescriptor MAX_STATEMENT_PARAMETERS_PROPERTY = new PropertyDescriptor.Builder()
+            .name("max-statement-parameters")
+            .displayName("Max statement parameters")
+            .description("The maximum number of parameters in a single multi-row INSERT statement. Must be within " +
+                    "the database limit (e.g. 2100 for SQL Server, 32767 for PostgreSQL). Ignored unless " +
+                    "'Multi-row insert' is enabled")
+            .required(true)
+            .defaultValue("2000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor BULK_LOAD_STRATEGY_PROPERTY = new PropertyDescriptor.Builder()
+            .name("bulk-load-strategy")
+            .displayName("Bulk load strategy")
+            .description("A database-specific mechanism to insert new rows instead of INSERT statements. " +
+                    "'postgresql_copy' streams rows with PostgreSQL 'COPY .. FROM STDIN'. 'h2_csvread' loads them " +
+                    "with H2 'CSVREAD' and is mostly intended for testing. Only used when a chunk has at least " +
+                    "'Bulk load min rows' new rows. Ignored for the 'native_pk' and 'native_key_columns' matching " +
+                    "strategies")
+            .required(true)
+            .allowableValues(BulkLoadStrategy.values())
+            .defaultValue(BulkLoadStrategy.none.name())
+            .build();
+
+    public static final PropertyDescriptor BULK_LOAD_MIN_ROWS_PROPERTY = new PropertyDescriptor.Builder()
+            .name("bulk-load-min-rows")
+            .displayName("Bulk load min rows")
+            .description("The minimum number of new rows in a chunk to use 'Bulk load strategy'. Fewer rows are " +
+                    "inserted with INSERT statements, as bulk loading has a higher fixed cost")
+            .required(true)
+            .defaultValue("1000")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PARALLELISM_PROPERTY = new PropertyDescriptor.Builder()
+            .name("parallelism")
+            .displayName("Parallelism")
+            .description("The number of partitions to split each chunk into by the match key hash. Partitions are " +
+                    "matched and saved in parallel, each on its own connection and in its own transaction. As " +
+                    "partitions have disjoint keys, they don't contend for row locks. The connection pool must allow " +
+                    "at least this many connections per concurrent task")
+            .required(true)
+            .defaultValue("1")
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor PIPELINE_DEPTH_PROPERTY = new PropertyDescriptor.Builder()
+            .name("pipeline-depth")
+            .displayName("Pipeline depth")
+            .description("The number of full chunks that may be saved in the background, or wait to be saved, while " +
+                    "the next chunk is read and converted, so that reading and converting records overlaps with " +
+                    "waiting for the DB. Chunks are still saved one at a time, in order, and FlowFiles are routed " +
+                    "after all of their records are saved. Only effective with 'Records per chunk', and up to this " +
+                    "many extra chunks are held in memory. Zero disables pipelining. Ignored with the 'sort_merge' " +
+                    "join mode and 'Target table record path'")
+            .required(true)
+            .defaultValue("0")
+            .addValidator(StandardValidators.NON_NEGATIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor KEY_LOCK_STRIPES_PROPERTY = new PropertyDescriptor.Builder()
+            .name("key-lock-stripes")
+            .displayName("Key lock stripes")
+            .description("If set, concurrent tasks of all processors in this JVM that save to the same table via " +
+                    "the same connection pool coordinate on in-memory locks striped by the key hash, so that " +
+                    "overlapping keys are never saved concurrently. Prevents lock waits and deadlocks in the DB " +
+                    "when concurrent tasks are increased. More stripes allow more concurrency; use a number much " +
+                    "larger than 'Records per chunk'. The stripe count of the first processor to use the table " +
+                    "applies to all. Ignored for the 'insert_only' matching strategy, and in the 'single' transaction " +
+                    "mode, as the locks are only held while a chunk is saved, which is before the commit")
+            .required(false)
+            .addValidator(StandardValidators.POSITIVE_INTEGER_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor SLOW_BATCH_THRESHOLD_PROPERTY = new PropertyDescriptor.Builder()
+            .name("slow-batch-threshold")
+            .displayName("Slow batch threshold")
+            .description("If set, a warning with the time spent in each phase is logged for every batch of " +
+                    "FlowFiles that takes longer than this to process")
+            .required(false)
+            .addValidator(StandardValidators.TIME_PERIOD_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor METADATA_CACHE_PROPERTY = new PropertyDescriptor.Builder()
+            .name("metadata-cache")
+            .displayName("Metadata cache")
+            .description("An optional Controller Service that caches target table metadata and record conversion " +
+                    "plans between invocations. Can be shared by multiple processors. If not set, metadata is " +
+                    "loaded from the database for every FlowFile")
+            .required(false)
+            .identifiesControllerService(UpsertMetadataCache.class)
+            .build();
+
+    public static final PropertyDescriptor OUTCOME_RECORD_WRITER = new PropertyDescriptor.Builder()
+            .name("outcome-record-writer")
+            .displayName("Outcome record writer")
+            .description("An optional Controller Service to write the successfully processed records, each tagged " +
+                    "with its outcome: 'inserted', 'updated', 'skipped' or 'upserted'. If set, the content of the FlowFiles " +
+                    "routed to success is replaced with the tagged records")
+            .identifiesControllerService(RecordSetWriterFactory.class)
+            .required(false)
+            .build();
+
+    public static final PropertyDescriptor OUTCOME_FIELD_NAME_PROPERTY = new PropertyDescriptor.Builder()
+            .name("outcome-field-name")
+            .displayName("Outcome field name")
+            .description("The name of the record field to store the record outcome. Ignored unless " +
+                    "'Outcome record writer' is set")
+            .required(true)
+            .defaultValue("upsert_outcome")
+            .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
+            .build();
+
+    public static final PropertyDescriptor ROW_DIGEST_INDEX_DIRECTORY_PROPERTY = new PropertyDescriptor.Builder()
+            .name("row-digest-index-directory")
+            .displayName("Row digest index directory")
+            .description("An optional local directory to store a persistent index of target row digests. Rows " +
+                    "whose digest matches the index are skipped without reading the target table. The index is " +
+                    "built with a full table scan on first use, and can be rebuilt by deleting its file. Only valid " +
+                    "if the target table is modified exclusively by this processor. Each processor must use its " +
+                    "own directory. Ignored for the 'insert_only' matching strategy")
+            .required(false)
+            .addValidator(StandardValidators.createDirectoryExistsValidator(false, true))
+            .build();
+
+    public static final PropertyDescriptor WATERMARK_COLUMN_PROPERTY = new PropertyDescriptor.Builder()
+            .name("watermark-column")
+            .displayName("Watermark column")
+            .description("An optional 'last modified' column of the target table, that must also be present in the " +
+                    "source records. The highest value saved so far is kept in the processor state. Records with " +
+                    "higher values can't be unchanged, so only their keys are read from the target table to tell " +
+                    "inserts from updates, and existing rows are updated without comparing. Records at or below " +
+                    "the watermark are matched as usual, so late or replayed records are still saved correctly. " +
+                    "Only used by the strategies that read the target table. The watermark is only advanced when " +
+                    "all FlowFiles of a batch succeed")
             .required(false)
             .addValidator(StandardValidators.NON_BLANK_VALIDATOR)
             .build();
 
     public static final Relationship SUCCESS_RELATIONSHIP = new Relationship.Builder()
             .name("success")
-            .description("TODO: a FlowFile with update stats")
+            .description("FlowFiles whose records were saved to the target table, with the save stats stored in " +
+                    "attributes. If 'Outcome record writer' is set, the content is replaced with the original " +
+                    "records tagged with per-record outcomes")
             .build();
 
     public static final Relationship FAILURE_RELATIONSHIP = new Relationship.Builder()
@@ -99,9 +492,15 @@ public class UpsertSQL extends AbstractProcessor {
 
     private List<PropertyDescriptor> descriptors;
     private Set<Relationship> relationships;
+    private final Map<String, RowDigestIndex> rowDigestIndexes = new HashMap<>();
+    private volatile ExecutorService saveExecutor;
+    private volatile ExecutorService pipelineExecutor;
+    private volatile long slowBatchThresholdMillis;
+    private volatile String transitUri;
+    private volatile RecordPath tableRecordPath;
 
     static ValidationResult customValidateMatchStrategy(String subject, String input, ValidationContext context) {
-        if (MatchStrategy.key_columns.name().equals(input)) {
+        if (MatchStrategy.key_columns.name().equals(input) || MatchStrategy.native_key_columns.name().equals(input)) {
             String keyColumns = context.getProperties().get(KEY_COLUMNS_PROPERTY);
             return StandardValidators.NON_BLANK_VALIDATOR.validate(subject, keyColumns, context);
         } else {
@@ -109,14 +508,120 @@ public class UpsertSQL extends AbstractProcessor {
         }
     }
 
+    static ValidationResult customValidateJoinMode(String subject, String input, ValidationContext context) {
+        if (!JoinMode.sort_merge.name().equals(input)) {
+            return Validator.VALID.validate(subject, input, context);
+        }
+
+        String matchStrategy = context.getProperty(MATCH_STRATEGY_PROPERTY).getValue();
+        if (!MatchStrategy.pk.name().equals(matchStrategy) && !MatchStrategy.key_columns.name().equals(matchStrategy)) {
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(false)
+                    .explanation("'" + JoinMode.sort_merge + "' join mode requires the '" + MatchStrategy.pk
+                            + "' or '" + MatchStrategy.key_columns + "' matching strategy")
+                    .build();
+        }
+
+        // spilled rows are saved without updating the row digest index, which would make the index stale
+        if (context.getProperty(ROW_DIGEST_INDEX_DIRECTORY_PROPERTY).isSet()) {
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(false)
+                    .explanation("'" + JoinMode.sort_merge + "' join mode can't be used with '"
+                            + ROW_DIGEST_INDEX_DIRECTORY_PROPERTY.getDisplayName() + "'")
+                    .build();
+        }
+
+        return Validator.VALID.validate(subject, input, context);
+    }
+
+    static ValidationResult customValidateTransactionMode(String subject, String input, ValidationContext context) {
+        if (TransactionMode.single.name().equals(input) && context.getProperty(ROW_DIGEST_INDEX_DIRECTORY_PROPERTY).isSet()) {
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(false)
+                    .explanation("'" + TransactionMode.single + "' transaction mode can't be used with '"
+                            + ROW_DIGEST_INDEX_DIRECTORY_PROPERTY.getDisplayName() + "'")
+                    .build();
+        }
+
+        return Validator.VALID.validate(subject, input, context);
+    }
+
+    // records of all tables are saved in one transaction, which rules out the features that commit on their own
+    static ValidationResult customValidateTargetTableRecordPath(String subject, String input, ValidationContext context) {
+
+        ValidationResult pathResult = new RecordPathValidator().validate(subject, input, context);
+        if (!pathResult.isValid()) {
+            return pathResult;
+        }
+
+        List<String> conflicts = new ArrayList<>();
+        if (MatchStrategy.full_sync.name().equals(context.getProperty(MATCH_STRATEGY_PROPERTY).getValue())) {
+            conflicts.add("'" + MatchStrategy.full_sync + "' matching strategy");
+        }
+
+        if (JoinMode.sort_merge.name().equals(context.getProperty(JOIN_MODE_PROPERTY).getValue())) {
+            conflicts.add("'" + JoinMode.sort_merge + "' join mode");
+        }
+
+        if (context.getProperty(ROW_DIGEST_INDEX_DIRECTORY_PROPERTY).isSet()) {
+            conflicts.add("'" + ROW_DIGEST_INDEX_DIRECTORY_PROPERTY.getDisplayName() + "'");
+        }
+
+        if (context.getProperty(OUTCOME_RECORD_WRITER).isSet()) {
+            conflicts.add("'" + OUTCOME_RECORD_WRITER.getDisplayName() + "'");
+        }
+
+        if (!conflicts.isEmpty()) {
+            return new ValidationResult.Builder()
+                    .subject(subject)
+                    .input(input)
+                    .valid(false)
+                    .explanation("can't be used with " + String.join(", ", conflicts))
+                    .build();
+        }
+
+        return pathResult;
+    }
+
     @Override
     protected void init(ProcessorInitializationContext context) {
         this.descriptors = Collections.unmodifiableList(asList(
                 SOURCE_RECORD_READER,
                 TARGET_CONNECTION_POOL_PROPERTY,
                 TARGET_TABLE_NAME_PROPERTY,
+                TARGET_TABLE_RECORD_PATH_PROPERTY,
                 MATCH_STRATEGY_PROPERTY,
-                KEY_COLUMNS_PROPERTY));
+                KEY_COLUMNS_PROPERTY,
+                IGNORED_COLUMNS_PROPERTY,
+                DUPLICATE_KEY_POLICY_PROPERTY,
+                JOIN_MODE_PROPERTY,
+                SPILL_DIRECTORY_PROPERTY,
+                MERGE_FETCH_SIZE_PROPERTY,
+                RECORDS_PER_CHUNK_PROPERTY,
+                TRANSACTION_MODE_PROPERTY,
+                COMMIT_INTERVAL_PROPERTY,
+                TRANSACTION_ISOLATION_PROPERTY,
+                MAX_FLOWFILES_PER_BATCH_PROPERTY,
+                JDBC_BATCH_SIZE_PROPERTY,
+                MULTI_ROW_INSERT_PROPERTY,
+                MAX_STATEMENT_PARAMETERS_PROPERTY,
+                BULK_LOAD_STRATEGY_PROPERTY,
+                BULK_LOAD_MIN_ROWS_PROPERTY,
+                PARALLELISM_PROPERTY,
+                PIPELINE_DEPTH_PROPERTY,
+                KEY_LOCK_STRIPES_PROPERTY,
+                SLOW_BATCH_THRESHOLD_PROPERTY,
+                METADATA_CACHE_PROPERTY,
+                OUTCOME_RECORD_WRITER,
+                OUTCOME_FIELD_NAME_PROPERTY,
+                ROW_DIGEST_INDEX_DIRECTORY_PROPERTY,
+                WATERMARK_COLUMN_PROPERTY));
 
         this.relationships = Collections.unmodifiableSet(new HashSet<>(asList(
                 SUCCESS_RELATIONSHIP,
@@ -133,35 +638,665 @@ public class UpsertSQL extends AbstractProcessor {
         return descriptors;
     }
 
+    @OnScheduled
+    public void warmUpMetadataCache(ProcessContext context) {
+
+        UpsertMetadataCache cache = context
+                .getProperty(METADATA_CACHE_PROPERTY)
+                .asControllerService(UpsertMetadataCache.class);
+
+        if (cache == null) {
+            return;
+        }
+
+        // the table is not known until the first FlowFile
+        if (context.getProperty(TARGET_TABLE_NAME_PROPERTY).isExpressionLanguagePresent()) {
+            return;
+        }
+
+        DBCPService db = context.getProperty(TARGET_CONNECTION_POOL_PROPERTY).asControllerService(DBCPService.class);
+        String table = context.getProperty(TARGET_TABLE_NAME_PROPERTY).getValue();
+
+        // not fatal, as the DB may be temporarily unavailable; will retry on the first FlowFile
+        try {
+            cache.getTableMetadata(db, table);
+        } catch (Exception e) {
+            getLogger().warn("Failed to preload metadata for table '{}'", new Object[]{table, e});
+        }
+    }
+
+    @OnScheduled
+    public void startSaveExecutor(ProcessContext context) {
+
+        int parallelism = context.getProperty(PARALLELISM_PROPERTY).asInteger();
+        if (parallelism <= 1) {
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        String threadPrefix = "UpsertSQL-" + getIdentifier() + "-save-";
+
+        // threads are shared by all concurrent tasks
+        saveExecutor = Executors.newFixedThreadPool(parallelism * context.getMaxConcurrentTasks(), r -> {
+            Thread t = new Thread(r, threadPrefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @OnScheduled
+    public void startPipelineExecutor(ProcessContext context) {
+
+        if (context.getProperty(PIPELINE_DEPTH_PROPERTY).asInteger() == 0) {
+            return;
+        }
+
+        AtomicInteger threadNumber = new AtomicInteger();
+        String threadPrefix = "UpsertSQL-" + getIdentifier() + "-pipeline-";
+
+        // each task saves one chunk at a time, so a thread per task is enough
+        pipelineExecutor = Executors.newFixedThreadPool(context.getMaxConcurrentTasks(), r -> {
+            Thread t = new Thread(r, threadPrefix + threadNumber.incrementAndGet());
+            t.setDaemon(true);
+            return t;
+        });
+    }
+
+    @OnScheduled
+    public void readSlowBatchThreshold(ProcessContext context) {
+        slowBatchThresholdMillis = context.getProperty(SLOW_BATCH_THRESHOLD_PROPERTY).isSet()
+                ? context.getProperty(SLOW_BATCH_THRESHOLD_PROPERTY).asTimePeriod(TimeUnit.MILLISECONDS)
+                : 0;
+    }
+
+    @OnScheduled
+    public void compileTableRecordPath(ProcessContext context) {
+        tableRecordPath = context.getProperty(TARGET_TABLE_RECORD_PATH_PROPERTY).isSet()
+                ? RecordPath.compile(context.getProperty(TARGET_TABLE_RECORD_PATH_PROPERTY).getValue())
+                : null;
+    }
+
+    @OnStopped
+    public void resetTransitUri() {
+        transitUri = null;
+    }
+
+    @OnStopped
+    public void stopSaveExecutor() {
+        if (saveExecutor != null) {
+            saveExecutor.shutdown();
+            saveExecutor = null;
+        }
+    }
+
+    @OnStopped
+    public void stopPipelineExecutor() {
+        if (pipelineExecutor != null) {
+            pipelineExecutor.shutdown();
+            pipelineExecutor = null;
+        }
+    }
+
+    @OnStopped
+    public void closeRowDigestIndexes() {
+        synchronized (rowDigestIndexes) {
+            for (RowDigestIndex index : rowDigestIndexes.values()) {
+                try {
+                    index.close();
+                } catch (IOException e) {
+                    getLogger().warn("Failed to close row digest index {}", new Object[]{index.getFile(), e});
+                }
+            }
+
+            rowDigestIndexes.clear();
+        }
+    }
+
+    private RowDigestIndex getRowDigestIndex(ProcessContext context, String table) {
+
+        if (!context.getProperty(ROW_DIGEST_INDEX_DIRECTORY_PROPERTY).isSet()) {
+            return null;
+        }
+
+        synchronized (rowDigestIndexes) {
+            RowDigestIndex index = rowDigestIndexes.get(table);
+            if (index == null) {
+                Path file = Paths
+                        .get(context.getProperty(ROW_DIGEST_INDEX_DIRECTORY_PROPERTY).getValue())
+                        .resolve(table.replaceAll("[^A-Za-z0-9_.\\-]", "_") + ".digest");
+
+                try {
+                    index = RowDigestIndex.open(file);
+                } catch (IOException e) {
+                    throw new ProcessException("Failed to open row digest index " + file, e);
+                }
+
+                rowDigestIndexes.put(table, index);
+            }
+
+            return index;
+        }
+    }
+
     @Override
     public void onTrigger(ProcessContext context, ProcessSession session) throws ProcessException {
 
-        FlowFile originalFF = session.get();
-        if (originalFF == null) {
+        boolean fullSync = MatchStrategy.full_sync.name().equals(context.getProperty(MATCH_STRATEGY_PROPERTY).getValue());
+        boolean insertOnly = MatchStrategy.insert_only.name().equals(context.getProperty(MATCH_STRATEGY_PROPERTY).getValue());
+        List<FlowFile> flowFiles = fullSync
+                ? getSnapshot(context, session)
+                : session.get(context.getProperty(MAX_FLOWFILES_PER_BATCH_PROPERTY).asInteger());
+        if (flowFiles.isEmpty()) {
+            return;
+        }
+
+        if (tableRecordPath != null) {
+            upsertWithRetries(session, true, insertOnly, flowFiles, (advanceWatermark, ffs) -> upsertFanOut(context, session, advanceWatermark, ffs));
             return;
         }
 
+        // the table name may refer to FlowFile attributes, so each table is saved separately
+        Map<String, List<FlowFile>> byTable = new LinkedHashMap<>();
+        for (FlowFile ff : flowFiles) {
+            String table = context.getProperty(TARGET_TABLE_NAME_PROPERTY).evaluateAttributeExpressions(ff).getValue();
+            byTable.computeIfAbsent(table, t -> new ArrayList<>()).add(ff);
+        }
+
+        for (Map.Entry<String, List<FlowFile>> e : byTable.entrySet()) {
+            upsertTable(context, session, fullSync, insertOnly, e.getKey(), e.getValue());
+        }
+    }
+
+    private void upsertTable(ProcessContext context, ProcessSession session, boolean fullSync, boolean insertOnly, String targetTable, List<FlowFile> flowFiles) {
+
         RecordReaderFactory srcReaderFactory = context
                 .getProperty(SOURCE_RECORD_READER)
                 .asControllerService(RecordReaderFactory.class);
 
-        UpsertBuilder upserter = UpsertBuilder
+        DBCPService db = context.getProperty(TARGET_CONNECTION_POOL_PROPERTY).asControllerService(DBCPService.class);
+        UpsertMetadataCache metadataCache = context
+                .getProperty(METADATA_CACHE_PROPERTY)
+                .asControllerService(UpsertMetadataCache.class);
+        RecordSetWriterFactory outcomeWriterFactory = context
+                .getProperty(OUTCOME_RECORD_WRITER)
+                .asControllerService(RecordSetWriterFactory.class);
+
+        UpsertBuilder upserter = createUpserter(context, targetTable, outcomeWriterFactory != null)
+                .rowDigestIndex(getRowDigestIndex(context, targetTable));
+
+        OutcomeRecordWriter outcomeWriter = outcomeWriterFactory != null
+                ? new OutcomeRecordWriter(context.getProperty(OUTCOME_FIELD_NAME_PROPERTY).getValue())
+                : null;
+
+        String transitUri = getTransitUri(db);
+
+        // parts of a snapshot can't be saved separately, as each of them would delete the rows of the others
+        upsertWithRetries(session, !fullSync, insertOnly, flowFiles, (advanceWatermark, ffs) -> {
+
+            Map<FlowFile, Exception> failed = upsert(context, session, advanceWatermark, srcReaderFactory, upserter, outcomeWriterFactory, outcomeWriter, transitUri, ffs);
+
+            // the failure may be caused by the target table change, so make sure we reload the metadata
+            if (metadataCache != null && failed.values().stream().anyMatch(UpsertSQL::isMetadataFailure)) {
+                metadataCache.invalidate(db, targetTable);
+            }
+
+            return failed;
+        });
+    }
+
+    /**
+     * Upserts FlowFiles as a single batch, and if some of them fail, and "retry" is true, retries the failed ones one
+     * by one, as a merged batch fails as a whole. Routes the FlowFiles that failed for good to failure. With
+     * "insertOnly", FlowFiles that have some of their records committed are not retried, as saving them again would
+     * insert those records twice.
+     */
+    private void upsertWithRetries(ProcessSession session, boolean retry, boolean insertOnly, List<FlowFile> flowFiles, BatchUpsert upsert) {
+
+        Map<FlowFile, Exception> failed = upsert.upsert(true, flowFiles);
+
+        if (retry && flowFiles.size() > 1 && !failed.isEmpty()) {
+            Map<FlowFile, Exception> failedAfterRetry = new LinkedHashMap<>();
+            for (Map.Entry<FlowFile, Exception> e : failed.entrySet()) {
+                FlowFile ff = e.getKey();
+                if (insertOnly && RECOVERY_RESUME.equals(ff.getAttribute(RECOVERY_ATTRIBUTE))) {
+                    failedAfterRetry.put(ff, e.getValue());
+                    continue;
+                }
+
+                failedAfterRetry.putAll(upsert.upsert(false, Collections.singletonList(ff)));
+            }
+
+            failed = failedAfterRetry;
+        }
+
+        for (Map.Entry<FlowFile, Exception> e : failed.entrySet()) {
+            getLogger().error("Failed to upsert records from {}; routing to failure", new Object[]{e.getKey(), e.getValue()});
+            session.transfer(e.getKey(), FAILURE_RELATIONSHIP);
+        }
+    }
+
+    private UpsertBuilder createUpserter(ProcessContext context, String targetTable, boolean trackOutcomes) {
+
+        // key locks are held per chunk, and would be released before the commit of a single transaction
+        boolean singleTransaction = TransactionMode.single.name().equals(context.getProperty(TRANSACTION_MODE_PROPERTY).getValue());
+
+        return UpsertBuilder
                 .create(getLogger())
                 .db(context.getProperty(TARGET_CONNECTION_POOL_PROPERTY).asControllerService(DBCPService.class))
+                .metadataCache(context.getProperty(METADATA_CACHE_PROPERTY).asControllerService(UpsertMetadataCache.class))
                 .matchStrategy(context.getProperty(MATCH_STRATEGY_PROPERTY).getValue())
-                .targetTable(context.getProperty(TARGET_TABLE_NAME_PROPERTY).getValue())
-                .keyColumns(context.getProperty(KEY_COLUMNS_PROPERTY).getValue());
+                .targetTable(targetTable)
+                .keyColumns(context.getProperty(KEY_COLUMNS_PROPERTY).getValue())
+                .ignoredColumns(context.getProperty(IGNORED_COLUMNS_PROPERTY).getValue())
+                .duplicateKeyPolicy(context.getProperty(DUPLICATE_KEY_POLICY_PROPERTY).getValue())
+                .joinMode(context.getProperty(JOIN_MODE_PROPERTY).getValue())
+                .spillDirectory(context.getProperty(SPILL_DIRECTORY_PROPERTY).isSet()
+                        ? Paths.get(context.getProperty(SPILL_DIRECTORY_PROPERTY).getValue())
+                        : Paths.get(System.getProperty("java.io.tmpdir")))
+                .mergeFetchSize(context.getProperty(MERGE_FETCH_SIZE_PROPERTY).asInteger())
+                .recordsPerChunk(context.getProperty(RECORDS_PER_CHUNK_PROPERTY).isSet()
+                        ? context.getProperty(RECORDS_PER_CHUNK_PROPERTY).asInteger()
+                        : 0)
+                .transactionMode(context.getProperty(TRANSACTION_MODE_PROPERTY).getValue())
+                .commitInterval(context.getProperty(COMMIT_INTERVAL_PROPERTY).asInteger())
+                .isolation(context.getProperty(TRANSACTION_ISOLATION_PROPERTY).getValue())
+                .jdbcBatchSize(context.getProperty(JDBC_BATCH_SIZE_PROPERTY).asInteger())
+                .multiRowInsert(context.getProperty(MULTI_ROW_INSERT_PROPERTY).asBoolean())
+                .maxStatementParameters(context.getProperty(MAX_STATEMENT_PARAMETERS_PROPERTY).asInteger())
+                .bulkLoadStrategy(context.getProperty(BULK_LOAD_STRATEGY_PROPERTY).getValue())
+                .bulkLoadMinRows(context.getProperty(BULK_LOAD_MIN_ROWS_PROPERTY).asInteger())
+                .parallelism(context.getProperty(PARALLELISM_PROPERTY).asInteger(), saveExecutor)
+                .pipeline(context.getProperty(PIPELINE_DEPTH_PROPERTY).asInteger(), pipelineExecutor)
+                .keyLockStripes(context.getProperty(KEY_LOCK_STRIPES_PROPERTY).isSet() && !singleTransaction
+                        ? context.getProperty(KEY_LOCK_STRIPES_PROPERTY).asInteger()
+                        : 0)
+                .trackOutcomes(trackOutcomes)
+                .watermark(getWatermark(context, targetTable));
+    }
+
+    /**
+     * Upserts FlowFiles with records of multiple tables as a single batch, in a single transaction. The table of
+     * each record is selected by the "Target table record path". Returns failed FlowFiles with the failure causes.
+     */
+    private Map<FlowFile, Exception> upsertFanOut(ProcessContext context, ProcessSession session, boolean advanceWatermark, List<FlowFile> flowFiles) {
+
+        long startedAt = System.currentTimeMillis();
+
+        RecordReaderFactory srcReaderFactory = context
+                .getProperty(SOURCE_RECORD_READER)
+                .asControllerService(RecordReaderFactory.class);
+        DBCPService db = context.getProperty(TARGET_CONNECTION_POOL_PROPERTY).asControllerService(DBCPService.class);
+        UpsertMetadataCache metadataCache = context
+                .getProperty(METADATA_CACHE_PROPERTY)
+                .asControllerService(UpsertMetadataCache.class);
+        RecordPath tablePath = tableRecordPath;
+
+        TransactionIsolation isolation = TransactionIsolation.valueOf(context.getProperty(TRANSACTION_ISOLATION_PROPERTY).getValue());
+
+        // key locks are held per chunk, and would be released before the commit
+        TableFanOut fanOut = new TableFanOut(db, isolation, getLogger(), table -> createUpserter(context, table, false).keyLockStripes(0));
 
-        try (InputStream in = session.read(originalFF)) {
-            try (RecordReader reader = srcReaderFactory.createRecordReader(originalFF, in, getLogger())) {
-                upserter.upsert(reader);
+        for (FlowFile ff : flowFiles) {
+            int segment = fanOut.newSegment();
+            String defaultTable = context.getProperty(TARGET_TABLE_NAME_PROPERTY).evaluateAttributeExpressions(ff).getValue();
+
+            try (InputStream in = session.read(ff)) {
+                try (RecordReader reader = srcReaderFactory.createRecordReader(ff, in, getLogger())) {
+                    fanOut.append(segment, reader, r -> tableOf(tablePath, r, defaultTable));
+                }
+            } catch (Exception e) {
+                fanOut.fail(segment, e);
             }
+        }
 
-            session.transfer(originalFF, SUCCESS_RELATIONSHIP);
+        fanOut.save();
 
-        } catch (Exception e) {
-            getLogger().error("Failed to read records from {}; routing to failure", new Object[]{originalFF, e});
-            session.transfer(originalFF, FAILURE_RELATIONSHIP);
+        reportTimings(session, String.join(", ", fanOut.getTables()), flowFiles.size(), fanOut.getTimings(), System.currentTimeMillis() - startedAt);
+
+        if (advanceWatermark) {
+            for (String table : fanOut.getTables()) {
+                UpsertBuilder upserter = fanOut.getUpserter(table);
+                Object value = fanOut.getWatermarkValue(table);
+                if (upserter.getWatermark() != null && value != null) {
+                    advanceWatermark(context, upserter, value);
+                }
+            }
+        }
+
+        String transitUri = getTransitUri(db);
+        Map<FlowFile, Exception> failed = new LinkedHashMap<>();
+        for (int i = 0; i < flowFiles.size(); i++) {
+            FlowFile ff = flowFiles.get(i);
+
+            // a failed transaction is rolled back as a whole
+            if (fanOut.isFailed(i)) {
+                failed.put(putRecoveryAttributes(session, ff, false, 0, false), fanOut.getFailure(i));
+                continue;
+            }
+
+            UpsertStats stats = fanOut.getStats(i);
+            try {
+                transferToSuccess(session, srcReaderFactory, null, null, transitUri, false, ff, stats);
+            } catch (Exception e) {
+                failed.put(putRecoveryAttributes(session, ff, false, stats.getTotal(), false), e);
+            }
+        }
+
+        if (metadataCache != null && failed.values().stream().anyMatch(UpsertSQL::isMetadataFailure)) {
+            for (String table : fanOut.getTables()) {
+                metadataCache.invalidate(db, table);
+            }
+        }
+
+        return failed;
+    }
+
+    // SQLSTATE class 42 covers unknown tables and columns, as well as the other statement errors caused by a schema change
+    static boolean isMetadataFailure(Throwable e) {
+        for (Throwable t = e; t != null; t = t.getCause()) {
+            if (t instanceof SQLException) {
+                String state = ((SQLException) t).getSQLState();
+                if (state != null && state.startsWith("42")) {
+                    return true;
+                }
+            }
+        }
+
+        return false;
+    }
+
+    // records without a table name go to the FlowFile table
+    private static String tableOf(RecordPath tablePath, Record record, String defaultTable) {
+
+        Object value = tablePath.evaluate(record)
+                .getSelectedFields()
+                .findFirst()
+                .map(FieldValue::getValue)
+                .orElse(null);
+
+        String table = value != null ? value.toString().trim() : "";
+        return !table.isEmpty() ? table : defaultTable;
+    }
+
+    /**
+     * Upserts FlowFiles as a single batch, routing successful FlowFiles to success. Returns failed FlowFiles with the
+     * failure causes. If "advanceWatermark" is true and the entire batch succeeds, the watermark is advanced. Retries
+     * don't advance it, as the rows of the FlowFiles that failed again may be below the new value.
+     */
+    private Map<FlowFile, Exception> upsert(
+            ProcessContext context,
+            ProcessSession session,
+            boolean advanceWatermark,
+            RecordReaderFactory srcReaderFactory,
+            UpsertBuilder upserter,
+            RecordSetWriterFactory outcomeWriterFactory,
+            OutcomeRecordWriter outcomeWriter,
+            String transitUri,
+            List<FlowFile> flowFiles) {
+
+        long startedAt = System.currentTimeMillis();
+        UpsertBatch batch = upserter.createBatch();
+
+        for (FlowFile ff : flowFiles) {
+            int segment = batch.newSegment();
+
+            try (InputStream in = session.read(ff)) {
+                try (RecordReader reader = srcReaderFactory.createRecordReader(ff, in, getLogger())) {
+                    batch.append(segment, reader);
+                }
+            } catch (Exception e) {
+                batch.fail(segment, e);
+            }
+        }
+
+        batch.flush();
+
+        if (upserter.isSortMerge()) {
+            batch.mergeSpilled();
         }
+
+        if (upserter.isFullSync()) {
+            batch.deleteMissing();
+        }
+
+        batch.commit();
+
+        if (upserter.isFullSync() && !batch.isFailed(0)) {
+            session.adjustCounter("Rows deleted", batch.getStats(0).getDeleted(), false);
+        }
+
+        reportTimings(session, upserter.getTargetTable(), batch.size(), batch.getTimings(), System.currentTimeMillis() - startedAt);
+
+        if (advanceWatermark && upserter.getWatermark() != null && batch.getWatermarkValue() != null) {
+            advanceWatermark(context, upserter, batch.getWatermarkValue());
+        }
+
+        Map<FlowFile, Exception> failed = new LinkedHashMap<>();
+        for (int i = 0; i < flowFiles.size(); i++) {
+            FlowFile ff = flowFiles.get(i);
+
+            if (batch.isFailed(i)) {
+                failed.put(putRecoveryAttributes(session, ff, upserter.isFullSync(), batch.getCommittedRows(i), batch.isPartiallyCommitted(i)), batch.getFailure(i));
+                continue;
+            }
+
+            try {
+                transferToSuccess(session, srcReaderFactory, outcomeWriterFactory, outcomeWriter, transitUri, upserter.isFullSync(), ff, batch.getStats(i));
+            } catch (Exception e) {
+                failed.put(putRecoveryAttributes(session, ff, upserter.isFullSync(), batch.getCommittedRows(i), false), e);
+            }
+        }
+
+        return failed;
+    }
+
+    private void transferToSuccess(
+            ProcessSession session,
+            RecordReaderFactory srcReaderFactory,
+            RecordSetWriterFactory outcomeWriterFactory,
+            OutcomeRecordWriter outcomeWriter,
+            String transitUri,
+            boolean fullSync,
+            FlowFile ff,
+            UpsertStats stats) {
+
+        Map<String, String> attributes = new HashMap<>();
+
+        if (outcomeWriterFactory != null) {
+
+            // records are re-read from the original content and written as a stream, so that we don't have to
+            // keep them in memory
+            FlowFile original = ff;
+            ff = session.write(ff, (in, out) -> {
+                try (RecordReader reader = srcReaderFactory.createRecordReader(original, in, getLogger())) {
+
+                    RecordSchema outcomeSchema = outcomeWriter.outcomeSchema(reader.getSchema());
+                    RecordSchema writeSchema = outcomeWriterFactory.getSchema(original.getAttributes(), outcomeSchema);
+
+                    try (RecordSetWriter writer = outcomeWriterFactory.createWriter(getLogger(), writeSchema, out, original)) {
+                        WriteResult result = outcomeWriter.write(reader, writer, outcomeSchema, stats);
+                        attributes.putAll(result.getAttributes());
+                        attributes.put("record.count", String.valueOf(result.getRecordCount()));
+                        attributes.put(CoreAttributes.MIME_TYPE.key(), writer.getMimeType());
+                    }
+                } catch (SchemaNotFoundException | MalformedRecordException e) {
+                    throw new ProcessException("Failed to write record outcomes", e);
+                }
+            });
+        }
+
+        attributes.put(INSERTED_ATTRIBUTE, String.valueOf(stats.getInserted()));
+        attributes.put(UPDATED_ATTRIBUTE, String.valueOf(stats.getUpdated()));
+        attributes.put(SKIPPED_ATTRIBUTE, String.valueOf(stats.getSkipped()));
+        attributes.put(UPSERTED_ATTRIBUTE, String.valueOf(stats.getUpserted()));
+        attributes.put(COLLAPSED_ATTRIBUTE, String.valueOf(stats.getCollapsed()));
+
+        if (fullSync) {
+            attributes.put(DELETED_ATTRIBUTE, String.valueOf(stats.getDeleted()));
+        }
+
+        PhaseTimings timings = stats.getTimings();
+        for (UpsertPhase phase : UpsertPhase.values()) {
+            attributes.put(TIME_ATTRIBUTE_PREFIX + phase.name() + ".ms", String.valueOf(timings.getMillis(phase)));
+        }
+
+        session.adjustCounter("Rows inserted", stats.getInserted(), false);
+        session.adjustCounter("Rows updated", stats.getUpdated(), false);
+        session.adjustCounter("Rows skipped", stats.getSkipped(), false);
+        session.adjustCounter("Rows upserted", stats.getUpserted(), false);
+        session.adjustCounter("Rows collapsed", stats.getCollapsed(), false);
+
+        // left from a previous failure
+        if (ff.getAttribute(RECOVERY_ATTRIBUTE) != null) {
+            ff = session.removeAllAttributes(ff, new HashSet<>(asList(COMMITTED_ROWS_ATTRIBUTE, RECOVERY_ATTRIBUTE)));
+        }
+
+        ff = session.putAllAttributes(ff, attributes);
+        session.getProvenanceReporter().send(ff, transitUri, stats + " " + timings, timings.getTotalMillis());
+        session.transfer(ff, SUCCESS_RELATIONSHIP);
+    }
+
+    /**
+     * Tells whether a failed FlowFile can be saved again as is, or some of its records were already committed, either
+     * the leading ones, or "partiallyCommitted" ones of the failed chunk. A snapshot is always saved again as a whole,
+     * as skipping any of its records would delete them from the target.
+     */
+    private FlowFile putRecoveryAttributes(ProcessSession session, FlowFile ff, boolean fullSync, int committedRows, boolean partiallyCommitted) {
+
+        boolean resume = (committedRows > 0 || partiallyCommitted) && !fullSync;
+
+        Map<String, String> attributes = new HashMap<>();
+        attributes.put(COMMITTED_ROWS_ATTRIBUTE, String.valueOf(committedRows));
+        attributes.put(RECOVERY_ATTRIBUTE, resume ? RECOVERY_RESUME : RECOVERY_RESTART);
+        return session.putAllAttributes(ff, attributes);
+    }
+
+    private Watermark getWatermark(ProcessContext context, String targetTable) {
+
+        String column = context.getProperty(WATERMARK_COLUMN_PROPERTY).getValue();
+        if (column == null) {
+            return null;
+        }
+
+        try {
+            StateMap state = context.getStateManager().getState(Scope.CLUSTER);
+            return new Watermark(column, state.get(watermarkKey(targetTable, column)));
+        } catch (IOException e) {
+            throw new ProcessException("Failed to read the watermark of '" + targetTable + "'", e);
+        }
+    }
+
+    private void advanceWatermark(ProcessContext context, UpsertBuilder upserter, Object value) {
+
+        String column = upserter.getWatermark().getColumn();
+        String key = watermarkKey(upserter.getTargetTable(), column);
+        StateManager stateManager = context.getStateManager();
+
+        // concurrent tasks may advance the watermark at the same time, so only replace the state we've seen
+        try {
+            while (true) {
+                StateMap state = stateManager.getState(Scope.CLUSTER);
+                if (!new Watermark(column, state.get(key)).isBelow(value)) {
+                    return;
+                }
+
+                Map<String, String> newState = new HashMap<>(state.toMap());
+                newState.put(key, Watermark.format(value));
+
+                if (state.getVersion() < 0) {
+                    stateManager.setState(newState, Scope.CLUSTER);
+                    return;
+                }
+
+                if (stateManager.replace(state, newState, Scope.CLUSTER)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+
+            // not fatal, the records will be matched again on the next run
+            getLogger().warn("Failed to store the watermark of '{}'", new Object[]{upserter.getTargetTable(), e});
+        }
+    }
+
+    private static String watermarkKey(String targetTable, String column) {
+        return "watermark." + targetTable + "." + column;
+    }
+
+    /**
+     * Returns all FlowFiles of the next full snapshot, or an empty list if some of its fragments are not queued yet.
+     * A FlowFile without fragment attributes is a snapshot on its own.
+     */
+    private List<FlowFile> getSnapshot(ProcessContext context, ProcessSession session) {
+
+        FlowFile first = session.get();
+        if (first == null) {
+            return Collections.emptyList();
+        }
+
+        String fragmentId = first.getAttribute(FRAGMENT_ID_ATTRIBUTE);
+        String fragmentCount = first.getAttribute(FRAGMENT_COUNT_ATTRIBUTE);
+        if (fragmentId == null || fragmentCount == null) {
+            return Collections.singletonList(first);
+        }
+
+        List<FlowFile> snapshot = new ArrayList<>();
+        snapshot.add(first);
+        snapshot.addAll(session.get(ff -> fragmentId.equals(ff.getAttribute(FRAGMENT_ID_ATTRIBUTE))
+                ? FlowFileFilter.FlowFileFilterResult.ACCEPT_AND_CONTINUE
+                : FlowFileFilter.FlowFileFilterResult.REJECT_AND_CONTINUE));
+
+        int expected;
+        try {
+            expected = Integer.parseInt(fragmentCount);
+        } catch (NumberFormatException e) {
+            throw new ProcessException("Invalid '" + FRAGMENT_COUNT_ATTRIBUTE + "' attribute: " + fragmentCount, e);
+        }
+
+        if (snapshot.size() < expected) {
+            getLogger().debug("Waiting for the rest of snapshot {}: {} of {} fragments queued",
+                    new Object[]{fragmentId, snapshot.size(), expected});
+            session.rollback();
+            context.yield();
+            return Collections.emptyList();
+        }
+
+        return snapshot;
+    }
+
+    private void reportTimings(ProcessSession session, String targetTable, int flowFiles, PhaseTimings timings, long elapsedMillis) {
+
+        for (UpsertPhase phase : UpsertPhase.values()) {
+            session.adjustCounter("Time in " + phase.name() + " (ms)", timings.getMillis(phase), false);
+        }
+
+        long threshold = slowBatchThresholdMillis;
+        if (threshold > 0 && elapsedMillis > threshold) {
+            getLogger().warn("Slow upsert of {} FlowFile(s) to '{}': {} ms, phases: {}",
+                    new Object[]{flowFiles, targetTable, elapsedMillis, timings});
+        }
+    }
+
+    private String getTransitUri(DBCPService db) {
+
+        String uri = transitUri;
+        if (uri == null) {
+            try (Connection c = db.getConnection()) {
+                uri = c.getMetaData().getURL();
+            } catch (SQLException e) {
+                getLogger().warn("Failed to get the target DB URL", e);
+                return "jdbc:unknown";
+            }
+
+            transitUri = uri;
+        }
+
+        return uri;
+    }
+
+    @FunctionalInterface
+    private interface BatchUpsert {
+
+        Map<FlowFile, Exception> upsert(boolean advanceWatermark, List<FlowFile> flowFiles);
     }
 }
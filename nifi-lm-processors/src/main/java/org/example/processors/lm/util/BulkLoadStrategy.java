@@ -0,0 +1,11 @@
+package org.example.processors.lm.util;
+
+public enum BulkLoadStrategy {
+    none,
+
+    // PostgreSQL "COPY .. FROM STDIN"
+    postgresql_copy,
+
+    // H2 "CSVREAD", mostly useful for testing
+    h2_csvread;
+}
@@ -0,0 +1,21 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Inserts rows with a DB-specific bulk loading mechanism instead of INSERT statements. Runs within the transaction of
+ * the provided connection.
+ */
+public interface BulkLoader {
+
+    /**
+     * Inserts a subset of the DataFrame rows into the table.
+     *
+     * @param rows positions of the rows to insert
+     * @param len  the number of positions in the "rows" array to use
+     */
+    void load(Connection connection, String table, DataFrame df, int[] rows, int len) throws SQLException;
+}
@@ -0,0 +1,234 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.Series;
+import com.nhl.dflib.series.ArraySeries;
+import com.nhl.dflib.series.BooleanArraySeries;
+import com.nhl.dflib.series.DoubleArraySeries;
+import com.nhl.dflib.series.IntArraySeries;
+import com.nhl.dflib.series.LongArraySeries;
+
+import java.util.Arrays;
+
+/**
+ * A growable column of values that stores numbers and booleans in primitive arrays. Primitive columns can't store
+ * nulls, so on the first null value a primitive column is converted to an object column.
+ */
+abstract class ColumnBuilder {
+
+    private static final int INITIAL_CAPACITY = 16;
+
+    protected int size;
+
+    static ColumnBuilder forType(Class<?> type) {
+
+        if (Long.class.equals(type)) {
+            return new LongColumnBuilder(INITIAL_CAPACITY);
+        }
+
+        if (Integer.class.equals(type)) {
+            return new IntColumnBuilder(INITIAL_CAPACITY);
+        }
+
+        if (Double.class.equals(type)) {
+            return new DoubleColumnBuilder(INITIAL_CAPACITY);
+        }
+
+        if (Boolean.class.equals(type)) {
+            return new BooleanColumnBuilder(INITIAL_CAPACITY);
+        }
+
+        return new ObjectColumnBuilder(INITIAL_CAPACITY);
+    }
+
+    protected static int grow(int capacity) {
+        return capacity * 2;
+    }
+
+    /**
+     * Appends a value to the column. Returns the builder that should be used for the subsequent appends. It will be
+     * a different builder if this builder can not store the value.
+     */
+    abstract ColumnBuilder add(Object value);
+
+    abstract Object get(int i);
+
+    abstract Series<?> toSeries();
+
+    int size() {
+        return size;
+    }
+
+    protected ColumnBuilder toObjectBuilder() {
+        ObjectColumnBuilder builder = new ObjectColumnBuilder(Math.max(INITIAL_CAPACITY, grow(size)));
+        for (int i = 0; i < size; i++) {
+            builder.add(get(i));
+        }
+
+        return builder;
+    }
+
+    static final class ObjectColumnBuilder extends ColumnBuilder {
+
+        private Object[] data;
+
+        ObjectColumnBuilder(int capacity) {
+            this.data = new Object[capacity];
+        }
+
+        @Override
+        ColumnBuilder add(Object value) {
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+
+            data[size++] = value;
+            return this;
+        }
+
+        @Override
+        Object get(int i) {
+            return data[i];
+        }
+
+        @Override
+        Series<?> toSeries() {
+            return new ArraySeries<>(data, 0, size);
+        }
+    }
+
+    static final class LongColumnBuilder extends ColumnBuilder {
+
+        private long[] data;
+
+        LongColumnBuilder(int capacity) {
+            this.data = new long[capacity];
+        }
+
+        @Override
+        ColumnBuilder add(Object value) {
+
+            if (!(value instanceof Long)) {
+                return toObjectBuilder().add(value);
+            }
+
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+
+            data[size++] = (Long) value;
+            return this;
+        }
+
+        @Override
+        Object get(int i) {
+            return data[i];
+        }
+
+        @Override
+        Series<?> toSeries() {
+            return new LongArraySeries(data, 0, size);
+        }
+    }
+
+    static final class IntColumnBuilder extends ColumnBuilder {
+
+        private int[] data;
+
+        IntColumnBuilder(int capacity) {
+            this.data = new int[capacity];
+        }
+
+        @Override
+        ColumnBuilder add(Object value) {
+
+            if (!(value instanceof Integer)) {
+                return toObjectBuilder().add(value);
+            }
+
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+
+            data[size++] = (Integer) value;
+            return this;
+        }
+
+        @Override
+        Object get(int i) {
+            return data[i];
+        }
+
+        @Override
+        Series<?> toSeries() {
+            return new IntArraySeries(data, 0, size);
+        }
+    }
+
+    static final class DoubleColumnBuilder extends ColumnBuilder {
+
+        private double[] data;
+
+        DoubleColumnBuilder(int capacity) {
+            this.data = new double[capacity];
+        }
+
+        @Override
+        ColumnBuilder add(Object value) {
+
+            if (!(value instanceof Double)) {
+                return toObjectBuilder().add(value);
+            }
+
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+
+            data[size++] = (Double) value;
+            return this;
+        }
+
+        @Override
+        Object get(int i) {
+            return data[i];
+        }
+
+        @Override
+        Series<?> toSeries() {
+            return new DoubleArraySeries(data, 0, size);
+        }
+    }
+
+    static final class BooleanColumnBuilder extends ColumnBuilder {
+
+        private boolean[] data;
+
+        BooleanColumnBuilder(int capacity) {
+            this.data = new boolean[capacity];
+        }
+
+        @Override
+        ColumnBuilder add(Object value) {
+
+            if (!(value instanceof Boolean)) {
+                return toObjectBuilder().add(value);
+            }
+
+            if (size == data.length) {
+                data = Arrays.copyOf(data, grow(size));
+            }
+
+            data[size++] = (Boolean) value;
+            return this;
+        }
+
+        @Override
+        Object get(int i) {
+            return data[i];
+        }
+
+        @Override
+        Series<?> toSeries() {
+            return new BooleanArraySeries(data, 0, size);
+        }
+    }
+}
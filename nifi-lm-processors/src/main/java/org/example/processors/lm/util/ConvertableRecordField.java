@@ -8,9 +8,12 @@ import org.apache.nifi.serialization.record.Record;
 import org.apache.nifi.serialization.record.RecordField;
 import org.apache.nifi.serialization.record.RecordSchema;
 
+import java.math.BigDecimal;
 import java.sql.Types;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
 import java.util.ArrayList;
 import java.util.List;
 
@@ -21,6 +24,7 @@ public class ConvertableRecordField {
 
     private RecordField field;
     private RecordFieldConverter converter;
+    private Class<?> targetType;
 
     public static Index createIndex(ConvertableRecordField[] fields) {
         String[] labels = new String[fields.length];
@@ -49,40 +53,80 @@ public class ConvertableRecordField {
             }
 
             DbColumnMetadata targetColumn = targetTable.getColumn(name);
-            RecordFieldConverter converter = RecordFieldConverter.converter(typeForJdbcType(targetColumn.getType()));
-            ConvertableRecordField field = new ConvertableRecordField(schema.getField(name).get(), converter);
+            Class<?> targetType = typeForJdbcType(targetColumn.getType());
+            RecordField recordField = schema.getField(name).get();
+
+            // a converter per field, so that date/time formats are resolved once and not for every value
+            RecordFieldConverter converter = RecordFieldConverter.converter(targetType, recordField.getDataType().getFormat());
+            ConvertableRecordField field = new ConvertableRecordField(recordField, converter, targetType);
             fields.add(field);
         }
 
         return fields.toArray(new ConvertableRecordField[0]);
     }
 
-    private static Class<?> typeForJdbcType(int jdbcType) {
+    // unknown types are passed to the DB as Strings. Those are fine as parameters, but never compare equal to the
+    // values read back from the DB, so the rows of such tables are always updated
+    static Class<?> typeForJdbcType(int jdbcType) {
 
         switch (jdbcType) {
             case Types.BIGINT:
                 return Long.class;
             case Types.INTEGER:
+            case Types.SMALLINT:
+            case Types.TINYINT:
                 return Integer.class;
+            case Types.DECIMAL:
+            case Types.NUMERIC:
+                return BigDecimal.class;
+            // JDBC FLOAT is a double precision type
+            case Types.DOUBLE:
+            case Types.FLOAT:
+                return Double.class;
+            case Types.REAL:
+                return Float.class;
+            case Types.BOOLEAN:
+            case Types.BIT:
+                return Boolean.class;
             case Types.DATE:
                 return LocalDate.class;
+            case Types.TIME:
+                return LocalTime.class;
             case Types.TIMESTAMP:
                 return LocalDateTime.class;
+            case Types.TIMESTAMP_WITH_TIMEZONE:
+                return OffsetDateTime.class;
+            case Types.BINARY:
+            case Types.VARBINARY:
+            case Types.LONGVARBINARY:
+                return byte[].class;
             default:
                 return String.class;
         }
     }
 
     public ConvertableRecordField(RecordField field, RecordFieldConverter converter) {
+        this(field, converter, Object.class);
+    }
+
+    public ConvertableRecordField(RecordField field, RecordFieldConverter converter, Class<?> targetType) {
         this.field = field;
         this.converter = converter;
+        this.targetType = targetType;
     }
 
     public Object convert(Record record) {
-        return converter.convert(field.getDataType(), record.getAsString(field.getFieldName()));
+        return converter.convertValue(field.getDataType(), record.getValue(field));
     }
 
     public String getName() {
         return field.getFieldName();
     }
+
+    /**
+     * Returns the Java type of the converted values. Null values are allowed regardless of the type.
+     */
+    public Class<?> getTargetType() {
+        return targetType;
+    }
 }
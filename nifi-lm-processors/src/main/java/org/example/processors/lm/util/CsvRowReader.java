@@ -0,0 +1,118 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+
+import java.io.Reader;
+import java.time.LocalDateTime;
+
+/**
+ * Streams a subset of DataFrame rows as CSV, formatting one row at a time. All non-null values are quoted, so that
+ * nulls can be told apart from empty strings.
+ */
+class CsvRowReader extends Reader {
+
+    private static final char[] HEX = "0123456789abcdef".toCharArray();
+
+    private final Series<?>[] columns;
+    private final int[] rows;
+    private final int len;
+    private final String nullValue;
+    private final String binaryPrefix;
+
+    private final StringBuilder buffer;
+    private int bufferPos;
+    private int next;
+
+    /**
+     * @param nullValue    an unquoted string representing null
+     * @param binaryPrefix a prefix of hex-encoded binary values
+     */
+    CsvRowReader(DataFrame df, int[] rows, int len, String nullValue, String binaryPrefix) {
+
+        int w = df.width();
+        this.columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        this.rows = rows;
+        this.len = len;
+        this.nullValue = nullValue;
+        this.binaryPrefix = binaryPrefix;
+        this.buffer = new StringBuilder(128);
+    }
+
+    @Override
+    public int read(char[] cbuf, int off, int n) {
+
+        if (n == 0) {
+            return 0;
+        }
+
+        if (bufferPos == buffer.length()) {
+            if (next == len) {
+                return -1;
+            }
+
+            buffer.setLength(0);
+            bufferPos = 0;
+            appendRow(rows[next++]);
+        }
+
+        int count = Math.min(n, buffer.length() - bufferPos);
+        buffer.getChars(bufferPos, bufferPos + count, cbuf, off);
+        bufferPos += count;
+        return count;
+    }
+
+    @Override
+    public void close() {
+        // nothing to close
+    }
+
+    private void appendRow(int row) {
+        for (int j = 0; j < columns.length; j++) {
+            if (j > 0) {
+                buffer.append(',');
+            }
+
+            appendValue(columns[j].get(row));
+        }
+
+        buffer.append('\n');
+    }
+
+    private void appendValue(Object value) {
+
+        if (value == null) {
+            buffer.append(nullValue);
+            return;
+        }
+
+        buffer.append('"');
+
+        if (value instanceof byte[]) {
+            buffer.append(binaryPrefix);
+            for (byte b : (byte[]) value) {
+                buffer.append(HEX[(b >> 4) & 0xF]).append(HEX[b & 0xF]);
+            }
+        } else {
+
+            // use the SQL timestamp format instead of ISO 8601, as not every DB accepts the "T" separator
+            String string = value instanceof LocalDateTime
+                    ? value.toString().replace('T', ' ')
+                    : value.toString();
+
+            for (int i = 0; i < string.length(); i++) {
+                char c = string.charAt(i);
+                if (c == '"') {
+                    buffer.append('"');
+                }
+                buffer.append(c);
+            }
+        }
+
+        buffer.append('"');
+    }
+}
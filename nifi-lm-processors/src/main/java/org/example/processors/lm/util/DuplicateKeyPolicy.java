@@ -0,0 +1,16 @@
+package org.example.processors.lm.util;
+
+public enum DuplicateKeyPolicy {
+
+    // all rows are saved, even if they have the same key
+    keep_all,
+
+    // only the last row with a given key is saved
+    last_wins,
+
+    // only the first row with a given key is saved
+    first_wins,
+
+    // rows with duplicate keys fail the save
+    fail;
+}
@@ -0,0 +1,100 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+
+import java.util.Objects;
+
+/**
+ * Finds rows with duplicate keys in a DataFrame. Rows are grouped by sorting their key hashes, and the duplicates are
+ * confirmed by comparing the actual key values, so hash collisions can't make distinct keys look the same.
+ */
+final class DuplicateKeys {
+
+    private DuplicateKeys() {
+    }
+
+    /**
+     * Returns a flag per row that is true for the rows superseded by another row with the same key: all but the last
+     * such row if "lastWins" is true, or all but the first one otherwise. Rows with null key values are never
+     * duplicates, as they can't match any target row.
+     */
+    static boolean[] superseded(DataFrame df, String[] keyColumns, boolean lastWins) {
+
+        String[] labels = df.getColumnsIndex().getLabels();
+        int[] keyPositions = TargetMatcher.positions(labels, keyColumns);
+
+        Series<?>[] keys = new Series[keyPositions.length];
+        for (int k = 0; k < keyPositions.length; k++) {
+            keys[k] = df.getColumn(keyPositions[k]);
+        }
+
+        long[] hashes = new RowDigester(labels, keyColumns).keyHashes(df);
+
+        // the sort is stable, so the rows with the same hash remain in their original order
+        int[] order = KeyOrder.sortedOrder(hashes);
+
+        int h = order.length;
+        boolean[] superseded = new boolean[h];
+
+        for (int start = 0; start < h; ) {
+            int end = start + 1;
+            while (end < h && hashes[order[end]] == hashes[order[start]]) {
+                end++;
+            }
+
+            if (end - start > 1) {
+                markRun(keys, order, start, end, lastWins, superseded);
+            }
+
+            start = end;
+        }
+
+        return superseded;
+    }
+
+    private static void markRun(Series<?>[] keys, int[] order, int start, int end, boolean lastWins, boolean[] superseded) {
+
+        for (int a = start; a < end; a++) {
+            int i = order[a];
+            if (superseded[i] || hasNulls(keys, i)) {
+                continue;
+            }
+
+            int winner = i;
+            for (int b = a + 1; b < end; b++) {
+                int j = order[b];
+                if (superseded[j] || !sameKey(keys, i, j)) {
+                    continue;
+                }
+
+                if (lastWins) {
+                    superseded[winner] = true;
+                    winner = j;
+                } else {
+                    superseded[j] = true;
+                }
+            }
+        }
+    }
+
+    private static boolean hasNulls(Series<?>[] keys, int row) {
+        for (Series<?> k : keys) {
+            if (k.get(row) == null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    private static boolean sameKey(Series<?>[] keys, int row1, int row2) {
+        for (Series<?> k : keys) {
+            if (!Objects.equals(JdbcValues.normalize(k.get(row1)), JdbcValues.normalize(k.get(row2)))) {
+                return false;
+            }
+        }
+
+        return true;
+    }
+}
@@ -0,0 +1,63 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.io.IOException;
+import java.io.Reader;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+
+/**
+ * Inserts rows with H2 "INSERT .. SELECT .. FROM CSVREAD(..)". As CSVREAD can only read files, the rows are written
+ * to a temporary CSV file first. A stand-in for the production bulk loaders to test the bulk load path on an
+ * embedded DB.
+ */
+public class H2CsvBulkLoader implements BulkLoader {
+
+    private static final String NULL_VALUE = "\\N";
+
+    @Override
+    public void load(Connection connection, String table, DataFrame df, int[] rows, int len) throws SQLException {
+
+        String columns = String.join(",", df.getColumnsIndex().getLabels());
+        String sql = "INSERT INTO " + table + " (" + columns + ") SELECT * FROM CSVREAD(?, ?, ?)";
+
+        Path file = null;
+        try {
+            file = Files.createTempFile("h2-bulk-", ".csv");
+            writeCsv(file, new CsvRowReader(df, rows, len, NULL_VALUE, ""));
+
+            try (PreparedStatement st = connection.prepareStatement(sql)) {
+                st.setString(1, file.toString());
+                st.setString(2, columns);
+                st.setString(3, "charset=UTF-8 nullString=" + NULL_VALUE);
+                st.executeUpdate();
+            }
+        } catch (IOException e) {
+            throw new SQLException("Failed to write bulk load file", e);
+        } finally {
+            if (file != null) {
+                try {
+                    Files.deleteIfExists(file);
+                } catch (IOException e) {
+                    // ignore, it is a temp file
+                }
+            }
+        }
+    }
+
+    private static void writeCsv(Path file, Reader csv) throws IOException {
+        char[] buffer = new char[8192];
+        try (Writer out = Files.newBufferedWriter(file, StandardCharsets.UTF_8)) {
+            int read;
+            while ((read = csv.read(buffer, 0, buffer.length)) >= 0) {
+                out.write(buffer, 0, read);
+            }
+        }
+    }
+}
@@ -0,0 +1,113 @@
+package org.example.processors.lm.util;
+
+import java.math.BigDecimal;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.util.Locale;
+import java.util.Objects;
+
+/**
+ * Helpers to bind converted values as PreparedStatement parameters and to compare them with the values read from
+ * the DB, as well as to stream the values of large tables.
+ */
+public final class JdbcValues {
+
+    private JdbcValues() {
+    }
+
+    /**
+     * Converts a value read from JDBC to a type that can be compared with a converted record value. JDBC date/time
+     * types are converted to their java.time equivalents, and integral numbers to Long. Decimals are stripped of
+     * trailing zeros, as the DB returns them with the column scale. Date/times with time zone are converted to the
+     * local date/time in the JVM time zone, same as JDBC does for Timestamps read from such columns.
+     */
+    public static Object normalize(Object value) {
+
+        if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+            return ((Number) value).longValue();
+        }
+
+        if (value instanceof BigDecimal) {
+            return ((BigDecimal) value).stripTrailingZeros();
+        }
+
+        if (value instanceof OffsetDateTime) {
+            return ((OffsetDateTime) value).atZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        }
+
+        if (value instanceof ZonedDateTime) {
+            return ((ZonedDateTime) value).withZoneSameInstant(ZoneId.systemDefault()).toLocalDateTime();
+        }
+
+        if (value instanceof java.sql.Date) {
+            return ((java.sql.Date) value).toLocalDate();
+        }
+
+        if (value instanceof Timestamp) {
+            return ((Timestamp) value).toLocalDateTime();
+        }
+
+        if (value instanceof Time) {
+            return ((Time) value).toLocalTime();
+        }
+
+        return value;
+    }
+
+    /**
+     * Compares a converted record value with a value read from the DB.
+     */
+    public static boolean same(Object recordValue, Object dbValue) {
+        // "deep" to compare binary values by content
+        return Objects.deepEquals(normalize(recordValue), normalize(dbValue));
+    }
+
+    /**
+     * Sets the number of rows fetched at once by a statement that streams a whole table. MySQL Connector/J ignores
+     * the fetch size and reads all rows in memory, unless the connection URL has "useCursorFetch=true", so without it
+     * the driver is switched to reading the rows one by one. The statement connection can't be used for anything
+     * else until such a result set is closed.
+     */
+    public static void setStreamingFetchSize(Statement st, int fetchSize) throws SQLException {
+
+        DatabaseMetaData metaData = st.getConnection().getMetaData();
+        String product = metaData.getDatabaseProductName().toLowerCase(Locale.ROOT);
+        String url = metaData.getURL() != null ? metaData.getURL().toLowerCase(Locale.ROOT) : "";
+
+        if (product.contains("mysql") && !url.contains("usecursorfetch=true")) {
+            st.setFetchSize(Integer.MIN_VALUE);
+        } else {
+            st.setFetchSize(fetchSize);
+        }
+    }
+
+    public static void bind(PreparedStatement st, int position, Object value, int jdbcType) throws SQLException {
+
+        if (value == null) {
+            st.setNull(position, jdbcType);
+        }
+
+        // java.time types are not supported by all the drivers, so convert them to the JDBC types
+        else if (value instanceof LocalDate) {
+            st.setDate(position, java.sql.Date.valueOf((LocalDate) value));
+        } else if (value instanceof LocalDateTime) {
+            st.setTimestamp(position, Timestamp.valueOf((LocalDateTime) value));
+        } else if (value instanceof LocalTime) {
+            st.setTime(position, Time.valueOf((LocalTime) value));
+        } else if (value instanceof OffsetDateTime) {
+            st.setTimestamp(position, Timestamp.from(((OffsetDateTime) value).toInstant()));
+        } else {
+            st.setObject(position, value);
+        }
+    }
+}
@@ -0,0 +1,10 @@
+package org.example.processors.lm.util;
+
+public enum JoinMode {
+
+    // source chunks are matched against the target rows with the same keys, fetched by key
+    in_memory,
+
+    // source rows are spilled to disk sorted by key, and merge-joined with the entire target table read in key order
+    sort_merge;
+}
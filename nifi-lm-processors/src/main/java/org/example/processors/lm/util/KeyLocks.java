@@ -0,0 +1,106 @@
+package org.example.processors.lm.util;
+
+import java.lang.ref.Reference;
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.WeakReference;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * In-JVM locks on row keys of a table, striped by key hash. Concurrent saves of overlapping keys are serialized, while
+ * saves of disjoint keys mostly proceed in parallel. Stripes are always acquired in ascending order, so concurrent
+ * lockers can't deadlock each other.
+ */
+public class KeyLocks {
+
+    // locks are only referenced weakly, so that the locks of the tables no longer saved to are garbage collected
+    private static final Map<String, TableRef> LOCKS = new HashMap<>();
+    private static final ReferenceQueue<KeyLocks> COLLECTED = new ReferenceQueue<>();
+
+    private final ReentrantLock[] stripes;
+
+    KeyLocks(int stripes) {
+        this.stripes = new ReentrantLock[stripes];
+        for (int i = 0; i < stripes; i++) {
+            this.stripes[i] = new ReentrantLock();
+        }
+    }
+
+    /**
+     * Returns shared locks for the named table, creating them on first access. The stripe count of the first caller
+     * is used for all subsequent callers, so that they all coordinate on the same locks. The caller must keep the
+     * returned locks referenced while it holds any stripes.
+     */
+    public static KeyLocks forTable(String name, int stripes) {
+        synchronized (LOCKS) {
+            removeCollected();
+
+            TableRef ref = LOCKS.get(name);
+            KeyLocks locks = ref != null ? ref.get() : null;
+            if (locks == null) {
+                locks = new KeyLocks(stripes);
+                LOCKS.put(name, new TableRef(name, locks));
+            }
+
+            return locks;
+        }
+    }
+
+    private static void removeCollected() {
+        for (Reference<? extends KeyLocks> ref = COLLECTED.poll(); ref != null; ref = COLLECTED.poll()) {
+            TableRef collected = (TableRef) ref;
+
+            // the table may have new locks already
+            LOCKS.remove(collected.name, collected);
+        }
+    }
+
+    /**
+     * Acquires the stripes covering the provided key hashes, waiting if needed.
+     *
+     * @return the acquired stripes to pass to {@link #unlock(int[])}
+     */
+    public int[] lock(long[] keyHashes) throws InterruptedException {
+
+        BitSet needed = new BitSet(stripes.length);
+        for (long h : keyHashes) {
+            needed.set((int) Long.remainderUnsigned(h, stripes.length));
+        }
+
+        int[] acquired = needed.stream().toArray();
+        for (int i = 0; i < acquired.length; i++) {
+            try {
+                stripes[acquired[i]].lockInterruptibly();
+            } catch (InterruptedException e) {
+                for (int j = i - 1; j >= 0; j--) {
+                    stripes[acquired[j]].unlock();
+                }
+                throw e;
+            }
+        }
+
+        return acquired;
+    }
+
+    public void unlock(int[] acquired) {
+        for (int i = acquired.length - 1; i >= 0; i--) {
+            stripes[acquired[i]].unlock();
+        }
+    }
+
+    int getStripeCount() {
+        return stripes.length;
+    }
+
+    private static class TableRef extends WeakReference<KeyLocks> {
+
+        final String name;
+
+        TableRef(String name, KeyLocks locks) {
+            super(locks, COLLECTED);
+            this.name = name;
+        }
+    }
+}
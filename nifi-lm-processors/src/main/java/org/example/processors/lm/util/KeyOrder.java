@@ -0,0 +1,57 @@
+package org.example.processors.lm.util;
+
+/**
+ * Orders rows by their key hashes. Saving rows of concurrent transactions in the same global order makes them acquire
+ * DB row locks in the same order, avoiding deadlocks.
+ */
+final class KeyOrder {
+
+    private KeyOrder() {
+    }
+
+    /**
+     * Returns row positions sorted by the unsigned value of their key hashes. The sort is stable.
+     */
+    static int[] sortedOrder(long[] keyHashes) {
+
+        int len = keyHashes.length;
+        int[] order = new int[len];
+        for (int i = 0; i < len; i++) {
+            order[i] = i;
+        }
+
+        if (len > 1) {
+            mergeSort(keyHashes, order, new int[len], 0, len);
+        }
+
+        return order;
+    }
+
+    private static void mergeSort(long[] keys, int[] order, int[] buffer, int from, int to) {
+
+        if (to - from < 2) {
+            return;
+        }
+
+        int mid = (from + to) >>> 1;
+        mergeSort(keys, order, buffer, from, mid);
+        mergeSort(keys, order, buffer, mid, to);
+
+        // already ordered
+        if (Long.compareUnsigned(keys[order[mid - 1]], keys[order[mid]]) <= 0) {
+            return;
+        }
+
+        System.arraycopy(order, from, buffer, from, to - from);
+
+        int l = from;
+        int r = mid;
+        for (int i = from; i < to; i++) {
+            if (r >= to || (l < mid && Long.compareUnsigned(keys[buffer[l]], keys[buffer[r]]) <= 0)) {
+                order[i] = buffer[l++];
+            } else {
+                order[i] = buffer[r++];
+            }
+        }
+    }
+}
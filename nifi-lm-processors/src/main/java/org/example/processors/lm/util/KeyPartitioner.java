@@ -0,0 +1,56 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.util.Arrays;
+
+/**
+ * Splits DataFrame rows into disjoint partitions by the hash of their key columns, so that rows with the same key
+ * always end up in the same partition. Rows without key columns are distributed round-robin.
+ */
+public class KeyPartitioner {
+
+    private final String[] keyColumns;
+    private final int partitions;
+
+    public KeyPartitioner(String[] keyColumns, int partitions) {
+        this.keyColumns = keyColumns;
+        this.partitions = partitions;
+    }
+
+    /**
+     * @return an array of row positions per partition. Empty partitions are omitted.
+     */
+    public int[][] partition(DataFrame df) {
+
+        int h = df.height();
+        int[] partitionOf = new int[h];
+        int[] sizes = new int[partitions];
+
+        if (keyColumns == null) {
+            for (int i = 0; i < h; i++) {
+                partitionOf[i] = i % partitions;
+                sizes[partitionOf[i]]++;
+            }
+        } else {
+            long[] keyHashes = new RowDigester(df.getColumnsIndex().getLabels(), keyColumns).keyHashes(df);
+            for (int i = 0; i < h; i++) {
+                partitionOf[i] = (int) Long.remainderUnsigned(keyHashes[i], partitions);
+                sizes[partitionOf[i]]++;
+            }
+        }
+
+        int[][] rows = new int[partitions][];
+        for (int p = 0; p < partitions; p++) {
+            rows[p] = new int[sizes[p]];
+        }
+
+        int[] filled = new int[partitions];
+        for (int i = 0; i < h; i++) {
+            int p = partitionOf[i];
+            rows[p][filled[p]++] = i;
+        }
+
+        return Arrays.stream(rows).filter(r -> r.length > 0).toArray(int[][]::new);
+    }
+}
@@ -0,0 +1,94 @@
+package org.example.processors.lm.util;
+
+/**
+ * A compact set of primitive longs, using open addressing over a single long array. Takes 8 to 16 bytes per element,
+ * compared to ~60 bytes per element of a HashSet of Longs.
+ */
+class LongHashSet {
+
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    private long[] slots;
+    private int size;
+    private boolean hasZero;
+
+    LongHashSet() {
+        this.slots = new long[MIN_CAPACITY];
+    }
+
+    void add(long value) {
+
+        // 0 marks an empty slot, so it is tracked separately
+        if (value == 0) {
+            if (!hasZero) {
+                hasZero = true;
+                size++;
+            }
+            return;
+        }
+
+        // keep the load factor under 0.5
+        if ((size + 1) * 2 > slots.length) {
+            resize();
+        }
+
+        if (insert(slots, value)) {
+            size++;
+        }
+    }
+
+    boolean contains(long value) {
+
+        if (value == 0) {
+            return hasZero;
+        }
+
+        int mask = slots.length - 1;
+        for (int slot = slot(value, mask); ; slot = (slot + 1) & mask) {
+            long v = slots[slot];
+            if (v == 0) {
+                return false;
+            }
+
+            if (v == value) {
+                return true;
+            }
+        }
+    }
+
+    int size() {
+        return size;
+    }
+
+    private static boolean insert(long[] slots, long value) {
+        int mask = slots.length - 1;
+        for (int slot = slot(value, mask); ; slot = (slot + 1) & mask) {
+            long v = slots[slot];
+            if (v == 0) {
+                slots[slot] = value;
+                return true;
+            }
+
+            if (v == value) {
+                return false;
+            }
+        }
+    }
+
+    private void resize() {
+        long[] newSlots = new long[slots.length * 2];
+        for (long v : slots) {
+            if (v != 0) {
+                insert(newSlots, v);
+            }
+        }
+
+        this.slots = newSlots;
+    }
+
+    private static int slot(long value, int mask) {
+        // the values are usually hashes already, still mix the bits in case they are not
+        long h = value * 0x9E3779B97F4A7C15L;
+        return (int) (h >>> 32) & mask;
+    }
+}
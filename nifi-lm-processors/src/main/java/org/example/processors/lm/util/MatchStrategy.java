@@ -1,5 +1,12 @@
 package org.example.processors.lm.util;
 
 public enum MatchStrategy {
-    pk, key_columns, insert_only;
+    pk, key_columns, insert_only,
+
+    // matches rows by PK like "pk", and treats the input as a complete snapshot of the table, deleting target rows
+    // that are not in the input
+    full_sync,
+
+    // strategies that match rows in the DB using dialect-specific "upsert" statements instead of reading them first
+    native_pk, native_key_columns;
 }
@@ -0,0 +1,355 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+
+import java.sql.Connection;
+import java.sql.DatabaseMetaData;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.function.Function;
+
+/**
+ * Saves a DataFrame with a single batched "upsert" statement in the target DB dialect, without reading the existing
+ * rows first. Unchanged rows are not updated. Depending on the dialect, the exact outcome of a changed row may not be
+ * known, in which case it is reported as {@link RowOutcome#upserted}.
+ */
+public class NativeUpsertSaver implements RowSaver {
+
+    private final String table;
+    private final String[] keyColumns;
+    private final DbTableMetadata tableMetadata;
+
+    public NativeUpsertSaver(DbTableMetadata tableMetadata, String table, String[] keyColumns) {
+        this.tableMetadata = tableMetadata;
+        this.table = table;
+        this.keyColumns = keyColumns;
+    }
+
+    @Override
+    public RowOutcome[] save(Connection connection, DataFrame df, PhaseTimings timings) throws SQLException {
+
+        String[] columns = df.getColumnsIndex().getLabels();
+        for (String k : keyColumns) {
+            if (!contains(columns, k)) {
+                throw new IllegalArgumentException("Key column '" + k + "' is not present in the data");
+            }
+        }
+
+        Dialect dialect = Dialect.detect(connection.getMetaData());
+        String sql = dialect.upsertSql(table, columns, valueColumns(columns));
+
+        int[] jdbcTypes = new int[columns.length];
+        Series<?>[] series = new Series[columns.length];
+        for (int j = 0; j < columns.length; j++) {
+            jdbcTypes[j] = tableMetadata.getColumn(columns[j]).getType();
+            series[j] = df.getColumn(j);
+        }
+
+        long t0 = System.nanoTime();
+
+        int[] counts;
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+
+            int h = df.height();
+            for (int i = 0; i < h; i++) {
+                for (int j = 0; j < columns.length; j++) {
+                    JdbcValues.bind(st, j + 1, series[j].get(i), jdbcTypes[j]);
+                }
+
+                st.addBatch();
+            }
+
+            counts = st.executeBatch();
+        }
+
+        timings.add(UpsertPhase.write, System.nanoTime() - t0);
+
+        RowOutcome[] outcomes = new RowOutcome[counts.length];
+        for (int i = 0; i < counts.length; i++) {
+            outcomes[i] = dialect.outcome(counts[i]);
+        }
+
+        return outcomes;
+    }
+
+    private List<String> valueColumns(String[] columns) {
+        List<String> valueColumns = new ArrayList<>(columns.length);
+
+        for (String c : columns) {
+            if (!isKey(c)) {
+                valueColumns.add(c);
+            }
+        }
+
+        return valueColumns;
+    }
+
+    private boolean isKey(String column) {
+        return contains(keyColumns, column);
+    }
+
+    private static boolean contains(String[] columns, String column) {
+        for (String c : columns) {
+            if (c.equalsIgnoreCase(column)) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    enum Dialect {
+
+        postgresql {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+
+                StringBuilder sql = insertSql(table + " AS t", columns)
+                        .append(" ON CONFLICT (").append(String.join(", ", keyColumns(columns, valueColumns))).append(")");
+
+                if (valueColumns.isEmpty()) {
+                    return sql.append(" DO NOTHING").toString();
+                }
+
+                sql.append(" DO UPDATE SET ");
+                appendList(sql, valueColumns, c -> c + " = EXCLUDED." + c);
+
+                // skip no-op updates, so that they are not counted as changes and don't generate WAL
+                sql.append(" WHERE (");
+                appendList(sql, valueColumns, c -> "t." + c);
+                sql.append(") IS DISTINCT FROM (");
+                appendList(sql, valueColumns, c -> "EXCLUDED." + c);
+                return sql.append(")").toString();
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+                return count == 0 ? RowOutcome.skipped : RowOutcome.upserted;
+            }
+        },
+
+        // MySQL with the default "useAffectedRows=false" connection setting
+        mysql {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+
+                StringBuilder sql = insertSql(table, columns).append(" ON DUPLICATE KEY UPDATE ");
+
+                // MySQL uses any unique key to detect conflicts, so the key columns are not a part of the statement
+                if (valueColumns.isEmpty()) {
+                    String key = keyColumns(columns, valueColumns).get(0);
+                    return sql.append(key).append(" = ").append(key).toString();
+                }
+
+                appendList(sql, valueColumns, c -> c + " = VALUES(" + c + ")");
+                return sql.toString();
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+
+                // 2 - updated, 1 - inserted or unchanged, as the count includes the rows found rather than changed
+                switch (count) {
+                    case 0:
+                        return RowOutcome.skipped;
+                    case 2:
+                        return RowOutcome.updated;
+                    default:
+                        return RowOutcome.upserted;
+                }
+            }
+        },
+
+        // MySQL with the "useAffectedRows=true" connection setting
+        mysql_affected_rows {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+                return mysql.upsertSql(table, columns, valueColumns);
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+
+                // 1 - inserted, 2 - updated, 0 - unchanged
+                switch (count) {
+                    case 0:
+                        return RowOutcome.skipped;
+                    case 1:
+                        return RowOutcome.inserted;
+                    case 2:
+                        return RowOutcome.updated;
+                    default:
+                        return RowOutcome.upserted;
+                }
+            }
+        },
+
+        // standard SQL MERGE, as supported by H2 and HSQLDB
+        merge {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+
+                StringBuilder sql = new StringBuilder("MERGE INTO ").append(table).append(" t USING (VALUES (");
+                for (int i = 0; i < columns.length; i++) {
+                    sql.append(i > 0 ? ", ?" : "?");
+                }
+
+                sql.append(")) s (").append(String.join(", ", columns)).append(") ON (");
+                appendList(sql, keyColumns(columns, valueColumns), " AND ", c -> "t." + c + " = s." + c);
+                sql.append(")");
+
+                if (!valueColumns.isEmpty()) {
+                    sql.append(" WHEN MATCHED AND (");
+                    appendChanged(sql, valueColumns);
+                    sql.append(") THEN UPDATE SET ");
+                    appendList(sql, valueColumns, c -> c + " = s." + c);
+                }
+
+                return appendInsert(sql, columns).toString();
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+                return count == 0 ? RowOutcome.skipped : RowOutcome.upserted;
+            }
+        },
+
+        // SQL Server requires MERGE to be terminated with a semicolon
+        sqlserver {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+                return merge.upsertSql(table, columns, valueColumns) + ";";
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+                return merge.outcome(count);
+            }
+        },
+
+        // Oracle has no VALUES in the USING clause and no extra conditions in WHEN MATCHED
+        oracle {
+            @Override
+            String upsertSql(String table, String[] columns, List<String> valueColumns) {
+
+                StringBuilder sql = new StringBuilder("MERGE INTO ").append(table).append(" t USING (SELECT ");
+                appendList(sql, Arrays.asList(columns), c -> "? " + c);
+                sql.append(" FROM dual) s ON (");
+                appendList(sql, keyColumns(columns, valueColumns), " AND ", c -> "t." + c + " = s." + c);
+                sql.append(")");
+
+                if (!valueColumns.isEmpty()) {
+                    sql.append(" WHEN MATCHED THEN UPDATE SET ");
+                    appendList(sql, valueColumns, c -> "t." + c + " = s." + c);
+                    sql.append(" WHERE ");
+                    appendChanged(sql, valueColumns);
+                }
+
+                return appendInsert(sql, columns).toString();
+            }
+
+            @Override
+            RowOutcome outcome(int count) {
+                return merge.outcome(count);
+            }
+        };
+
+        static Dialect detect(DatabaseMetaData metaData) throws SQLException {
+            String productName = metaData.getDatabaseProductName();
+            String product = productName.toLowerCase(Locale.ROOT);
+
+            if (product.contains("postgres")) {
+                return postgresql;
+            }
+
+            if (product.contains("mysql") || product.contains("mariadb")) {
+                String url = metaData.getURL();
+                return url != null && url.toLowerCase(Locale.ROOT).contains("useaffectedrows=true")
+                        ? mysql_affected_rows
+                        : mysql;
+            }
+
+            if (product.equals("h2") || product.startsWith("hsql")) {
+                return merge;
+            }
+
+            if (product.contains("sql server")) {
+                return sqlserver;
+            }
+
+            if (product.contains("oracle")) {
+                return oracle;
+            }
+
+            // e.g. Derby and SQLite have no MERGE, while the others differ in its syntax
+            throw new SQLFeatureNotSupportedException("Native upsert is not supported for " + productName);
+        }
+
+        abstract String upsertSql(String table, String[] columns, List<String> valueColumns);
+
+        abstract RowOutcome outcome(int count);
+
+        static StringBuilder insertSql(String table, String[] columns) {
+            StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                    .append(" (").append(String.join(", ", columns)).append(") VALUES (");
+
+            for (int i = 0; i < columns.length; i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+
+            return sql.append(")");
+        }
+
+        // "IS DISTINCT FROM" is not supported by all DBs, so the null-safe comparison is spelled out. A comparison
+        // with a NULL is unknown rather than true, hence the explicit one-side-NULL terms
+        static void appendChanged(StringBuilder sql, List<String> valueColumns) {
+            appendList(sql, valueColumns, " OR ",
+                    c -> "t." + c + " <> s." + c
+                            + " OR (t." + c + " IS NULL AND s." + c + " IS NOT NULL)"
+                            + " OR (t." + c + " IS NOT NULL AND s." + c + " IS NULL)");
+        }
+
+        static StringBuilder appendInsert(StringBuilder sql, String[] columns) {
+            sql.append(" WHEN NOT MATCHED THEN INSERT (").append(String.join(", ", columns)).append(") VALUES (");
+            appendList(sql, Arrays.asList(columns), c -> "s." + c);
+            return sql.append(")");
+        }
+
+        static List<String> keyColumns(String[] columns, List<String> valueColumns) {
+            List<String> keys = new ArrayList<>();
+            for (String c : columns) {
+                if (!valueColumns.contains(c)) {
+                    keys.add(c);
+                }
+            }
+
+            return keys;
+        }
+
+        static void appendList(StringBuilder sql, List<String> columns, Function<String, String> f) {
+            appendList(sql, columns, ", ", f);
+        }
+
+        static void appendList(
+                StringBuilder sql,
+                List<String> columns,
+                String separator,
+                Function<String, String> f) {
+
+            for (int i = 0; i < columns.size(); i++) {
+                if (i > 0) {
+                    sql.append(separator);
+                }
+
+                sql.append(f.apply(columns.get(i)));
+            }
+        }
+    }
+}
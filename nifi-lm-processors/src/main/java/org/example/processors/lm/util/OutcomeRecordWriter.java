@@ -0,0 +1,65 @@
+package org.example.processors.lm.util;
+
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.RecordSetWriter;
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.WriteResult;
+import org.apache.nifi.serialization.record.MapRecord;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Copies records from a reader to a writer, tagging each record with its save outcome.
+ */
+public class OutcomeRecordWriter {
+
+    private String outcomeField;
+
+    public OutcomeRecordWriter(String outcomeField) {
+        this.outcomeField = outcomeField;
+    }
+
+    /**
+     * Returns the source schema with the outcome field appended. A source field of the same name is replaced by the
+     * outcome field in its original position.
+     */
+    public RecordSchema outcomeSchema(RecordSchema sourceSchema) {
+        RecordField outcome = new RecordField(outcomeField, RecordFieldType.STRING.getDataType(), false);
+
+        List<RecordField> fields = new ArrayList<>(sourceSchema.getFields());
+        int existing = sourceSchema.getFieldNames().indexOf(outcomeField);
+        if (existing >= 0) {
+            fields.set(existing, outcome);
+        } else {
+            fields.add(outcome);
+        }
+
+        return new SimpleRecordSchema(fields);
+    }
+
+    public WriteResult write(RecordReader reader, RecordSetWriter writer, RecordSchema outcomeSchema, UpsertStats stats)
+            throws IOException, MalformedRecordException {
+
+        writer.beginRecordSet();
+
+        Record r;
+        int row = 0;
+        while ((r = reader.nextRecord()) != null) {
+
+            Map<String, Object> values = new HashMap<>(r.toMap());
+            values.put(outcomeField, stats.getOutcome(row++).name());
+            writer.write(new MapRecord(outcomeSchema, values));
+        }
+
+        return writer.finishRecordSet();
+    }
+}
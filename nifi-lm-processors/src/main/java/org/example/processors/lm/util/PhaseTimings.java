@@ -0,0 +1,68 @@
+package org.example.processors.lm.util;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Accumulates time spent in each {@link UpsertPhase}. Thread-safe, so that partitions saved in parallel can report
+ * to the same instance. In this case the reported time is the sum over all partitions and may exceed the wall clock
+ * time.
+ */
+public class PhaseTimings {
+
+    private static final UpsertPhase[] PHASES = UpsertPhase.values();
+
+    private final AtomicLongArray nanos;
+
+    public PhaseTimings() {
+        this.nanos = new AtomicLongArray(PHASES.length);
+    }
+
+    public void add(UpsertPhase phase, long nanos) {
+        this.nanos.addAndGet(phase.ordinal(), nanos);
+    }
+
+    /**
+     * Adds a share of other timings, e.g. to attribute a part of the chunk save time to a FlowFile that contributed
+     * some of the chunk rows.
+     */
+    public void add(PhaseTimings other, long share, long total) {
+        if (total <= 0) {
+            return;
+        }
+
+        for (UpsertPhase p : PHASES) {
+            add(p, other.getNanos(p) * share / total);
+        }
+    }
+
+    public long getNanos(UpsertPhase phase) {
+        return nanos.get(phase.ordinal());
+    }
+
+    public long getMillis(UpsertPhase phase) {
+        return TimeUnit.NANOSECONDS.toMillis(getNanos(phase));
+    }
+
+    public long getTotalMillis() {
+        long total = 0;
+        for (UpsertPhase p : PHASES) {
+            total += getNanos(p);
+        }
+
+        return TimeUnit.NANOSECONDS.toMillis(total);
+    }
+
+    @Override
+    public String toString() {
+        StringBuilder out = new StringBuilder("{");
+        for (UpsertPhase p : PHASES) {
+            if (out.length() > 1) {
+                out.append(",");
+            }
+            out.append(p.name()).append(":").append(getMillis(p)).append("ms");
+        }
+
+        return out.append("}").toString();
+    }
+}
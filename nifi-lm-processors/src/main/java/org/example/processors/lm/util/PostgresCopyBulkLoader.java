@@ -0,0 +1,78 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.io.Reader;
+import java.lang.reflect.InvocationTargetException;
+import java.lang.reflect.Method;
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Inserts rows with PostgreSQL "COPY .. FROM STDIN", streaming them as CSV without an intermediate file. The driver
+ * API is accessed reflectively, as in NiFi the JDBC driver is loaded by the connection pool and is not visible to
+ * this bundle at compile time.
+ */
+public class PostgresCopyBulkLoader implements BulkLoader {
+
+    private static final String PG_CONNECTION_CLASS = "org.postgresql.PGConnection";
+
+    @Override
+    public void load(Connection connection, String table, DataFrame df, int[] rows, int len) throws SQLException {
+
+        String sql = "COPY " + table + " (" + String.join(", ", df.getColumnsIndex().getLabels())
+                + ") FROM STDIN WITH (FORMAT csv)";
+
+        Object copyManager = copyManager(connection);
+
+        try {
+            Method copyIn = copyManager.getClass().getMethod("copyIn", String.class, Reader.class);
+            copyIn.invoke(copyManager, sql, new CsvRowReader(df, rows, len, "", "\\x"));
+        } catch (InvocationTargetException e) {
+            throw asSQLException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("Failed to invoke PostgreSQL COPY API", e);
+        }
+    }
+
+    private static Object copyManager(Connection connection) throws SQLException {
+
+        Class<?> pgConnectionType = pgConnectionType(connection);
+        Object pgConnection = connection.unwrap(pgConnectionType);
+
+        try {
+            return pgConnectionType.getMethod("getCopyAPI").invoke(pgConnection);
+        } catch (InvocationTargetException e) {
+            throw asSQLException(e.getCause());
+        } catch (ReflectiveOperationException e) {
+            throw new SQLException("Failed to obtain PostgreSQL COPY API", e);
+        }
+    }
+
+    private static Class<?> pgConnectionType(Connection connection) throws SQLException {
+
+        ClassLoader[] loaders = {
+                connection.getClass().getClassLoader(),
+                Thread.currentThread().getContextClassLoader(),
+                PostgresCopyBulkLoader.class.getClassLoader()
+        };
+
+        for (ClassLoader loader : loaders) {
+            if (loader != null) {
+                try {
+                    return Class.forName(PG_CONNECTION_CLASS, false, loader);
+                } catch (ClassNotFoundException e) {
+                    // try the next loader
+                }
+            }
+        }
+
+        throw new SQLException("PostgreSQL JDBC driver is not available. Can't use 'COPY' to load the data");
+    }
+
+    private static SQLException asSQLException(Throwable e) {
+        return e instanceof SQLException
+                ? (SQLException) e
+                : new SQLException("PostgreSQL COPY failed", e);
+    }
+}
@@ -1,11 +1,28 @@
 package org.example.processors.lm.util;
 
 import org.apache.nifi.serialization.record.DataType;
+import org.apache.nifi.serialization.record.util.DataTypeUtils;
 
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.nio.charset.StandardCharsets;
+import java.sql.Time;
+import java.sql.Timestamp;
+import java.time.Instant;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneId;
+import java.time.ZonedDateTime;
+import java.time.format.DateTimeFormatter;
+import java.time.temporal.TemporalAccessor;
+import java.util.Date;
 import java.util.HashMap;
+import java.util.Locale;
 import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
 
 // Converter is not parameterized by the target type, as it may bypass conversion and return a String for unknown types,
 // which may still work as PreparedStatement parameter with many DB's
@@ -14,13 +31,23 @@ public abstract class RecordFieldConverter {
     private static final Map<Class, RecordFieldConverter> cache;
     private static final RecordFieldConverter defaultConverter;
 
+    // DateTimeFormatters are immutable and thread-safe, so can be shared by all fields with the same format
+    private static final ConcurrentMap<String, DateTimeFormatter> formatters = new ConcurrentHashMap<>();
+
     static {
         defaultConverter = new NoopConverter();
         cache = new HashMap<>();
         cache.put(Integer.class, new IntegerConverter());
         cache.put(Long.class, new LongConverter());
-        cache.put(LocalDate.class, new LocalDateConverter());
-        cache.put(LocalDateTime.class, new LocalDateTimeConverter());
+        cache.put(LocalDate.class, new LocalDateConverter(null));
+        cache.put(LocalDateTime.class, new LocalDateTimeConverter(null));
+        cache.put(OffsetDateTime.class, new OffsetDateTimeConverter(null));
+        cache.put(LocalTime.class, new LocalTimeConverter(null));
+        cache.put(BigDecimal.class, new BigDecimalConverter());
+        cache.put(Double.class, new DoubleConverter());
+        cache.put(Float.class, new FloatConverter());
+        cache.put(Boolean.class, new BooleanConverter());
+        cache.put(byte[].class, new BytesConverter());
     }
 
     private static final class NoopConverter extends RecordFieldConverter {
@@ -28,6 +55,11 @@ public abstract class RecordFieldConverter {
         protected Object convertNotNull(DataType recordType, String value) {
             return value;
         }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+            return value instanceof String ? value : super.convertValueNotNull(recordType, value);
+        }
     }
 
     private static final class IntegerConverter extends RecordFieldConverter {
@@ -35,6 +67,25 @@ public abstract class RecordFieldConverter {
         protected Integer convertNotNull(DataType recordType, String value) {
             return Integer.valueOf(value);
         }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof Integer) {
+                return value;
+            }
+
+            if (value instanceof Short || value instanceof Byte) {
+                return ((Number) value).intValue();
+            }
+
+            // fail on overflow, same as the String parser would
+            if (value instanceof Long) {
+                return Math.toIntExact((Long) value);
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
     }
 
     private static final class LongConverter extends RecordFieldConverter {
@@ -42,21 +93,394 @@ public abstract class RecordFieldConverter {
         protected Long convertNotNull(DataType recordType, String value) {
             return Long.valueOf(value);
         }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof Long) {
+                return value;
+            }
+
+            if (value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return ((Number) value).longValue();
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
     }
 
-    private static class LocalDateConverter extends RecordFieldConverter {
+    private static final class BigDecimalConverter extends RecordFieldConverter {
         @Override
-        protected LocalDate convertNotNull(DataType recordType, String value) {
-            // TODO: would DataType.getFormat() be of help here?
-            return LocalDate.parse(value);
+        protected BigDecimal convertNotNull(DataType recordType, String value) {
+            return new BigDecimal(value.trim());
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof BigDecimal) {
+                return value;
+            }
+
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return BigDecimal.valueOf(((Number) value).longValue());
+            }
+
+            if (value instanceof BigInteger) {
+                return new BigDecimal((BigInteger) value);
+            }
+
+            // the shortest decimal representation, e.g. 0.1 and not 0.1000000000000000055511151231257827
+            if (value instanceof Double || value instanceof Float) {
+                return new BigDecimal(value.toString());
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    private static final class DoubleConverter extends RecordFieldConverter {
+        @Override
+        protected Double convertNotNull(DataType recordType, String value) {
+            return Double.valueOf(value);
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof Double) {
+                return value;
+            }
+
+            // Floats are widened via their decimal representation, so that 0.1f becomes 0.1 and not 0.10000000149
+            if (value instanceof Float) {
+                return Double.valueOf(value.toString());
+            }
+
+            if (value instanceof Number) {
+                return ((Number) value).doubleValue();
+            }
+
+            return super.convertValueNotNull(recordType, value);
         }
     }
 
-    private static class LocalDateTimeConverter extends RecordFieldConverter {
+    private static final class FloatConverter extends RecordFieldConverter {
         @Override
-        protected LocalDateTime convertNotNull(DataType recordType, String value) {
-            // TODO: would DataType.getFormat() be of help here?
-            return LocalDateTime.parse(value);
+        protected Float convertNotNull(DataType recordType, String value) {
+            return Float.valueOf(value);
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof Float) {
+                return value;
+            }
+
+            if (value instanceof Number) {
+                return ((Number) value).floatValue();
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    private static final class BooleanConverter extends RecordFieldConverter {
+        @Override
+        protected Boolean convertNotNull(DataType recordType, String value) {
+
+            // "1" and "0" are common in CSV exports of BIT columns
+            switch (value.trim().toLowerCase(Locale.ROOT)) {
+                case "true":
+                case "1":
+                    return Boolean.TRUE;
+                case "false":
+                case "0":
+                    return Boolean.FALSE;
+                default:
+                    throw new IllegalArgumentException("Not a boolean value: '" + value + "'");
+            }
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof Boolean) {
+                return value;
+            }
+
+            if (value instanceof Long || value instanceof Integer || value instanceof Short || value instanceof Byte) {
+                return ((Number) value).longValue() != 0;
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    private static final class BytesConverter extends RecordFieldConverter {
+        @Override
+        protected byte[] convertNotNull(DataType recordType, String value) {
+            return value.getBytes(StandardCharsets.UTF_8);
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof byte[]) {
+                return value;
+            }
+
+            // NiFi records store binary fields as arrays of Bytes
+            if (value instanceof Object[]) {
+                Object[] array = (Object[]) value;
+                byte[] bytes = new byte[array.length];
+                for (int i = 0; i < array.length; i++) {
+                    bytes[i] = ((Number) array[i]).byteValue();
+                }
+
+                return bytes;
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    /**
+     * A base of the date/time converters. Strings are parsed with the record field format if there's one, or as ISO
+     * 8601 otherwise. Numbers (and, with no format, Strings of digits) are treated as epoch millis, same as NiFi
+     * does, and are converted in the JVM time zone.
+     */
+    private static abstract class TemporalConverter extends RecordFieldConverter {
+
+        // null for ISO 8601
+        protected final DateTimeFormatter formatter;
+
+        TemporalConverter(DateTimeFormatter formatter) {
+            this.formatter = formatter;
+        }
+
+        protected abstract Object parse(String value);
+
+        protected abstract Object fromEpochMillis(long millis);
+
+        @Override
+        protected Object convertNotNull(DataType recordType, String value) {
+            return formatter == null && isEpochMillis(value) ? fromEpochMillis(Long.parseLong(value)) : parse(value);
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            // no String round trip for the values that are already Strings
+            if (value instanceof String) {
+                return convertNotNull(recordType, (String) value);
+            }
+
+            if (value instanceof Long || value instanceof Integer) {
+                return fromEpochMillis(((Number) value).longValue());
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+
+        private static boolean isEpochMillis(String value) {
+
+            int len = value.length();
+            int i = len > 1 && value.charAt(0) == '-' ? 1 : 0;
+            if (i == len) {
+                return false;
+            }
+
+            for (; i < len; i++) {
+                char c = value.charAt(i);
+                if (c < '0' || c > '9') {
+                    return false;
+                }
+            }
+
+            return true;
+        }
+
+        protected static ZonedDateTime atSystemZone(long millis) {
+            return Instant.ofEpochMilli(millis).atZone(ZoneId.systemDefault());
+        }
+    }
+
+    private static class LocalDateConverter extends TemporalConverter {
+
+        LocalDateConverter(DateTimeFormatter formatter) {
+            super(formatter);
+        }
+
+        @Override
+        protected LocalDate parse(String value) {
+            return formatter != null ? LocalDate.from(formatter.parse(value)) : LocalDate.parse(value);
+        }
+
+        @Override
+        protected LocalDate fromEpochMillis(long millis) {
+            return atSystemZone(millis).toLocalDate();
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof LocalDate) {
+                return value;
+            }
+
+            if (value instanceof java.sql.Date) {
+                return ((java.sql.Date) value).toLocalDate();
+            }
+
+            if (value instanceof LocalDateTime) {
+                return ((LocalDateTime) value).toLocalDate();
+            }
+
+            // Timestamp and other java.util.Date subclasses
+            if (value instanceof Date) {
+                return fromEpochMillis(((Date) value).getTime());
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    private static class LocalDateTimeConverter extends TemporalConverter {
+
+        LocalDateTimeConverter(DateTimeFormatter formatter) {
+            super(formatter);
+        }
+
+        @Override
+        protected LocalDateTime parse(String value) {
+
+            if (formatter == null) {
+                return LocalDateTime.parse(value);
+            }
+
+            // the format may have no time part
+            TemporalAccessor parsed = formatter.parseBest(value, LocalDateTime::from, LocalDate::from);
+            return parsed instanceof LocalDate ? ((LocalDate) parsed).atStartOfDay() : (LocalDateTime) parsed;
+        }
+
+        @Override
+        protected LocalDateTime fromEpochMillis(long millis) {
+            return atSystemZone(millis).toLocalDateTime();
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof LocalDateTime) {
+                return value;
+            }
+
+            if (value instanceof Timestamp) {
+                return ((Timestamp) value).toLocalDateTime();
+            }
+
+            if (value instanceof LocalDate) {
+                return ((LocalDate) value).atStartOfDay();
+            }
+
+            if (value instanceof Date) {
+                return fromEpochMillis(((Date) value).getTime());
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    // TIMESTAMP WITH TIME ZONE values. Values without an offset are assumed to be in the JVM time zone, same as
+    // JDBC assumes for Timestamps
+    private static class OffsetDateTimeConverter extends TemporalConverter {
+
+        OffsetDateTimeConverter(DateTimeFormatter formatter) {
+            super(formatter);
+        }
+
+        @Override
+        protected OffsetDateTime parse(String value) {
+
+            if (formatter == null) {
+                return OffsetDateTime.parse(value);
+            }
+
+            // the format may have no offset
+            TemporalAccessor parsed = formatter.parseBest(value, OffsetDateTime::from, LocalDateTime::from);
+            return parsed instanceof LocalDateTime
+                    ? ((LocalDateTime) parsed).atZone(ZoneId.systemDefault()).toOffsetDateTime()
+                    : (OffsetDateTime) parsed;
+        }
+
+        @Override
+        protected OffsetDateTime fromEpochMillis(long millis) {
+            return atSystemZone(millis).toOffsetDateTime();
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof OffsetDateTime) {
+                return value;
+            }
+
+            if (value instanceof ZonedDateTime) {
+                return ((ZonedDateTime) value).toOffsetDateTime();
+            }
+
+            if (value instanceof LocalDateTime) {
+                return ((LocalDateTime) value).atZone(ZoneId.systemDefault()).toOffsetDateTime();
+            }
+
+            if (value instanceof Timestamp) {
+                return OffsetDateTime.ofInstant(((Timestamp) value).toInstant(), ZoneId.systemDefault());
+            }
+
+            // not via Date.toInstant(), as java.sql.Date and Time don't support it
+            if (value instanceof Date) {
+                return fromEpochMillis(((Date) value).getTime());
+            }
+
+            return super.convertValueNotNull(recordType, value);
+        }
+    }
+
+    private static class LocalTimeConverter extends TemporalConverter {
+
+        LocalTimeConverter(DateTimeFormatter formatter) {
+            super(formatter);
+        }
+
+        @Override
+        protected LocalTime parse(String value) {
+            return formatter != null ? LocalTime.from(formatter.parse(value)) : LocalTime.parse(value);
+        }
+
+        @Override
+        protected LocalTime fromEpochMillis(long millis) {
+            return atSystemZone(millis).toLocalTime();
+        }
+
+        @Override
+        protected Object convertValueNotNull(DataType recordType, Object value) {
+
+            if (value instanceof LocalTime) {
+                return value;
+            }
+
+            if (value instanceof Time) {
+                return ((Time) value).toLocalTime();
+            }
+
+            // Timestamp and other java.util.Date subclasses
+            if (value instanceof Date) {
+                return fromEpochMillis(((Date) value).getTime());
+            }
+
+            return super.convertValueNotNull(recordType, value);
         }
     }
 
@@ -64,9 +488,52 @@ public abstract class RecordFieldConverter {
         return cache.getOrDefault(type, defaultConverter);
     }
 
+    /**
+     * Returns a converter for the values of a record field with the specified format, as returned by
+     * {@link DataType#getFormat()}. The format is a date/time pattern, that is only used by the date/time
+     * converters. For the fields without a format, the result is the same as {@link #converter(Class)}.
+     */
+    public static RecordFieldConverter converter(Class<?> type, String format) {
+
+        if (format == null || format.isEmpty()) {
+            return converter(type);
+        }
+
+        if (LocalDate.class.equals(type)) {
+            return new LocalDateConverter(formatter(format));
+        } else if (LocalDateTime.class.equals(type)) {
+            return new LocalDateTimeConverter(formatter(format));
+        } else if (OffsetDateTime.class.equals(type)) {
+            return new OffsetDateTimeConverter(formatter(format));
+        } else if (LocalTime.class.equals(type)) {
+            return new LocalTimeConverter(formatter(format));
+        }
+
+        return converter(type);
+    }
+
+    private static DateTimeFormatter formatter(String format) {
+        return formatters.computeIfAbsent(format, DateTimeFormatter::ofPattern);
+    }
+
     public Object convert(DataType recordType, String value) {
         return value == null ? null : convertNotNull(recordType, value);
     }
 
+    /**
+     * Converts a record value in its original Java type (as returned by {@link org.apache.nifi.serialization.record.Record#getValue(String)}).
+     * Values of the types known to the converter are converted directly, others are formatted to a String and then
+     * parsed.
+     */
+    public Object convertValue(DataType recordType, Object value) {
+        return value == null ? null : convertValueNotNull(recordType, value);
+    }
+
     protected abstract Object convertNotNull(DataType recordType, String value);
+
+    // the default implementation does a String round trip. Subclasses would override it with the fast paths for
+    // the value types they can handle directly
+    protected Object convertValueNotNull(DataType recordType, Object value) {
+        return convertNotNull(recordType, DataTypeUtils.toString(value, recordType.getFormat()));
+    }
 }
@@ -9,11 +9,21 @@ import org.apache.nifi.serialization.record.Record;
 import org.apache.nifi.serialization.record.RecordSchema;
 
 import java.io.IOException;
+import java.util.Arrays;
 
+/**
+ * Converts records to a DataFrame. Records can be appended from multiple readers, as long as they resolve to the same
+ * set of target columns, allowing to merge several record sets into a single DataFrame, or to split a large record
+ * set into a series of DataFrames of limited size.
+ */
 public class RecordsToDataFrameConverter {
 
     private ComponentLog logger;
 
+    private Index index;
+    private ColumnBuilder[] columns;
+    private int height;
+
     public RecordsToDataFrameConverter(ComponentLog logger) {
         this.logger = logger;
     }
@@ -27,20 +37,93 @@ public class RecordsToDataFrameConverter {
         // compare them in memory and avoid needless UPDATEs
 
         ConvertableRecordField[] converters = ConvertableRecordField.createFieldConverters(schema, tableMetadata, logger);
+        append(recordReader, converters, Integer.MAX_VALUE);
+        return toDataFrame();
+    }
+
+    /**
+     * Returns true if the records converted with the provided converters can be appended to the current DataFrame.
+     */
+    public boolean canAppend(ConvertableRecordField[] converters) {
+        return index == null || Arrays.equals(index.getLabels(), ConvertableRecordField.createIndex(converters).getLabels());
+    }
+
+    /**
+     * Reads up to "maxRows" records from the reader, appending them to the DataFrame being built.
+     *
+     * @return the number of records read. If less than "maxRows", the reader is exhausted.
+     */
+    public int append(RecordReader recordReader, ConvertableRecordField[] converters, int maxRows)
+            throws MalformedRecordException, IOException {
+
+        initColumns(converters);
 
-        // TODO: use primitive columns for primitive record fields to save memory
-        Object[] row = new Object[converters.length];
-        DataFrameByRowBuilder builder = DataFrame.newFrame(ConvertableRecordField.createIndex(converters)).byRow();
         Record r;
-        while ((r = recordReader.nextRecord()) != null) {
+        int rows = 0;
+        while (rows < maxRows && (r = recordReader.nextRecord()) != null) {
+
+            for (int i = 0; i < converters.length; i++) {
+                columns[i] = columns[i].add(converters[i].convert(r));
+            }
+
+            rows++;
+        }
+
+        height += rows;
+        return rows;
+    }
 
+    /**
+     * Appends a single record to the DataFrame being built.
+     */
+    public void append(Record record, ConvertableRecordField[] converters) {
+
+        initColumns(converters);
+
+        for (int i = 0; i < converters.length; i++) {
+            columns[i] = columns[i].add(converters[i].convert(record));
+        }
+
+        height++;
+    }
+
+    private void initColumns(ConvertableRecordField[] converters) {
+
+        if (columns == null) {
+            index = ConvertableRecordField.createIndex(converters);
+
+            // building the DataFrame by column allows to store primitive values in primitive arrays, saving memory
+            columns = new ColumnBuilder[converters.length];
             for (int i = 0; i < converters.length; i++) {
-                row[i] = converters[i].convert(r);
+                columns[i] = ColumnBuilder.forType(converters[i].getTargetType());
             }
+        }
+    }
 
-            builder.addRow(row);
+    public int height() {
+        return height;
+    }
+
+    /**
+     * Creates a DataFrame out of the records appended so far, resetting the converter state.
+     */
+    public DataFrame toDataFrame() {
+        Series<?>[] series = new Series[columns.length];
+        for (int i = 0; i < columns.length; i++) {
+            series[i] = columns[i].toSeries();
         }
 
-        return builder.create();
+        DataFrame df = DataFrame.newFrame(index).columns(series);
+        reset();
+        return df;
+    }
+
+    /**
+     * Discards the records appended so far.
+     */
+    public void reset() {
+        index = null;
+        columns = null;
+        height = 0;
     }
 }
@@ -0,0 +1,64 @@
+package org.example.processors.lm.util;
+
+import java.util.BitSet;
+
+/**
+ * Compares a source row with the target row with the same key, finding the changed columns. Key columns are not
+ * compared, and differences in the "ignored" columns alone don't make a row changed.
+ */
+class RowDiff {
+
+    private final boolean[] compared;
+    private final boolean[] ignored;
+
+    RowDiff(String[] labels, int[] keyPositions, String[] ignoredColumns) {
+
+        int w = labels.length;
+        this.compared = new boolean[w];
+        this.ignored = new boolean[w];
+
+        for (int j = 0; j < w; j++) {
+            compared[j] = true;
+            for (String c : ignoredColumns) {
+                if (labels[j].equalsIgnoreCase(c)) {
+                    ignored[j] = true;
+                    compared[j] = false;
+                    break;
+                }
+            }
+        }
+
+        for (int k : keyPositions) {
+            compared[k] = false;
+        }
+    }
+
+    /**
+     * Returns the positions of the changed columns, or null if the row is unchanged. With the row being updated
+     * anyway, changed ignored columns are included too, so that they are refreshed.
+     */
+    BitSet diff(Object[] source, Object[] target) {
+
+        BitSet changed = null;
+        int w = compared.length;
+
+        for (int j = 0; j < w; j++) {
+            if (compared[j] && !JdbcValues.same(source[j], target[j])) {
+                if (changed == null) {
+                    changed = new BitSet(w);
+                }
+                changed.set(j);
+            }
+        }
+
+        if (changed != null) {
+            for (int j = 0; j < w; j++) {
+                if (ignored[j] && !JdbcValues.same(source[j], target[j])) {
+                    changed.set(j);
+                }
+            }
+        }
+
+        return changed;
+    }
+}
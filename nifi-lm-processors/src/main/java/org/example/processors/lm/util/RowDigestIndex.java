@@ -0,0 +1,345 @@
+package org.example.processors.lm.util;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * A persistent map of row key hashes to row content digests, stored in a memory-mapped file as an open-addressing
+ * hash table. Allows to detect unchanged rows without reading the target table. The index is only valid as long as
+ * the target table is modified exclusively via the index owner.
+ * <p>
+ * The file is marked "dirty" while it has unflushed changes. A dirty or missing file is reset on open and must be
+ * rebuilt from the target table via {@link #rebuild(Connection, String, String[], String[], int)}.
+ * <p>
+ * Saves of the rows are wrapped in {@link #beginSave(long[])} and {@link #endSave(long[], long[], boolean)} calls, so
+ * that the DB writes don't have to be serialized. Keys saved by concurrent callers at the same time lose their digests,
+ * as the order of their commits is unknown.
+ */
+public class RowDigestIndex implements Closeable {
+
+    // "LMDIGEST"
+    private static final long MAGIC = 0x4C4D444947455354L;
+
+    private static final int MAGIC_OFFSET = 0;
+    private static final int CAPACITY_OFFSET = 8;
+    private static final int SIZE_OFFSET = 12;
+    private static final int DIRTY_OFFSET = 16;
+    private static final int HEADER_SIZE = 32;
+    private static final int SLOT_SIZE = 16;
+
+    private static final int MIN_CAPACITY = 1 << 10;
+
+    // keeps the mapped file under 2GB
+    private static final int MAX_CAPACITY = 1 << 26;
+
+    private static final int MAX_LOAD_PERCENT = 70;
+
+    // a digest stored for removed rows, as open addressing slots can't be simply cleared
+    private static final long REMOVED_DIGEST = 0x5DEADL;
+
+    private final Path file;
+    private final FileChannel channel;
+    private MappedByteBuffer buffer;
+
+    private int capacity;
+    private int size;
+    private boolean dirty;
+    private boolean needsRebuild;
+
+    // keys being saved, with the number of concurrent saves of each, and the keys saved concurrently
+    private final Map<Long, Integer> savingKeys;
+    private final Set<Long> contendedKeys;
+
+    public static RowDigestIndex open(Path file) throws IOException {
+        Files.createDirectories(file.toAbsolutePath().getParent());
+        return new RowDigestIndex(file);
+    }
+
+    protected RowDigestIndex(Path file) throws IOException {
+        this.file = file;
+        this.channel = FileChannel.open(
+                file,
+                StandardOpenOption.CREATE,
+                StandardOpenOption.READ,
+                StandardOpenOption.WRITE);
+        this.savingKeys = new HashMap<>();
+        this.contendedKeys = new HashSet<>();
+
+        if (channel.size() >= HEADER_SIZE) {
+            MappedByteBuffer header = channel.map(FileChannel.MapMode.READ_ONLY, 0, HEADER_SIZE);
+            int storedCapacity = header.getInt(CAPACITY_OFFSET);
+
+            if (header.getLong(MAGIC_OFFSET) == MAGIC
+                    && header.get(DIRTY_OFFSET) == 0
+                    && channel.size() == fileSize(storedCapacity)) {
+
+                this.capacity = storedCapacity;
+                this.size = header.getInt(SIZE_OFFSET);
+                this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(capacity));
+                return;
+            }
+        }
+
+        // new, corrupted or partially written file
+        reset(MIN_CAPACITY);
+        this.needsRebuild = true;
+    }
+
+    private static long fileSize(int capacity) {
+        return HEADER_SIZE + (long) capacity * SLOT_SIZE;
+    }
+
+    public Path getFile() {
+        return file;
+    }
+
+    /**
+     * Returns true if the index file was missing or invalid on open, and the index was not rebuilt since.
+     */
+    public synchronized boolean needsRebuild() {
+        return needsRebuild;
+    }
+
+    public synchronized int size() {
+        return size;
+    }
+
+    /**
+     * Returns a content digest stored for the key hash, or 0 if there's none.
+     */
+    public synchronized long get(long keyHash) {
+        long key = nonZero(keyHash);
+        int mask = capacity - 1;
+
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long k = buffer.getLong(pos);
+
+            if (k == 0) {
+                return 0;
+            }
+
+            if (k == key) {
+                return buffer.getLong(pos + 8);
+            }
+        }
+    }
+
+    /**
+     * Returns true if the stored digest for the key hash is equal to the provided digest.
+     */
+    public boolean matches(long keyHash, long digest) {
+        return get(keyHash) == nonZero(digest);
+    }
+
+    public synchronized void put(long keyHash, long digest) {
+        markDirty();
+
+        if ((size + 1) * 100L > (long) capacity * MAX_LOAD_PERCENT) {
+            resize();
+        }
+
+        long key = nonZero(keyHash);
+        int mask = capacity - 1;
+
+        for (int slot = slot(key, mask); ; slot = (slot + 1) & mask) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long k = buffer.getLong(pos);
+
+            if (k == 0) {
+                buffer.putLong(pos, key);
+                buffer.putLong(pos + 8, nonZero(digest));
+                size++;
+                return;
+            }
+
+            if (k == key) {
+                buffer.putLong(pos + 8, nonZero(digest));
+                return;
+            }
+        }
+    }
+
+    /**
+     * Registers the keys of the rows about to be saved. Grows the index ahead of the save, so that it can't run out
+     * of space once the rows are committed.
+     *
+     * @throws IllegalStateException if the index can't fit the keys
+     */
+    public synchronized void beginSave(long[] keyHashes) {
+        markDirty();
+
+        while ((size + (long) keyHashes.length) * 100L > (long) capacity * MAX_LOAD_PERCENT) {
+            resize();
+        }
+
+        for (long keyHash : keyHashes) {
+            Long key = nonZero(keyHash);
+            if (savingKeys.merge(key, 1, Integer::sum) > 1) {
+                contendedKeys.add(key);
+            }
+        }
+    }
+
+    /**
+     * Stores the digests of the rows registered via {@link #beginSave(long[])}. If the save failed, the digests of the
+     * keys are removed, as some of the rows may still have been committed.
+     */
+    public synchronized void endSave(long[] keyHashes, long[] digests, boolean saved) {
+
+        for (int i = 0; i < keyHashes.length; i++) {
+            Long key = nonZero(keyHashes[i]);
+
+            if (saved && !contendedKeys.contains(key)) {
+                put(keyHashes[i], digests[i]);
+            } else {
+                remove(keyHashes[i]);
+            }
+
+            if (savingKeys.merge(key, -1, Integer::sum) == 0) {
+                savingKeys.remove(key);
+                contendedKeys.remove(key);
+            }
+        }
+
+        flush();
+    }
+
+    /**
+     * Removes the digest of a deleted row. The slot is kept with a digest that won't match any real row.
+     */
+    public synchronized void remove(long keyHash) {
+        if (get(keyHash) != 0) {
+            put(keyHash, REMOVED_DIGEST);
+        }
+    }
+
+    /**
+     * Writes pending changes to disk, clearing the "dirty" flag.
+     */
+    public synchronized void flush() {
+        if (dirty) {
+            buffer.putInt(SIZE_OFFSET, size);
+            buffer.force();
+
+            // clear the flag only after the data is on disk
+            buffer.put(DIRTY_OFFSET, (byte) 0);
+            buffer.force();
+            dirty = false;
+        }
+    }
+
+    /**
+     * Replaces the index contents with digests of all rows in the table. "columns" must be the columns of the rows
+     * being saved, as a digest covers all of them, and "keyColumns" must be the columns used to match the rows.
+     */
+    public synchronized void rebuild(Connection connection, String table, String[] columns, String[] keyColumns, int fetchSize)
+            throws SQLException, IOException {
+
+        reset(MIN_CAPACITY);
+        markDirty();
+
+        boolean autoCommit = connection.getAutoCommit();
+
+        // many drivers (e.g. PostgreSQL) only stream the results within a transaction
+        connection.setAutoCommit(false);
+        try (Statement st = connection.createStatement()) {
+            JdbcValues.setStreamingFetchSize(st, fetchSize);
+
+            try (ResultSet rs = st.executeQuery("SELECT " + String.join(", ", columns) + " FROM " + table)) {
+                int width = columns.length;
+
+                RowDigester digester = new RowDigester(columns, keyColumns);
+                Object[] row = new Object[width];
+                while (rs.next()) {
+                    for (int i = 0; i < width; i++) {
+                        row[i] = rs.getObject(i + 1);
+                    }
+
+                    put(digester.keyHash(row), digester.digest(row));
+                }
+            }
+        } finally {
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+        }
+
+        flush();
+        needsRebuild = false;
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        flush();
+        channel.close();
+    }
+
+    private void markDirty() {
+        if (!dirty) {
+            buffer.put(DIRTY_OFFSET, (byte) 1);
+            dirty = true;
+        }
+    }
+
+    private void reset(int newCapacity) throws IOException {
+        channel.truncate(0);
+        this.buffer = channel.map(FileChannel.MapMode.READ_WRITE, 0, fileSize(newCapacity));
+        this.capacity = newCapacity;
+        this.size = 0;
+
+        buffer.putLong(MAGIC_OFFSET, MAGIC);
+        buffer.putInt(CAPACITY_OFFSET, capacity);
+        buffer.putInt(SIZE_OFFSET, 0);
+        buffer.put(DIRTY_OFFSET, (byte) (dirty ? 1 : 0));
+    }
+
+    private void resize() {
+
+        if (capacity >= MAX_CAPACITY) {
+            throw new IllegalStateException("Row digest index is full: " + file);
+        }
+
+        long[] entries = new long[size * 2];
+        int j = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            int pos = HEADER_SIZE + slot * SLOT_SIZE;
+            long k = buffer.getLong(pos);
+            if (k != 0) {
+                entries[j++] = k;
+                entries[j++] = buffer.getLong(pos + 8);
+            }
+        }
+
+        try {
+            reset(capacity * 2);
+        } catch (IOException e) {
+            throw new IllegalStateException("Failed to resize row digest index: " + file, e);
+        }
+
+        for (int i = 0; i < j; i += 2) {
+            put(entries[i], entries[i + 1]);
+        }
+    }
+
+    private static int slot(long key, int mask) {
+        return (int) (key ^ (key >>> 32)) & mask;
+    }
+
+    // zero marks an empty slot, so can't be stored as a key or a digest
+    private static long nonZero(long hash) {
+        return hash != 0 ? hash : 1;
+    }
+}
@@ -0,0 +1,210 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.ZoneOffset;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.Locale;
+
+/**
+ * Calculates 64-bit hashes of row keys and row contents. Values are normalized via {@link JdbcValues#normalize(Object)}
+ * and serialized to a type-tagged binary form before hashing, so that the same data read from the records or from the
+ * DB produces the same digest. Content digest includes column names, and does not depend on the column order.
+ */
+public class RowDigester {
+
+    private static final byte NULL = 0;
+    private static final byte INTEGRAL = 1;
+    private static final byte FLOATING = 2;
+    private static final byte BOOLEAN = 3;
+    private static final byte STRING = 4;
+    private static final byte DATE = 5;
+    private static final byte DATE_TIME = 6;
+    private static final byte DECIMAL = 7;
+    private static final byte BYTES = 8;
+    private static final byte TIME = 9;
+    private static final byte OTHER = 10;
+
+    private final int[] keyPositions;
+    private final int[] contentPositions;
+    private final String[] contentLabels;
+
+    private byte[] buffer;
+    private int length;
+
+    /**
+     * @param labels     column names of the rows to digest
+     * @param keyColumns names of the columns that comprise a row key. Must be a subset of "labels" (compared ignoring
+     *                   case)
+     */
+    public RowDigester(String[] labels, String[] keyColumns) {
+
+        this.keyPositions = new int[keyColumns.length];
+        for (int i = 0; i < keyColumns.length; i++) {
+            keyPositions[i] = position(labels, keyColumns[i]);
+        }
+
+        Integer[] sorted = new Integer[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            sorted[i] = i;
+        }
+
+        Arrays.sort(sorted, Comparator.comparing(i -> labels[i].toLowerCase(Locale.ROOT)));
+
+        this.contentPositions = new int[labels.length];
+        this.contentLabels = new String[labels.length];
+        for (int i = 0; i < labels.length; i++) {
+            contentPositions[i] = sorted[i];
+            contentLabels[i] = labels[sorted[i]].toLowerCase(Locale.ROOT);
+        }
+
+        this.buffer = new byte[256];
+    }
+
+    private static int position(String[] labels, String column) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Key column '" + column + "' is not present in the data");
+    }
+
+    public long keyHash(Object[] row) {
+        length = 0;
+        for (int p : keyPositions) {
+            writeValue(row[p]);
+        }
+
+        return XxHash64.hash(buffer, 0, length, 0);
+    }
+
+    /**
+     * Calculates key hashes of all DataFrame rows. The DataFrame must have the same columns as the "labels" passed to
+     * the constructor.
+     */
+    public long[] keyHashes(DataFrame df) {
+
+        int h = df.height();
+        int w = df.width();
+
+        Series<?>[] columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        long[] hashes = new long[h];
+        Object[] row = new Object[w];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                row[j] = columns[j].get(i);
+            }
+
+            hashes[i] = keyHash(row);
+        }
+
+        return hashes;
+    }
+
+    public long digest(Object[] row) {
+        length = 0;
+        for (int i = 0; i < contentPositions.length; i++) {
+            writeString(contentLabels[i]);
+            writeValue(row[contentPositions[i]]);
+        }
+
+        return XxHash64.hash(buffer, 0, length, 0);
+    }
+
+    private void writeValue(Object rawValue) {
+
+        Object value = JdbcValues.normalize(rawValue);
+
+        if (value == null) {
+            writeByte(NULL);
+        } else if (value instanceof Long) {
+            writeByte(INTEGRAL);
+            writeLong((Long) value);
+        } else if (value instanceof Double || value instanceof Float) {
+            writeByte(FLOATING);
+            writeLong(Double.doubleToLongBits(((Number) value).doubleValue()));
+        } else if (value instanceof Boolean) {
+            writeByte(BOOLEAN);
+            writeByte((Boolean) value ? (byte) 1 : (byte) 0);
+        } else if (value instanceof String) {
+            writeByte(STRING);
+            writeString((String) value);
+        } else if (value instanceof LocalDate) {
+            writeByte(DATE);
+            writeLong(((LocalDate) value).toEpochDay());
+        } else if (value instanceof LocalDateTime) {
+            writeDateTime((LocalDateTime) value);
+        } else if (value instanceof LocalTime) {
+            writeByte(TIME);
+            writeLong(((LocalTime) value).toNanoOfDay());
+        } else if (value instanceof BigDecimal) {
+            writeByte(DECIMAL);
+            writeString(((BigDecimal) value).toPlainString());
+        } else if (value instanceof byte[]) {
+            byte[] bytes = (byte[]) value;
+            writeByte(BYTES);
+            writeInt(bytes.length);
+            ensureCapacity(bytes.length);
+            System.arraycopy(bytes, 0, buffer, length, bytes.length);
+            length += bytes.length;
+        } else {
+            writeByte(OTHER);
+            writeString(value.toString());
+        }
+    }
+
+    private void writeDateTime(LocalDateTime value) {
+        writeByte(DATE_TIME);
+        writeLong(value.toEpochSecond(ZoneOffset.UTC));
+        writeInt(value.getNano());
+    }
+
+    // chars are written as is, without encoding to UTF-8, which is unnecessary for hashing
+    private void writeString(String value) {
+        int len = value.length();
+        writeInt(len);
+        ensureCapacity(len * 2);
+        for (int i = 0; i < len; i++) {
+            char c = value.charAt(i);
+            buffer[length++] = (byte) c;
+            buffer[length++] = (byte) (c >>> 8);
+        }
+    }
+
+    private void writeByte(byte value) {
+        ensureCapacity(1);
+        buffer[length++] = value;
+    }
+
+    private void writeInt(int value) {
+        ensureCapacity(4);
+        for (int i = 0; i < 4; i++) {
+            buffer[length++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private void writeLong(long value) {
+        ensureCapacity(8);
+        for (int i = 0; i < 8; i++) {
+            buffer[length++] = (byte) (value >>> (i * 8));
+        }
+    }
+
+    private void ensureCapacity(int extra) {
+        if (length + extra > buffer.length) {
+            buffer = Arrays.copyOf(buffer, Math.max(buffer.length * 2, length + extra));
+        }
+    }
+}
@@ -0,0 +1,25 @@
+package org.example.processors.lm.util;
+
+/**
+ * A result of saving a single record to the target table.
+ */
+public enum RowOutcome {
+
+    inserted, updated, skipped,
+
+    /**
+     * A row that was either inserted or updated, when the exact operation is not known.
+     */
+    upserted,
+
+    /**
+     * A row that was not saved, as it was superseded by another row with the same key in the same chunk.
+     */
+    collapsed;
+
+    private static final RowOutcome[] values = values();
+
+    static RowOutcome ofOrdinal(int ordinal) {
+        return values[ordinal];
+    }
+}
@@ -0,0 +1,19 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * Saves DataFrame rows to the target table. Runs within the transaction of the provided connection, leaving it to the
+ * caller to commit or roll back.
+ */
+public interface RowSaver {
+
+    /**
+     * @param timings a collector of the time spent in each save phase
+     * @return per-row save outcomes
+     */
+    RowOutcome[] save(Connection connection, DataFrame df, PhaseTimings timings) throws SQLException;
+}
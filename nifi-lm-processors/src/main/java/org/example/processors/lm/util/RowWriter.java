@@ -0,0 +1,303 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.SQLException;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.Map;
+
+/**
+ * Writes matched DataFrame rows to the target table with batched INSERT and UPDATE statements. Inserts can optionally
+ * be folded into multi-row "INSERT .. VALUES (..), (..)" statements, reducing the number of statements the DB has to
+ * execute, or loaded with a {@link BulkLoader} when there are enough of them. Updates can be narrowed down to the
+ * changed columns, with consecutive rows with the same set of changed columns batched together.
+ */
+public class RowWriter {
+
+    private final DbTableMetadata tableMetadata;
+    private final String table;
+    private final String[] keyColumns;
+    private final int batchSize;
+    private final boolean multiRowInsert;
+    private final int maxParameters;
+    private final BulkLoader bulkLoader;
+    private final int bulkLoadMinRows;
+
+    /**
+     * @param batchSize      the maximum number of rows sent to the DB in a single JDBC batch
+     * @param multiRowInsert whether to insert multiple rows per INSERT statement
+     * @param maxParameters  the maximum number of parameters in a single multi-row INSERT statement
+     */
+    public RowWriter(
+            DbTableMetadata tableMetadata,
+            String table,
+            String[] keyColumns,
+            int batchSize,
+            boolean multiRowInsert,
+            int maxParameters) {
+        this(tableMetadata, table, keyColumns, batchSize, multiRowInsert, maxParameters, null, 0);
+    }
+
+    /**
+     * @param bulkLoader      an optional loader for inserts
+     * @param bulkLoadMinRows the minimum number of inserts to use the bulk loader. Fewer inserts are done with
+     *                        INSERT statements, as bulk loading usually has a higher fixed cost
+     */
+    public RowWriter(
+            DbTableMetadata tableMetadata,
+            String table,
+            String[] keyColumns,
+            int batchSize,
+            boolean multiRowInsert,
+            int maxParameters,
+            BulkLoader bulkLoader,
+            int bulkLoadMinRows) {
+
+        this.tableMetadata = tableMetadata;
+        this.table = table;
+        this.keyColumns = keyColumns;
+        this.batchSize = Math.max(1, batchSize);
+        this.multiRowInsert = multiRowInsert;
+        this.maxParameters = Math.max(1, maxParameters);
+        this.bulkLoader = bulkLoader;
+        this.bulkLoadMinRows = bulkLoadMinRows;
+    }
+
+    public void write(Connection connection, DataFrame df, RowOutcome[] outcomes) throws SQLException {
+        write(connection, df, outcomes, null);
+    }
+
+    /**
+     * @param changes optional positions of the changed columns per updated row. Rows without a changed column set
+     *                have all non-key columns updated
+     */
+    public void write(Connection connection, DataFrame df, RowOutcome[] outcomes, BitSet[] changes)
+            throws SQLException {
+
+        int h = outcomes.length;
+        int[] inserts = new int[h];
+        int[] updates = new int[h];
+        int insertCount = 0;
+        int updateCount = 0;
+
+        for (int i = 0; i < h; i++) {
+            switch (outcomes[i]) {
+                case inserted:
+                    inserts[insertCount++] = i;
+                    break;
+                case updated:
+                    updates[updateCount++] = i;
+                    break;
+                default:
+                    break;
+            }
+        }
+
+        if (insertCount > 0) {
+            insert(connection, df, inserts, insertCount);
+        }
+
+        if (updateCount > 0) {
+            update(connection, df, updates, updateCount, changes);
+        }
+    }
+
+    protected void insert(Connection connection, DataFrame df, int[] rows, int len) throws SQLException {
+
+        if (bulkLoader != null && len >= bulkLoadMinRows) {
+            bulkLoader.load(connection, table, df, rows, len);
+            return;
+        }
+
+        String[] labels = df.getColumnsIndex().getLabels();
+        int w = labels.length;
+
+        Series<?>[] columns = columns(df);
+        int[] jdbcTypes = jdbcTypes(labels);
+
+        int rowsPerStatement = multiRowInsert ? Math.max(1, Math.min(batchSize, maxParameters / w)) : 1;
+        int statementsPerBatch = Math.max(1, batchSize / rowsPerStatement);
+        int fullStatements = len / rowsPerStatement;
+
+        if (fullStatements > 0) {
+            try (PreparedStatement st = connection.prepareStatement(insertSql(labels, rowsPerStatement))) {
+
+                int pending = 0;
+                for (int s = 0; s < fullStatements; s++) {
+                    bindRows(st, columns, jdbcTypes, rows, s * rowsPerStatement, rowsPerStatement);
+                    st.addBatch();
+
+                    if (++pending == statementsPerBatch) {
+                        st.executeBatch();
+                        pending = 0;
+                    }
+                }
+
+                if (pending > 0) {
+                    st.executeBatch();
+                }
+            }
+        }
+
+        int remainder = len - fullStatements * rowsPerStatement;
+        if (remainder > 0) {
+            try (PreparedStatement st = connection.prepareStatement(insertSql(labels, remainder))) {
+                bindRows(st, columns, jdbcTypes, rows, fullStatements * rowsPerStatement, remainder);
+                st.executeUpdate();
+            }
+        }
+    }
+
+    protected void update(Connection connection, DataFrame df, int[] rows, int len, BitSet[] changes)
+            throws SQLException {
+
+        String[] labels = df.getColumnsIndex().getLabels();
+        int[] keyPositions = TargetMatcher.positions(labels, keyColumns);
+
+        BitSet allValues = new BitSet(labels.length);
+        allValues.set(0, labels.length);
+        for (int k : keyPositions) {
+            allValues.clear(k);
+        }
+
+        if (allValues.isEmpty()) {
+            // all columns are keys, there's nothing to update
+            return;
+        }
+
+        Series<?>[] columns = columns(df);
+        int[] jdbcTypes = jdbcTypes(labels);
+
+        // each set of changed columns needs its own statement. The rows are kept in order, so that concurrent
+        // transactions lock them in the same order, and a statement batch is executed before switching to another one
+        Map<BitSet, PreparedStatement> statements = new HashMap<>();
+        try {
+            BitSet current = null;
+            int[] valuePositions = null;
+            int pending = 0;
+
+            for (int r = 0; r < len; r++) {
+                int i = rows[r];
+                BitSet changed = changes != null && changes[i] != null ? changes[i] : allValues;
+
+                if (!changed.equals(current)) {
+                    if (pending > 0) {
+                        statements.get(current).executeBatch();
+                        pending = 0;
+                    }
+
+                    current = changed;
+                    valuePositions = changed.stream().toArray();
+                }
+
+                PreparedStatement st = statements.get(changed);
+                if (st == null) {
+                    st = connection.prepareStatement(updateSql(labels, valuePositions, keyPositions));
+                    statements.put(changed, st);
+                }
+
+                int p = 1;
+                for (int j : valuePositions) {
+                    JdbcValues.bind(st, p++, columns[j].get(i), jdbcTypes[j]);
+                }
+
+                for (int j : keyPositions) {
+                    JdbcValues.bind(st, p++, columns[j].get(i), jdbcTypes[j]);
+                }
+
+                st.addBatch();
+
+                if (++pending == batchSize) {
+                    st.executeBatch();
+                    pending = 0;
+                }
+            }
+
+            if (pending > 0) {
+                statements.get(current).executeBatch();
+            }
+        } finally {
+            for (PreparedStatement st : statements.values()) {
+                st.close();
+            }
+        }
+    }
+
+    private static void bindRows(
+            PreparedStatement st,
+            Series<?>[] columns,
+            int[] jdbcTypes,
+            int[] rows,
+            int from,
+            int len) throws SQLException {
+
+        int w = columns.length;
+        int p = 1;
+        for (int r = from; r < from + len; r++) {
+            int i = rows[r];
+            for (int j = 0; j < w; j++) {
+                JdbcValues.bind(st, p++, columns[j].get(i), jdbcTypes[j]);
+            }
+        }
+    }
+
+    String insertSql(String[] labels, int rowCount) {
+
+        StringBuilder row = new StringBuilder("(");
+        for (int j = 0; j < labels.length; j++) {
+            row.append(j > 0 ? ", ?" : "?");
+        }
+        row.append(")");
+
+        StringBuilder sql = new StringBuilder("INSERT INTO ").append(table)
+                .append(" (").append(String.join(", ", labels)).append(") VALUES ");
+
+        for (int i = 0; i < rowCount; i++) {
+            if (i > 0) {
+                sql.append(", ");
+            }
+            sql.append(row);
+        }
+
+        return sql.toString();
+    }
+
+    String updateSql(String[] labels, int[] valuePositions, int[] keyPositions) {
+
+        StringBuilder sql = new StringBuilder("UPDATE ").append(table).append(" SET ");
+        for (int v = 0; v < valuePositions.length; v++) {
+            sql.append(v > 0 ? ", " : "").append(labels[valuePositions[v]]).append(" = ?");
+        }
+
+        sql.append(" WHERE ");
+        for (int k = 0; k < keyPositions.length; k++) {
+            sql.append(k > 0 ? " AND " : "").append(labels[keyPositions[k]]).append(" = ?");
+        }
+
+        return sql.toString();
+    }
+
+    private static Series<?>[] columns(DataFrame df) {
+        int w = df.width();
+        Series<?>[] columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        return columns;
+    }
+
+    private int[] jdbcTypes(String[] labels) {
+        int[] types = new int[labels.length];
+        for (int j = 0; j < labels.length; j++) {
+            types[j] = tableMetadata.getColumn(labels[j]).getType();
+        }
+
+        return types;
+    }
+}
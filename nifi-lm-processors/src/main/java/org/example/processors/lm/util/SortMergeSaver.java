@@ -0,0 +1,304 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.apache.nifi.processor.exception.ProcessException;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.function.IntPredicate;
+
+/**
+ * Matches spilled rows against the target table by merge-joining them with the target rows streamed in key order
+ * via "SELECT .. ORDER BY key". Memory use doesn't depend on the source or the target size. The DB must order the
+ * keys the same way Java does, which is verified while streaming, as e.g. string collations may differ. Matched
+ * rows are written in batches with a {@link RowWriter}. Doesn't commit, unless a commit interval is set. Rows with
+ * the same key come out of the merge next to each other, ordered by their sequence number, so the duplicate key policy
+ * is applied to all spilled rows at once.
+ */
+public class SortMergeSaver {
+
+    private final String table;
+    private final String[] keyColumns;
+    private final String[] ignoredColumns;
+    private final RowWriter writer;
+    private final DuplicateKeyPolicy duplicateKeyPolicy;
+    private final int fetchSize;
+    private final int writeBatchRows;
+    private final int commitInterval;
+
+    /**
+     * @param fetchSize      the number of target rows to fetch from the DB at once
+     * @param writeBatchRows the number of inserted or updated rows to accumulate before writing them
+     * @param commitInterval the number of written rows to commit the writer at, or zero to leave the commit to the
+     *                       caller. The writer is committed once the written batch reaches it
+     */
+    public SortMergeSaver(
+            String table,
+            String[] keyColumns,
+            String[] ignoredColumns,
+            RowWriter writer,
+            DuplicateKeyPolicy duplicateKeyPolicy,
+            int fetchSize,
+            int writeBatchRows,
+            int commitInterval) {
+
+        this.table = table;
+        this.keyColumns = keyColumns;
+        this.ignoredColumns = ignoredColumns;
+        this.writer = writer;
+        this.duplicateKeyPolicy = duplicateKeyPolicy;
+        this.fetchSize = fetchSize;
+        this.writeBatchRows = Math.max(1, writeBatchRows);
+        this.commitInterval = commitInterval;
+    }
+
+    /**
+     * Merge-joins the spilled rows with the target table, writing the inserts and updates. Returns row outcome
+     * ordinals indexed by the row sequence number. Rows of the skipped segments are not saved, and their outcomes are
+     * set to -1. Rows superseded by another row with the same key are not saved either, and are reported as
+     * {@link RowOutcome#collapsed}.
+     *
+     * @param reader a connection to stream the target rows. It must be in a transaction, as many drivers (e.g.
+     *               PostgreSQL) only stream the results within a transaction
+     * @param writer a connection to write the rows
+     */
+    public byte[] save(
+            Connection reader,
+            Connection writer,
+            SpilledRuns runs,
+            IntPredicate skipSegment,
+            PhaseTimings timings) throws SQLException, IOException {
+
+        long t0 = System.nanoTime();
+
+        String[] labels = runs.getLabels();
+        int[] keyPositions = runs.getKeyPositions();
+        RowDiff rowDiff = new RowDiff(labels, keyPositions, ignoredColumns);
+
+        byte[] outcomes = new byte[runs.size()];
+        Arrays.fill(outcomes, (byte) -1);
+
+        WriteBuffer buffer = new WriteBuffer(labels);
+
+        try (Statement st = reader.createStatement();
+             SpilledRuns.Merge source = runs.merge()) {
+
+            JdbcValues.setStreamingFetchSize(st, fetchSize);
+
+            try (ResultSet rs = st.executeQuery(selectSql(labels, keyPositions))) {
+
+                TargetCursor target = new TargetCursor(rs, labels.length, keyPositions);
+                target.next();
+
+                // the last row with a non-null key, held back under "last_wins" until the next key shows up
+                Object[] held = null;
+                int heldSeq = -1;
+
+                while (source.next()) {
+
+                    if (skipSegment.test(source.getSegment())) {
+                        continue;
+                    }
+
+                    Object[] row = source.getValues();
+                    int seq = source.getSeq();
+
+                    // rows with null keys can't match any target row, so are never duplicates
+                    if (SpilledRuns.hasNullKey(row, keyPositions)) {
+                        outcomes[seq] = (byte) save(row, null, rowDiff, buffer, writer).ordinal();
+                        continue;
+                    }
+
+                    if (held != null && SpilledRuns.compareKeys(held, row, keyPositions) == 0) {
+                        if (duplicateKeyPolicy == DuplicateKeyPolicy.fail) {
+                            throw new ProcessException("Found rows with duplicate keys " + Arrays.toString(keyColumns)
+                                    + " while saving to '" + table + "'");
+                        }
+
+                        if (duplicateKeyPolicy == DuplicateKeyPolicy.first_wins) {
+                            outcomes[seq] = (byte) RowOutcome.collapsed.ordinal();
+                            continue;
+                        }
+
+                        if (duplicateKeyPolicy == DuplicateKeyPolicy.last_wins) {
+                            outcomes[heldSeq] = (byte) RowOutcome.collapsed.ordinal();
+                            held = row;
+                            heldSeq = seq;
+                            continue;
+                        }
+                    }
+
+                    if (held != null && duplicateKeyPolicy == DuplicateKeyPolicy.last_wins) {
+                        outcomes[heldSeq] = (byte) save(held, target, rowDiff, buffer, writer).ordinal();
+                    }
+
+                    if (duplicateKeyPolicy != DuplicateKeyPolicy.last_wins) {
+                        outcomes[seq] = (byte) save(row, target, rowDiff, buffer, writer).ordinal();
+                    }
+
+                    held = row;
+                    heldSeq = seq;
+                }
+
+                if (held != null && duplicateKeyPolicy == DuplicateKeyPolicy.last_wins) {
+                    outcomes[heldSeq] = (byte) save(held, target, rowDiff, buffer, writer).ordinal();
+                }
+            }
+        }
+
+        buffer.write(writer);
+
+        timings.add(UpsertPhase.match, System.nanoTime() - t0 - buffer.writeNanos);
+        timings.add(UpsertPhase.write, buffer.writeNanos);
+        return outcomes;
+    }
+
+    // matches a row against the target row with the same key, if any, and buffers it for writing unless skipped
+    private RowOutcome save(Object[] row, TargetCursor target, RowDiff rowDiff, WriteBuffer buffer, Connection writer)
+            throws SQLException {
+
+        RowOutcome outcome;
+        BitSet changed = null;
+
+        if (target == null) {
+            outcome = RowOutcome.inserted;
+        } else {
+
+            // the target row is kept while it matches, as the source may have more rows with this key
+            while (target.row != null && SpilledRuns.compareKeys(target.row, row, target.keyPositions) < 0) {
+                target.next();
+            }
+
+            if (target.row != null && SpilledRuns.compareKeys(target.row, row, target.keyPositions) == 0) {
+                changed = rowDiff.diff(row, target.row);
+                outcome = changed != null ? RowOutcome.updated : RowOutcome.skipped;
+            } else {
+                outcome = RowOutcome.inserted;
+            }
+        }
+
+        if (outcome != RowOutcome.skipped && buffer.add(row, outcome, changed) == writeBatchRows) {
+            buffer.write(writer);
+        }
+
+        return outcome;
+    }
+
+    String selectSql(String[] labels, int[] keyPositions) {
+
+        StringBuilder sql = new StringBuilder("SELECT ").append(String.join(", ", labels))
+                .append(" FROM ").append(table).append(" WHERE ");
+
+        // rows with null keys can't match any source row
+        for (int k = 0; k < keyPositions.length; k++) {
+            sql.append(k > 0 ? " AND " : "").append(labels[keyPositions[k]]).append(" IS NOT NULL");
+        }
+
+        sql.append(" ORDER BY ");
+        for (int k = 0; k < keyPositions.length; k++) {
+            sql.append(k > 0 ? ", " : "").append(labels[keyPositions[k]]);
+        }
+
+        return sql.toString();
+    }
+
+    private class TargetCursor {
+
+        private final ResultSet rs;
+        private final int width;
+        private final int[] keyPositions;
+        private Object[] row;
+
+        TargetCursor(ResultSet rs, int width, int[] keyPositions) {
+            this.rs = rs;
+            this.width = width;
+            this.keyPositions = keyPositions;
+        }
+
+        void next() throws SQLException {
+
+            if (!rs.next()) {
+                row = null;
+                return;
+            }
+
+            Object[] next = new Object[width];
+            for (int j = 0; j < width; j++) {
+                next[j] = JdbcValues.normalize(rs.getObject(j + 1));
+            }
+
+            // a merge join silently misclassifies rows if the DB order differs from ours
+            if (row != null && SpilledRuns.compareKeys(row, next, keyPositions) > 0) {
+                throw new IllegalStateException("Table '" + table + "' rows ordered by " + Arrays.toString(keyColumns)
+                        + " are not in the expected order, e.g. because of the DB collation. "
+                        + "Use the in-memory matching instead");
+            }
+
+            row = next;
+        }
+    }
+
+    private class WriteBuffer {
+
+        private final String[] labels;
+        private final Object[][] rows;
+        private final RowOutcome[] outcomes;
+        private final BitSet[] changes;
+        private int size;
+        private int uncommitted;
+        private long writeNanos;
+
+        WriteBuffer(String[] labels) {
+            this.labels = labels;
+            this.rows = new Object[writeBatchRows][];
+            this.outcomes = new RowOutcome[writeBatchRows];
+            this.changes = new BitSet[writeBatchRows];
+        }
+
+        int add(Object[] row, RowOutcome outcome, BitSet changed) {
+            rows[size] = row;
+            outcomes[size] = outcome;
+            changes[size] = changed;
+            return ++size;
+        }
+
+        void write(Connection connection) throws SQLException {
+
+            if (size == 0) {
+                return;
+            }
+
+            long t0 = System.nanoTime();
+
+            int w = labels.length;
+            Series<?>[] columns = new Series[w];
+            for (int j = 0; j < w; j++) {
+                Object[] data = new Object[size];
+                for (int i = 0; i < size; i++) {
+                    data[i] = rows[i][j];
+                }
+                columns[j] = Series.forData(data);
+            }
+
+            DataFrame df = DataFrame.newFrame(labels).columns(columns);
+            writer.write(connection, df, Arrays.copyOf(outcomes, size), Arrays.copyOf(changes, size));
+
+            uncommitted += size;
+            if (commitInterval > 0 && uncommitted >= commitInterval) {
+                connection.commit();
+                uncommitted = 0;
+            }
+
+            Arrays.fill(rows, 0, size, null);
+            size = 0;
+            writeNanos += System.nanoTime() - t0;
+        }
+    }
+}
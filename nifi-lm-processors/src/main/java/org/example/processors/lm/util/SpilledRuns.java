@@ -0,0 +1,396 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Rows spilled to local files as runs sorted by key, for the sort-merge matching of record sets larger than memory.
+ * Each run is written from a single chunk, and all runs are merged into a single sorted stream on read. Rows are
+ * stored with their segment and sequence number, so that the outcomes can be traced back to the source records.
+ */
+public class SpilledRuns implements Closeable {
+
+    private static final byte NULL = 0;
+    private static final byte LONG = 1;
+    private static final byte DOUBLE = 2;
+    private static final byte FLOAT = 3;
+    private static final byte BOOLEAN = 4;
+    private static final byte STRING = 5;
+    private static final byte DATE = 6;
+    private static final byte DATE_TIME = 7;
+    private static final byte TIME = 8;
+    private static final byte DECIMAL = 9;
+    private static final byte BYTES = 10;
+
+    private static final int BUFFER_SIZE = 8192;
+
+    private final Path directory;
+    private final String[] keyColumns;
+    private final List<Path> files;
+    private final List<Integer> runSizes;
+
+    private String[] labels;
+    private int[] keyPositions;
+    private int size;
+
+    /**
+     * @param directory  a local directory for the run files
+     * @param keyColumns the columns to sort the rows by
+     */
+    public SpilledRuns(Path directory, String[] keyColumns) {
+        this.directory = directory;
+        this.keyColumns = keyColumns;
+        this.files = new ArrayList<>();
+        this.runSizes = new ArrayList<>();
+    }
+
+    /**
+     * Compares row keys, with the rows that have null key values ordered first. Values are normalized via
+     * {@link JdbcValues#normalize(Object)}, so that the rows read from the DB can be compared with the source rows.
+     */
+    @SuppressWarnings("unchecked")
+    static int compareKeys(Object[] row1, Object[] row2, int[] keyPositions) {
+
+        boolean nulls1 = hasNullKey(row1, keyPositions);
+        boolean nulls2 = hasNullKey(row2, keyPositions);
+        if (nulls1 || nulls2) {
+            return nulls1 == nulls2 ? 0 : (nulls1 ? -1 : 1);
+        }
+
+        for (int p : keyPositions) {
+            Comparable<Object> v1 = (Comparable<Object>) JdbcValues.normalize(row1[p]);
+            int c = v1.compareTo(JdbcValues.normalize(row2[p]));
+            if (c != 0) {
+                return c;
+            }
+        }
+
+        return 0;
+    }
+
+    static boolean hasNullKey(Object[] row, int[] keyPositions) {
+        for (int p : keyPositions) {
+            if (row[p] == null) {
+                return true;
+            }
+        }
+
+        return false;
+    }
+
+    /**
+     * Sorts the DataFrame rows by key and writes them as a new run. All runs must have the same columns.
+     *
+     * @param segments the segment of each row
+     * @param firstSeq the sequence number of the first row. The following rows are numbered consecutively
+     */
+    public void add(DataFrame df, int[] segments, int firstSeq) throws IOException {
+
+        String[] dfLabels = df.getColumnsIndex().getLabels();
+        if (labels == null) {
+            this.labels = dfLabels;
+            this.keyPositions = TargetMatcher.positions(dfLabels, keyColumns);
+        } else if (!Arrays.equals(labels, dfLabels)) {
+            throw new IllegalArgumentException("Can't merge runs with different columns: "
+                    + Arrays.toString(labels) + " vs. " + Arrays.toString(dfLabels));
+        }
+
+        int h = df.height();
+        int w = dfLabels.length;
+
+        Series<?>[] columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        Object[][] rows = new Object[h][];
+        Integer[] order = new Integer[h];
+        for (int i = 0; i < h; i++) {
+            Object[] row = new Object[w];
+            for (int j = 0; j < w; j++) {
+                row[j] = columns[j].get(i);
+            }
+
+            rows[i] = row;
+            order[i] = i;
+        }
+
+        // the sort is stable, so the rows with the same key remain in their original order
+        Arrays.sort(order, (i1, i2) -> compareKeys(rows[i1], rows[i2], keyPositions));
+
+        Path file = Files.createTempFile(directory, "upsert-run-", ".bin");
+        try (DataOutputStream out = new DataOutputStream(new BufferedOutputStream(Files.newOutputStream(file), BUFFER_SIZE))) {
+            for (Integer i : order) {
+                out.writeInt(segments[i]);
+                out.writeInt(firstSeq + i);
+                for (Object v : rows[i]) {
+                    writeValue(out, v);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            Files.deleteIfExists(file);
+            throw e;
+        }
+
+        files.add(file);
+        runSizes.add(h);
+        size += h;
+    }
+
+    /**
+     * Returns the total number of spilled rows.
+     */
+    public int size() {
+        return size;
+    }
+
+    public int getRunCount() {
+        return files.size();
+    }
+
+    public String[] getLabels() {
+        return labels;
+    }
+
+    int[] getKeyPositions() {
+        return keyPositions;
+    }
+
+    /**
+     * Opens a stream of rows from all runs, ordered by key. Rows with the same key are ordered by sequence number.
+     */
+    public Merge merge() throws IOException {
+        return new Merge();
+    }
+
+    /**
+     * Deletes the run files.
+     */
+    @Override
+    public void close() throws IOException {
+        IOException failure = null;
+        for (Path f : files) {
+            try {
+                Files.deleteIfExists(f);
+            } catch (IOException e) {
+                failure = e;
+            }
+        }
+
+        files.clear();
+        runSizes.clear();
+        size = 0;
+
+        if (failure != null) {
+            throw failure;
+        }
+    }
+
+    // values are normalized, so e.g. Integers are read back as Longs
+    private static void writeValue(DataOutputStream out, Object value) throws IOException {
+
+        Object v = JdbcValues.normalize(value);
+
+        if (v == null) {
+            out.writeByte(NULL);
+        } else if (v instanceof Long) {
+            out.writeByte(LONG);
+            out.writeLong((Long) v);
+        } else if (v instanceof Double) {
+            out.writeByte(DOUBLE);
+            out.writeDouble((Double) v);
+        } else if (v instanceof Float) {
+            out.writeByte(FLOAT);
+            out.writeFloat((Float) v);
+        } else if (v instanceof Boolean) {
+            out.writeByte(BOOLEAN);
+            out.writeBoolean((Boolean) v);
+        } else if (v instanceof String) {
+            out.writeByte(STRING);
+            writeBytes(out, ((String) v).getBytes(StandardCharsets.UTF_8));
+        } else if (v instanceof LocalDate) {
+            out.writeByte(DATE);
+            out.writeLong(((LocalDate) v).toEpochDay());
+        } else if (v instanceof LocalDateTime) {
+            LocalDateTime dt = (LocalDateTime) v;
+            out.writeByte(DATE_TIME);
+            out.writeLong(dt.toLocalDate().toEpochDay());
+            out.writeLong(dt.toLocalTime().toNanoOfDay());
+        } else if (v instanceof LocalTime) {
+            out.writeByte(TIME);
+            out.writeLong(((LocalTime) v).toNanoOfDay());
+        } else if (v instanceof BigDecimal) {
+            out.writeByte(DECIMAL);
+            writeBytes(out, v.toString().getBytes(StandardCharsets.UTF_8));
+        } else if (v instanceof byte[]) {
+            out.writeByte(BYTES);
+            writeBytes(out, (byte[]) v);
+        } else {
+            throw new IllegalArgumentException("Can't spill a value of type " + v.getClass().getName());
+        }
+    }
+
+    private static void writeBytes(DataOutputStream out, byte[] bytes) throws IOException {
+        out.writeInt(bytes.length);
+        out.write(bytes);
+    }
+
+    private static Object readValue(DataInputStream in) throws IOException {
+
+        byte type = in.readByte();
+        switch (type) {
+            case NULL:
+                return null;
+            case LONG:
+                return in.readLong();
+            case DOUBLE:
+                return in.readDouble();
+            case FLOAT:
+                return in.readFloat();
+            case BOOLEAN:
+                return in.readBoolean();
+            case STRING:
+                return new String(readBytes(in), StandardCharsets.UTF_8);
+            case DATE:
+                return LocalDate.ofEpochDay(in.readLong());
+            case DATE_TIME:
+                LocalDate date = LocalDate.ofEpochDay(in.readLong());
+                return LocalDateTime.of(date, LocalTime.ofNanoOfDay(in.readLong()));
+            case TIME:
+                return LocalTime.ofNanoOfDay(in.readLong());
+            case DECIMAL:
+                return new BigDecimal(new String(readBytes(in), StandardCharsets.UTF_8));
+            case BYTES:
+                return readBytes(in);
+            default:
+                throw new IOException("Corrupted run file, unknown value type: " + type);
+        }
+    }
+
+    private static byte[] readBytes(DataInputStream in) throws IOException {
+        byte[] bytes = new byte[in.readInt()];
+        in.readFully(bytes);
+        return bytes;
+    }
+
+    /**
+     * A k-way merge of the sorted runs. Only one row per run is kept in memory.
+     */
+    public class Merge implements Closeable {
+
+        private final PriorityQueue<RunReader> queue;
+        private final List<RunReader> readers;
+        private RunReader current;
+
+        Merge() throws IOException {
+            this.queue = new PriorityQueue<>(Math.max(1, files.size()), (r1, r2) -> {
+                int c = compareKeys(r1.values, r2.values, keyPositions);
+                return c != 0 ? c : Integer.compare(r1.seq, r2.seq);
+            });
+
+            this.readers = new ArrayList<>(files.size());
+
+            try {
+                for (int i = 0; i < files.size(); i++) {
+                    RunReader r = new RunReader(files.get(i), runSizes.get(i), labels.length);
+                    readers.add(r);
+                    if (r.next()) {
+                        queue.add(r);
+                    }
+                }
+            } catch (IOException | RuntimeException e) {
+                close();
+                throw e;
+            }
+        }
+
+        /**
+         * Advances to the next row, returning false if there are no more rows.
+         */
+        public boolean next() throws IOException {
+
+            if (current != null && current.next()) {
+                queue.add(current);
+            }
+
+            current = queue.poll();
+            return current != null;
+        }
+
+        public int getSegment() {
+            return current.segment;
+        }
+
+        public int getSeq() {
+            return current.seq;
+        }
+
+        /**
+         * Returns the current row values, normalized via {@link JdbcValues#normalize(Object)}.
+         */
+        public Object[] getValues() {
+            return current.values;
+        }
+
+        @Override
+        public void close() throws IOException {
+            for (RunReader r : readers) {
+                r.in.close();
+            }
+        }
+    }
+
+    private static class RunReader {
+
+        private final DataInputStream in;
+        private int remaining;
+
+        private int segment;
+        private int seq;
+        private Object[] values;
+
+        RunReader(Path file, int rows, int width) throws IOException {
+            this.in = new DataInputStream(new BufferedInputStream(Files.newInputStream(file), BUFFER_SIZE));
+            this.remaining = rows;
+            this.values = new Object[width];
+        }
+
+        boolean next() throws IOException {
+
+            if (remaining == 0) {
+                return false;
+            }
+
+            segment = in.readInt();
+            seq = in.readInt();
+
+            // a new array for each row, as the caller may still hold the previous one
+            Object[] row = new Object[values.length];
+            for (int j = 0; j < row.length; j++) {
+                row[j] = readValue(in);
+            }
+
+            values = row;
+            remaining--;
+            return true;
+        }
+    }
+}
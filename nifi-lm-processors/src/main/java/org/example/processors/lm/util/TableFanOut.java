@@ -0,0 +1,310 @@
+package org.example.processors.lm.util;
+
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.function.Function;
+
+/**
+ * Saves records to multiple target tables in a single transaction over a single connection, so that either all
+ * records of all tables are saved, or none of them. The caller reads each record set ("segment") once, choosing the
+ * table of each record, e.g. via a record path. Records are appended to a per-table {@link UpsertBatch}, that converts
+ * them with its own field converters and saves them in chunks without committing.
+ */
+public class TableFanOut {
+
+    private final DBCPService db;
+    private final TransactionIsolation isolation;
+    private final ComponentLog logger;
+    private final Function<String, UpsertBuilder> upserterFactory;
+
+    private final Map<String, UpsertBuilder> upserters;
+    private final Map<String, UpsertBatch> batches;
+    private final List<Exception> failures;
+    private final List<PhaseTimings> readTimings;
+    private final PhaseTimings commitTimings;
+
+    private Transaction transaction;
+    private boolean anyFailed;
+    private boolean committed;
+    private int totalRows;
+
+    /**
+     * @param upserterFactory creates an upserter for the given target table. Called once per table
+     */
+    public TableFanOut(
+            DBCPService db,
+            TransactionIsolation isolation,
+            ComponentLog logger,
+            Function<String, UpsertBuilder> upserterFactory) {
+
+        this.db = db;
+        this.isolation = isolation;
+        this.logger = logger;
+        this.upserterFactory = upserterFactory;
+
+        this.upserters = new LinkedHashMap<>();
+        this.batches = new LinkedHashMap<>();
+        this.failures = new ArrayList<>();
+        this.readTimings = new ArrayList<>();
+        this.commitTimings = new PhaseTimings();
+    }
+
+    /**
+     * Starts a new segment, returning its number.
+     */
+    public int newSegment() {
+        for (UpsertBatch batch : batches.values()) {
+            batch.newSegment();
+        }
+
+        failures.add(null);
+        readTimings.add(new PhaseTimings());
+        return failures.size() - 1;
+    }
+
+    /**
+     * Reads all records of the segment, appending each of them to the batch of the table chosen by "tableOf". Once
+     * any segment failed, the transaction can only be rolled back, so the records are not read. If this method
+     * throws, the caller must call {@link #fail(int, Exception)}.
+     */
+    public void append(int segment, RecordReader reader, Function<Record, String> tableOf)
+            throws IOException, MalformedRecordException {
+
+        RecordSchema schema = reader.getSchema();
+
+        // the batches track the conversion time, so only reading and table selection are timed here, excluding
+        // the chunks saved on append
+        long readNanos = 0;
+        long t0 = System.nanoTime();
+
+        Record record;
+        while (!anyFailed && (record = reader.nextRecord()) != null) {
+
+            UpsertBatch batch = batch(tableOf.apply(record));
+            readNanos += System.nanoTime() - t0;
+
+            batch.append(segment, schema, record);
+
+            // a failed chunk includes the record just appended, unless it was saved before the record, in which
+            // case the failure is found on save
+            if (batch.isFailed(segment)) {
+                anyFailed = true;
+            }
+
+            t0 = System.nanoTime();
+        }
+
+        readNanos += System.nanoTime() - t0;
+        readTimings.get(segment).add(UpsertPhase.read, readNanos);
+    }
+
+    public void fail(int segment, Exception e) {
+        failures.set(segment, e);
+        anyFailed = true;
+    }
+
+    /**
+     * Saves the remaining records of all tables and commits the transaction, if no segment failed. Otherwise rolls
+     * the transaction back and marks all segments as failed, as none of their records were saved.
+     */
+    public void save() {
+
+        if (transaction != null) {
+            try {
+                if (firstFailure() == null) {
+                    for (UpsertBatch batch : batches.values()) {
+                        batch.flush();
+                    }
+                }
+
+                if (firstFailure() == null) {
+                    long t0 = System.nanoTime();
+                    transaction.commit();
+                    commitTimings.add(UpsertPhase.write, System.nanoTime() - t0);
+                    committed = true;
+                } else {
+                    transaction.rollback();
+                }
+            } catch (SQLException e) {
+                failAll(e);
+            } finally {
+                closeTransaction();
+            }
+        }
+
+        Exception failure = firstFailure();
+        if (failure != null) {
+
+            // segments that didn't fail on their own are reported with the first failure
+            for (int i = 0; i < failures.size(); i++) {
+                Exception segmentFailure = segmentFailure(i);
+                failures.set(i, segmentFailure != null ? segmentFailure : failure);
+            }
+
+            logger.debug("Rolled back the save to tables {}", new Object[]{batches.keySet()});
+            return;
+        }
+
+        for (int i = 0; i < failures.size(); i++) {
+            for (UpsertBatch batch : batches.values()) {
+                totalRows += batch.getStats(i).getTotal();
+            }
+        }
+
+        logger.debug("Saved {} records to tables {}", new Object[]{totalRows, batches.keySet()});
+    }
+
+    /**
+     * Returns the tables that had any records appended.
+     */
+    public Set<String> getTables() {
+        return batches.keySet();
+    }
+
+    public UpsertBuilder getUpserter(String table) {
+        return upserters.get(table);
+    }
+
+    /**
+     * Returns the highest watermark column value among the rows saved to the table, or null if there's no watermark,
+     * or if the transaction was not committed.
+     */
+    public Object getWatermarkValue(String table) {
+        return committed ? batches.get(table).getWatermarkValue() : null;
+    }
+
+    public int size() {
+        return failures.size();
+    }
+
+    public boolean isFailed(int segment) {
+        return failures.get(segment) != null;
+    }
+
+    public Exception getFailure(int segment) {
+        return failures.get(segment);
+    }
+
+    /**
+     * Returns the stats of the segment summed over all tables.
+     */
+    public UpsertStats getStats(int segment) {
+
+        UpsertStats stats = new UpsertStats();
+        for (UpsertBatch batch : batches.values()) {
+            stats.add(batch.getStats(segment));
+        }
+
+        stats.getTimings().add(readTimings.get(segment), 1, 1);
+        stats.getTimings().add(commitTimings, stats.getTotal(), totalRows);
+        return stats;
+    }
+
+    /**
+     * Returns the time spent in each upsert phase by all segments and tables.
+     */
+    public PhaseTimings getTimings() {
+
+        PhaseTimings timings = new PhaseTimings();
+        for (UpsertBatch batch : batches.values()) {
+            timings.add(batch.getTimings(), 1, 1);
+        }
+
+        for (PhaseTimings t : readTimings) {
+            timings.add(t, 1, 1);
+        }
+
+        timings.add(commitTimings, 1, 1);
+        return timings;
+    }
+
+    private UpsertBatch batch(String table) {
+
+        UpsertBatch batch = batches.get(table);
+        if (batch == null) {
+            UpsertBuilder upserter = upserterFactory.apply(table).connection(transaction().getConnection());
+            batch = upserter.createBatch();
+
+            // catch up with the segments started before the first record of this table
+            for (int i = 0; i < failures.size(); i++) {
+                batch.newSegment();
+            }
+
+            upserters.put(table, upserter);
+            batches.put(table, batch);
+        }
+
+        return batch;
+    }
+
+    private Transaction transaction() {
+
+        if (transaction == null) {
+            try {
+                transaction = Transaction.begin(db, isolation);
+            } catch (SQLException e) {
+                throw new ProcessException("Failed to start a transaction", e);
+            }
+        }
+
+        return transaction;
+    }
+
+    private void closeTransaction() {
+        try {
+            transaction.close();
+        } catch (SQLException e) {
+            logger.warn("Failed to close connection", e);
+        }
+
+        transaction = null;
+    }
+
+    private Exception firstFailure() {
+
+        for (int i = 0; i < failures.size(); i++) {
+            Exception failure = segmentFailure(i);
+            if (failure != null) {
+                return failure;
+            }
+        }
+
+        return null;
+    }
+
+    private Exception segmentFailure(int segment) {
+
+        if (failures.get(segment) != null) {
+            return failures.get(segment);
+        }
+
+        for (UpsertBatch batch : batches.values()) {
+            if (batch.isFailed(segment)) {
+                return batch.getFailure(segment);
+            }
+        }
+
+        return null;
+    }
+
+    private void failAll(Exception e) {
+        for (int i = 0; i < failures.size(); i++) {
+            if (failures.get(i) == null) {
+                failures.set(i, e);
+            }
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Matches DataFrame rows against the target table rows with the same keys, classifying each row as an insert, an
+ * update or a skip. Existing rows are fetched with "SELECT .. WHERE key IN (..)" queries, limited by the number of
+ * keys per query. Differences in the "ignored" columns alone don't make a row updated. With a watermark, only the keys
+ * of the rows above it are fetched, as such rows are either inserted or updated.
+ */
+public class TargetMatcher {
+
+    private static final int MAX_PARAMETERS_PER_QUERY = 1000;
+
+    private final DbTableMetadata tableMetadata;
+    private final String table;
+    private final String[] keyColumns;
+    private final String[] ignoredColumns;
+    private final Watermark watermark;
+
+    public TargetMatcher(DbTableMetadata tableMetadata, String table, String[] keyColumns) {
+        this(tableMetadata, table, keyColumns, new String[0]);
+    }
+
+    /**
+     * @param ignoredColumns columns that are not compared to detect changed rows, e.g. load timestamps or audit
+     *                       fields. They are still reported as changed if the row is updated for other reasons
+     */
+    public TargetMatcher(DbTableMetadata tableMetadata, String table, String[] keyColumns, String[] ignoredColumns) {
+        this(tableMetadata, table, keyColumns, ignoredColumns, null);
+    }
+
+    /**
+     * @param watermark an optional watermark of the target table. Rows above it are matched by key only, and are
+     *                  updated in full if they exist
+     */
+    public TargetMatcher(
+            DbTableMetadata tableMetadata,
+            String table,
+            String[] keyColumns,
+            String[] ignoredColumns,
+            Watermark watermark) {
+
+        this.tableMetadata = tableMetadata;
+        this.table = table;
+        this.keyColumns = keyColumns;
+        this.ignoredColumns = ignoredColumns;
+        this.watermark = watermark;
+    }
+
+    public RowOutcome[] match(Connection connection, DataFrame df, PhaseTimings timings) throws SQLException {
+        return match(connection, df, timings, null);
+    }
+
+    /**
+     * Matches the rows, optionally reporting the positions of the changed columns of each updated row in the
+     * "changes" array, so that only those columns can be updated.
+     */
+    public RowOutcome[] match(Connection connection, DataFrame df, PhaseTimings timings, BitSet[] changes)
+            throws SQLException {
+
+        long t0 = System.nanoTime();
+
+        String[] labels = df.getColumnsIndex().getLabels();
+        int[] keyPositions = positions(labels, keyColumns);
+
+        int h = df.height();
+        int w = labels.length;
+
+        Series<?>[] columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        boolean[] newer = newer(labels, columns, h);
+
+        // keys of the rows that need a full match, and of the rows above the watermark
+        Object[] keys = new Object[h];
+        Object[] newerKeys = new Object[h];
+        for (int i = 0; i < h; i++) {
+            Object key = key(columns, keyPositions, i);
+            if (newer != null && newer[i]) {
+                newerKeys[i] = key;
+            } else {
+                keys[i] = key;
+            }
+        }
+
+        RowDiff rowDiff = new RowDiff(labels, keyPositions, ignoredColumns);
+
+        Map<Object, Object[]> targetRows = fetch(connection, labels, keyPositions, keys);
+        Map<Object, Object[]> newerTargetRows = null;
+        if (newer != null) {
+            String[] keyLabels = new String[keyPositions.length];
+            int[] keyLabelPositions = new int[keyPositions.length];
+            for (int k = 0; k < keyPositions.length; k++) {
+                keyLabels[k] = labels[keyPositions[k]];
+                keyLabelPositions[k] = k;
+            }
+
+            newerTargetRows = fetch(connection, keyLabels, keyLabelPositions, newerKeys);
+        }
+
+        long t1 = System.nanoTime();
+        timings.add(UpsertPhase.match, t1 - t0);
+
+        RowOutcome[] outcomes = new RowOutcome[h];
+        Object[] row = new Object[w];
+        for (int i = 0; i < h; i++) {
+
+            // a row above the watermark differs at least in the watermark column, so all its columns are updated
+            if (newer != null && newer[i]) {
+                outcomes[i] = newerKeys[i] != null && newerTargetRows.containsKey(newerKeys[i])
+                        ? RowOutcome.updated
+                        : RowOutcome.inserted;
+                continue;
+            }
+
+            Object[] target = keys[i] != null ? targetRows.get(keys[i]) : null;
+
+            if (target == null) {
+                outcomes[i] = RowOutcome.inserted;
+                continue;
+            }
+
+            for (int j = 0; j < w; j++) {
+                row[j] = columns[j].get(i);
+            }
+
+            BitSet changed = rowDiff.diff(row, target);
+            outcomes[i] = changed != null ? RowOutcome.updated : RowOutcome.skipped;
+
+            if (changes != null) {
+                changes[i] = changed;
+            }
+        }
+
+        timings.add(UpsertPhase.diff, System.nanoTime() - t1);
+        return outcomes;
+    }
+
+    // flags of the rows above the watermark, or null if there's no watermark value yet
+    private boolean[] newer(String[] labels, Series<?>[] columns, int h) {
+
+        if (watermark == null || watermark.getValue() == null) {
+            return null;
+        }
+
+        Series<?> column = columns[watermark.position(labels)];
+        boolean[] newer = new boolean[h];
+        for (int i = 0; i < h; i++) {
+            newer[i] = watermark.isBelow(column.get(i));
+        }
+
+        return newer;
+    }
+
+    private Map<Object, Object[]> fetch(Connection connection, String[] labels, int[] keyPositions, Object[] keys)
+            throws SQLException {
+
+        // dedupe the keys, preserving order
+        Map<Object, Object[]> keyValues = new LinkedHashMap<>();
+        for (Object k : keys) {
+            if (k != null) {
+                keyValues.putIfAbsent(k, keyValues(k));
+            }
+        }
+
+        int keysPerQuery = Math.max(1, MAX_PARAMETERS_PER_QUERY / keyPositions.length);
+        int[] keyTypes = new int[keyPositions.length];
+        for (int k = 0; k < keyPositions.length; k++) {
+            keyTypes[k] = tableMetadata.getColumn(labels[keyPositions[k]]).getType();
+        }
+
+        Map<Object, Object[]> targetRows = new HashMap<>();
+        List<Object[]> group = new ArrayList<>(Math.min(keysPerQuery, keyValues.size()));
+
+        for (Object[] kv : keyValues.values()) {
+            group.add(kv);
+            if (group.size() == keysPerQuery) {
+                fetchGroup(connection, labels, keyPositions, keyTypes, group, targetRows);
+                group.clear();
+            }
+        }
+
+        if (!group.isEmpty()) {
+            fetchGroup(connection, labels, keyPositions, keyTypes, group, targetRows);
+        }
+
+        return targetRows;
+    }
+
+    private void fetchGroup(
+            Connection connection,
+            String[] labels,
+            int[] keyPositions,
+            int[] keyTypes,
+            List<Object[]> keys,
+            Map<Object, Object[]> targetRows) throws SQLException {
+
+        String sql = selectSql(labels, keyPositions, keys.size());
+        int w = labels.length;
+
+        try (PreparedStatement st = connection.prepareStatement(sql)) {
+
+            int p = 1;
+            for (Object[] kv : keys) {
+                for (int k = 0; k < kv.length; k++) {
+                    JdbcValues.bind(st, p++, kv[k], keyTypes[k]);
+                }
+            }
+
+            try (ResultSet rs = st.executeQuery()) {
+                while (rs.next()) {
+                    Object[] row = new Object[w];
+                    for (int j = 0; j < w; j++) {
+                        row[j] = JdbcValues.normalize(rs.getObject(j + 1));
+                    }
+
+                    targetRows.put(key(row, keyPositions), row);
+                }
+            }
+        }
+    }
+
+    private String selectSql(String[] labels, int[] keyPositions, int keyCount) {
+        StringBuilder sql = new StringBuilder("SELECT ").append(String.join(", ", labels))
+                .append(" FROM ").append(table).append(" WHERE ");
+
+        if (keyPositions.length == 1) {
+            sql.append(labels[keyPositions[0]]).append(" IN (");
+            for (int i = 0; i < keyCount; i++) {
+                sql.append(i > 0 ? ", ?" : "?");
+            }
+
+            return sql.append(")").toString();
+        }
+
+        for (int i = 0; i < keyCount; i++) {
+            sql.append(i > 0 ? " OR (" : "(");
+            for (int k = 0; k < keyPositions.length; k++) {
+                sql.append(k > 0 ? " AND " : "").append(labels[keyPositions[k]]).append(" = ?");
+            }
+            sql.append(")");
+        }
+
+        return sql.toString();
+    }
+
+    // returns a normalized key object suitable for hash lookups, or null if the key contains nulls and can never
+    // match an existing row
+    private static Object key(Series<?>[] columns, int[] keyPositions, int row) {
+
+        if (keyPositions.length == 1) {
+            return JdbcValues.normalize(columns[keyPositions[0]].get(row));
+        }
+
+        Object[] values = new Object[keyPositions.length];
+        for (int k = 0; k < keyPositions.length; k++) {
+            values[k] = JdbcValues.normalize(columns[keyPositions[k]].get(row));
+            if (values[k] == null) {
+                return null;
+            }
+        }
+
+        return Arrays.asList(values);
+    }
+
+    private static Object key(Object[] row, int[] keyPositions) {
+
+        if (keyPositions.length == 1) {
+            return row[keyPositions[0]];
+        }
+
+        Object[] values = new Object[keyPositions.length];
+        for (int k = 0; k < keyPositions.length; k++) {
+            values[k] = row[keyPositions[k]];
+        }
+
+        return Arrays.asList(values);
+    }
+
+    private static Object[] keyValues(Object key) {
+        return key instanceof List ? ((List<?>) key).toArray() : new Object[]{key};
+    }
+
+    static int[] positions(String[] labels, String[] columns) {
+        int[] positions = new int[columns.length];
+
+        for (int i = 0; i < columns.length; i++) {
+            positions[i] = -1;
+            for (int j = 0; j < labels.length; j++) {
+                if (labels[j].equalsIgnoreCase(columns[i])) {
+                    positions[i] = j;
+                    break;
+                }
+            }
+
+            if (positions[i] < 0) {
+                throw new IllegalArgumentException("Key column '" + columns[i] + "' is not present in the data");
+            }
+        }
+
+        return positions;
+    }
+}
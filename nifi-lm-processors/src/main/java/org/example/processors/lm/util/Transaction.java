@@ -0,0 +1,73 @@
+package org.example.processors.lm.util;
+
+import org.apache.nifi.dbcp.DBCPService;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+
+/**
+ * A transaction over a pooled connection. Changes the connection isolation level and auto-commit mode for the
+ * duration of the transaction, and restores them on close, so that they don't leak to the other users of the pool.
+ * Uncommitted changes are rolled back on close.
+ */
+public class Transaction implements AutoCloseable {
+
+    private final Connection connection;
+    private final boolean autoCommit;
+
+    // the original isolation level, or -1 if it was not changed
+    private final int isolation;
+
+    public static Transaction begin(DBCPService db, TransactionIsolation isolation) throws SQLException {
+
+        Connection c = db.getConnection();
+        try {
+            return new Transaction(c, isolation.getLevel());
+        } catch (SQLException | RuntimeException e) {
+            c.close();
+            throw e;
+        }
+    }
+
+    private Transaction(Connection connection, int isolation) throws SQLException {
+        this.connection = connection;
+        this.autoCommit = connection.getAutoCommit();
+
+        int current = connection.getTransactionIsolation();
+        if (isolation >= 0 && isolation != current) {
+            connection.setTransactionIsolation(isolation);
+            this.isolation = current;
+        } else {
+            this.isolation = -1;
+        }
+
+        connection.setAutoCommit(false);
+    }
+
+    public Connection getConnection() {
+        return connection;
+    }
+
+    public void commit() throws SQLException {
+        connection.commit();
+    }
+
+    public void rollback() throws SQLException {
+        connection.rollback();
+    }
+
+    @Override
+    public void close() throws SQLException {
+        try {
+            // a no-op if already committed
+            connection.rollback();
+            connection.setAutoCommit(autoCommit);
+
+            if (isolation >= 0) {
+                connection.setTransactionIsolation(isolation);
+            }
+        } finally {
+            connection.close();
+        }
+    }
+}
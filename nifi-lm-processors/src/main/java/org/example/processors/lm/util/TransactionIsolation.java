@@ -0,0 +1,27 @@
+package org.example.processors.lm.util;
+
+import java.sql.Connection;
+
+public enum TransactionIsolation {
+
+    // the connection pool setting, usually the DB default
+    pool_default(-1),
+
+    read_uncommitted(Connection.TRANSACTION_READ_UNCOMMITTED),
+    read_committed(Connection.TRANSACTION_READ_COMMITTED),
+    repeatable_read(Connection.TRANSACTION_REPEATABLE_READ),
+    serializable(Connection.TRANSACTION_SERIALIZABLE);
+
+    private final int level;
+
+    TransactionIsolation(int level) {
+        this.level = level;
+    }
+
+    /**
+     * Returns the JDBC isolation level, or -1 to keep the connection setting.
+     */
+    public int getLevel() {
+        return level;
+    }
+}
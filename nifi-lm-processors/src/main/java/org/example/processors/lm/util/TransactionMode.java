@@ -0,0 +1,14 @@
+package org.example.processors.lm.util;
+
+public enum TransactionMode {
+
+    // each chunk is committed once saved, or each of its partitions, if saved in parallel
+    per_chunk,
+
+    // all rows of a batch are committed at once, or not at all
+    single,
+
+    // chunks are matched, saved and committed in slices of "commit interval" rows, bounding the row locks and the
+    // undo log of huge chunks
+    commit_interval;
+}
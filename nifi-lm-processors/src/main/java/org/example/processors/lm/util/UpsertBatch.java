@@ -0,0 +1,704 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.jdbc.connector.JdbcConnector;
+import com.nhl.dflib.series.IntArraySeries;
+import org.apache.nifi.logging.ComponentLog;
+import org.apache.nifi.serialization.MalformedRecordException;
+import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.Record;
+import org.apache.nifi.serialization.record.RecordSchema;
+
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executor;
+
+/**
+ * Merges records from one or more record sets ("segments", usually corresponding to FlowFiles) into chunks of a
+ * limited size, and saves each chunk as a single unit. Tracks save stats and failures per segment. A failure to save
+ * a chunk fails all segments that contributed rows to it. In the "single" transaction mode, all chunks are saved in
+ * one transaction, so a failure of any segment fails them all on {@link #commit()}.
+ * <p>
+ * If pipelined, full chunks are saved in the background, one after another, while the next chunk is read and
+ * converted. The batch state is only updated by the reading thread, as the saved chunks are collected.
+ */
+public class UpsertBatch {
+
+    private final UpsertBuilder builder;
+    private final JdbcConnector connector;
+    private final ComponentLog logger;
+    private final int maxRows;
+
+    private final List<UpsertStats> stats;
+    private final List<Exception> failures;
+
+    // failed segments that may have some rows of the failed chunk committed
+    private final Set<Integer> partiallyCommitted;
+
+    private final RecordsToDataFrameConverter chunk;
+    private final List<int[]> chunkSegments;
+    private final PhaseTimings timings;
+
+    // for the "full_sync" strategy, hashes of all saved source keys. 64-bit hashes make collisions negligible even
+    // for very large tables, while taking much less memory than the keys themselves
+    private final LongHashSet sourceKeys;
+
+    // the highest watermark column value among the saved rows
+    private Object watermarkValue;
+
+    // converters of the records appended one by one
+    private RecordSchema recordSchema;
+    private ConvertableRecordField[] recordConverters;
+
+    // for the "sort_merge" join mode, chunks spilled to disk, with the global row ranges of their segments
+    private final SpilledRuns runs;
+    private final List<int[]> spilledSegments;
+    private final PhaseTimings spillTimings;
+
+    // for the "single" transaction mode, the transaction spanning all chunks, open until the commit
+    private Transaction transaction;
+    private boolean committed;
+
+    // for the pipelined saves, chunks being saved in the background, in order. Failures are also tracked in a
+    // concurrent map, as the saving threads must know them before the chunks are collected
+    private final Executor pipeline;
+    private final int pipelineDepth;
+    private final Deque<CompletableFuture<SavedChunk>> pendingChunks;
+    private final ConcurrentMap<Integer, Exception> failedSegments;
+    private CompletableFuture<SavedChunk> lastChunk;
+
+    protected UpsertBatch(UpsertBuilder builder, JdbcConnector connector, ComponentLog logger, int maxRows) {
+        this.builder = builder;
+        this.connector = connector;
+        this.logger = logger;
+        this.maxRows = maxRows;
+
+        this.stats = new ArrayList<>();
+        this.failures = new ArrayList<>();
+        this.partiallyCommitted = new HashSet<>();
+        this.chunk = new RecordsToDataFrameConverter(logger);
+        this.chunkSegments = new ArrayList<>();
+        this.timings = new PhaseTimings();
+        this.sourceKeys = builder.isFullSync() ? new LongHashSet() : null;
+        this.runs = builder.isSortMerge() ? builder.createSpilledRuns(connector) : null;
+        this.spilledSegments = new ArrayList<>();
+        this.spillTimings = new PhaseTimings();
+        this.pipeline = builder.pipelineExecutor();
+        this.pipelineDepth = builder.pipelineDepth();
+        this.pendingChunks = new ArrayDeque<>();
+        this.failedSegments = new ConcurrentHashMap<>();
+        this.lastChunk = CompletableFuture.completedFuture(null);
+    }
+
+    /**
+     * Starts a new segment, returning its number.
+     */
+    public int newSegment() {
+        stats.add(new UpsertStats(builder.isTrackOutcomes()));
+        failures.add(null);
+        return stats.size() - 1;
+    }
+
+    /**
+     * Appends all records from the reader to the segment. Full chunks are saved as they fill up. If this method throws,
+     * the caller must call {@link #fail(int, Exception)}.
+     */
+    public void append(int segment, RecordReader reader) throws IOException, MalformedRecordException {
+
+        ConvertableRecordField[] converters = builder.createFieldConverters(connector, reader.getSchema());
+
+        // records of a different shape can't be merged into the current chunk
+        if (!chunk.canAppend(converters)) {
+            saveChunk();
+        }
+
+        // the chunk shape may change, so the single record converters must be checked again
+        recordSchema = null;
+
+        while (true) {
+            int from = chunk.height();
+
+            long t0 = System.nanoTime();
+            int read = chunk.append(reader, converters, maxRows - from);
+            long readNanos = System.nanoTime() - t0;
+            stats.get(segment).getTimings().add(UpsertPhase.read, readNanos);
+            timings.add(UpsertPhase.read, readNanos);
+
+            if (read > 0) {
+                chunkSegments.add(new int[]{segment, from, from + read});
+            }
+
+            if (chunk.height() < maxRows) {
+                break;
+            }
+
+            saveChunk();
+
+            // the rest of a failed segment is not saved, so that its saved rows are always its leading records
+            if (failedSegments.containsKey(segment)) {
+                break;
+            }
+        }
+    }
+
+    /**
+     * Appends a single record to the segment, saving the chunk if it fills up. Allows to distribute the records of a
+     * single reader among multiple batches. Only the conversion time is tracked, as reading the records is up to the
+     * caller. If this method throws, the caller must call {@link #fail(int, Exception)}.
+     */
+    public void append(int segment, RecordSchema schema, Record record) {
+
+        // readers usually return the same schema instance for all records, so the converters are only resolved
+        // when the schema changes
+        if (schema != recordSchema) {
+            recordConverters = builder.createFieldConverters(connector, schema);
+            recordSchema = schema;
+
+            if (!chunk.canAppend(recordConverters)) {
+                saveChunk();
+            }
+        }
+
+        int from = chunk.height();
+
+        long t0 = System.nanoTime();
+        chunk.append(record, recordConverters);
+        long readNanos = System.nanoTime() - t0;
+        stats.get(segment).getTimings().add(UpsertPhase.read, readNanos);
+        timings.add(UpsertPhase.read, readNanos);
+
+        // extend the segment range of the previous record, if any
+        int[] last = chunkSegments.isEmpty() ? null : chunkSegments.get(chunkSegments.size() - 1);
+        if (last != null && last[0] == segment && last[2] == from) {
+            last[2]++;
+        } else {
+            chunkSegments.add(new int[]{segment, from, from + 1});
+        }
+
+        if (chunk.height() >= maxRows) {
+            saveChunk();
+        }
+    }
+
+    /**
+     * Marks the segment as failed, discarding the current chunk, as it may contain partially read segment data.
+     */
+    public void fail(int segment, Exception e) {
+        failures.set(segment, e);
+        failedSegments.put(segment, e);
+        discardChunk(e);
+    }
+
+    /**
+     * Saves the current chunk if it has any rows, and waits for the chunks being saved in the background.
+     */
+    public void flush() {
+        saveChunk();
+        collectChunks(0);
+    }
+
+    // saves the current chunk, in the background if pipelined
+    private void saveChunk() {
+
+        if (chunk.height() == 0) {
+            chunkSegments.clear();
+            return;
+        }
+
+        // a failed single transaction can only be rolled back, so there's no point saving more rows
+        if (builder.isSingleTransaction()) {
+            Exception failure = firstFailure();
+            if (failure != null) {
+                discardChunk(failure);
+                return;
+            }
+        }
+
+        DataFrame df = chunk.toDataFrame();
+
+        if (runs != null) {
+            spill(df);
+            return;
+        }
+
+        List<int[]> segments = new ArrayList<>(chunkSegments);
+        chunkSegments.clear();
+
+        if (pipeline == null) {
+            collect(save(df, segments));
+            return;
+        }
+
+        // each chunk is saved after the previous one, even if it failed, to keep the save order
+        lastChunk = lastChunk.handleAsync((previous, e) -> save(df, segments), pipeline);
+        pendingChunks.add(lastChunk);
+        collectChunks(pipelineDepth);
+    }
+
+    // waits for the oldest chunks being saved, until no more than "maxPending" are left
+    private void collectChunks(int maxPending) {
+        while (pendingChunks.size() > maxPending) {
+            collect(pendingChunks.poll().join());
+        }
+    }
+
+    // may run in the background, so doesn't change the batch state, except for the failed segments
+    private SavedChunk save(DataFrame df, List<int[]> segments) {
+
+        SavedChunk saved = new SavedChunk(segments);
+
+        if (pipeline != null && !failedSegments.isEmpty()) {
+
+            if (builder.isSingleTransaction()) {
+                saved.failure = failedSegments.values().iterator().next();
+                return saved;
+            }
+
+            df = withoutFailedSegments(df, saved);
+            if (df.height() == 0) {
+                return saved;
+            }
+        }
+
+        try {
+            // calculated before saving, so that a misconfigured watermark fails the chunk
+            Watermark watermark = builder.getWatermark();
+            saved.watermarkValue = watermark != null
+                    ? Watermark.max(null, df.getColumn(watermark.position(df.getColumnsIndex().getLabels())))
+                    : null;
+
+            saved.outcomes = builder.save(connector, connection(), df, saved.timings);
+
+            if (sourceKeys != null) {
+                saved.keyHashes = new RowDigester(df.getColumnsIndex().getLabels(), builder.matchColumns(connector)).keyHashes(df);
+            }
+        } catch (Exception e) {
+            saved.failure = e;
+            for (int[] s : saved.segments) {
+                failedSegments.putIfAbsent(s[0], e);
+            }
+        }
+
+        return saved;
+    }
+
+    // rows of the segments that failed after the chunk was read are not saved, so that the saved rows of a segment
+    // are always its leading records
+    private DataFrame withoutFailedSegments(DataFrame df, SavedChunk saved) {
+
+        List<int[]> kept = new ArrayList<>(saved.segments.size());
+        int[] rows = new int[df.height()];
+        int keptRows = 0;
+
+        for (int[] s : saved.segments) {
+            if (failedSegments.containsKey(s[0])) {
+                continue;
+            }
+
+            kept.add(new int[]{s[0], keptRows, keptRows + s[2] - s[1]});
+            for (int i = s[1]; i < s[2]; i++) {
+                rows[keptRows++] = i;
+            }
+        }
+
+        if (kept.size() == saved.segments.size()) {
+            return df;
+        }
+
+        saved.segments = kept;
+        return df.selectRows(new IntArraySeries(rows, 0, keptRows));
+    }
+
+    // applies the save results to the batch state
+    private void collect(SavedChunk saved) {
+
+        timings.add(saved.timings, 1, 1);
+
+        if (saved.failure != null) {
+            for (int[] s : saved.segments) {
+                if (failures.get(s[0]) == null) {
+                    failures.set(s[0], saved.failure);
+
+                    if (builder.isCommittedInParts()) {
+                        partiallyCommitted.add(s[0]);
+                    }
+                }
+            }
+            return;
+        }
+
+        if (saved.outcomes == null) {
+            return;
+        }
+
+        watermarkValue = Watermark.max(watermarkValue, saved.watermarkValue);
+
+        if (saved.keyHashes != null) {
+            for (long keyHash : saved.keyHashes) {
+                sourceKeys.add(keyHash);
+            }
+        }
+
+        RowOutcome[] outcomes = saved.outcomes;
+        for (int[] s : saved.segments) {
+            UpsertStats segmentStats = stats.get(s[0]);
+            segmentStats.add(outcomes, s[1], s[2]);
+            segmentStats.getTimings().add(saved.timings, s[2] - s[1], outcomes.length);
+        }
+
+        UpsertStats chunkStats = new UpsertStats();
+        chunkStats.add(outcomes, 0, outcomes.length);
+        logger.debug("Saved chunk of {} rows to '{}': {}, {}", new Object[]{outcomes.length, builder.getTargetTable(), chunkStats, saved.timings});
+    }
+
+    private void spill(DataFrame df) {
+
+        long t0 = System.nanoTime();
+
+        int[] segments = new int[df.height()];
+        for (int[] s : chunkSegments) {
+            Arrays.fill(segments, s[1], s[2], s[0]);
+        }
+
+        int firstSeq = runs.size();
+        try {
+            runs.add(df, segments, firstSeq);
+        } catch (Exception e) {
+            discardChunk(e);
+            return;
+        } finally {
+            long nanos = System.nanoTime() - t0;
+            spillTimings.add(UpsertPhase.match, nanos);
+            timings.add(UpsertPhase.match, nanos);
+        }
+
+        for (int[] s : chunkSegments) {
+            spilledSegments.add(new int[]{s[0], firstSeq + s[1], firstSeq + s[2]});
+        }
+
+        logger.debug("Spilled run {} of {} rows for '{}'", new Object[]{runs.getRunCount(), df.height(), builder.getTargetTable()});
+        chunkSegments.clear();
+    }
+
+    /**
+     * For the "sort_merge" join mode, merge-joins all spilled rows with the target table and saves them in a single
+     * transaction. Must be called after the final {@link #flush()}. Rows of the failed segments are not saved. If the
+     * save fails, all segments are marked as failed. The spilled files are deleted in any case.
+     */
+    public void mergeSpilled() {
+
+        if (runs == null) {
+            throw new IllegalStateException("Merging spilled rows requires 'sort_merge' join mode");
+        }
+
+        try {
+            if (runs.size() == 0) {
+                return;
+            }
+
+            if (builder.isSingleTransaction() && firstFailure() != null) {
+                return;
+            }
+
+            PhaseTimings mergeTimings = new PhaseTimings();
+            byte[] outcomes;
+            try {
+                outcomes = builder.saveSpilled(connector, connection(), runs, s -> failures.get(s) != null, mergeTimings);
+            } catch (Exception e) {
+                if (builder.isCommittedInParts()) {
+                    for (int[] s : spilledSegments) {
+                        if (failures.get(s[0]) == null) {
+                            partiallyCommitted.add(s[0]);
+                        }
+                    }
+                }
+
+                failAll(e);
+                return;
+            } finally {
+                timings.add(mergeTimings, 1, 1);
+            }
+
+            mergeTimings.add(spillTimings, 1, 1);
+
+            int total = 0;
+            for (int[] s : spilledSegments) {
+                if (failures.get(s[0]) == null) {
+                    total += s[2] - s[1];
+                }
+            }
+
+            UpsertStats mergeStats = new UpsertStats();
+            for (int[] s : spilledSegments) {
+                if (failures.get(s[0]) != null) {
+                    continue;
+                }
+
+                UpsertStats segmentStats = stats.get(s[0]);
+                for (int seq = s[1]; seq < s[2]; seq++) {
+                    RowOutcome outcome = RowOutcome.ofOrdinal(outcomes[seq]);
+                    segmentStats.add(outcome);
+                    mergeStats.add(outcome);
+                }
+
+                segmentStats.getTimings().add(mergeTimings, s[2] - s[1], total);
+            }
+
+            logger.debug("Merged {} spilled rows in {} runs to '{}': {}, {}",
+                    new Object[]{runs.size(), runs.getRunCount(), builder.getTargetTable(), mergeStats, mergeTimings});
+
+        } finally {
+            try {
+                runs.close();
+            } catch (IOException e) {
+                logger.warn("Failed to delete spilled rows", e);
+            }
+        }
+    }
+
+    /**
+     * For the "full_sync" strategy, deletes target rows whose keys were not in any of the batch segments. Must be
+     * called after the final {@link #flush()}. Does nothing if any of the segments failed, as the snapshot is
+     * incomplete. If the delete fails, all segments are marked as failed.
+     */
+    public void deleteMissing() {
+
+        if (sourceKeys == null) {
+            throw new IllegalStateException("Deleting missing rows requires 'full_sync' row matching strategy");
+        }
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                logger.warn("Not deleting missing rows from '{}', as the source snapshot was not fully saved", new Object[]{builder.getTargetTable()});
+                return;
+            }
+        }
+
+        // an empty snapshot is more likely an upstream problem than a request to wipe out the table
+        if (sourceKeys.size() == 0) {
+            logger.warn("Not deleting missing rows from '{}', as the source snapshot is empty", new Object[]{builder.getTargetTable()});
+            return;
+        }
+
+        PhaseTimings deleteTimings = new PhaseTimings();
+
+        int deleted;
+        try {
+            deleted = builder.deleteMissing(connector, connection(), sourceKeys, deleteTimings);
+        } catch (Exception e) {
+            for (int i = 0; i < failures.size(); i++) {
+                failures.set(i, e);
+            }
+            return;
+        } finally {
+            timings.add(deleteTimings, 1, 1);
+        }
+
+        int total = 0;
+        for (UpsertStats s : stats) {
+            total += s.getTotal();
+        }
+
+        for (UpsertStats s : stats) {
+            s.setDeleted(deleted);
+            s.getTimings().add(deleteTimings, s.getTotal(), total);
+        }
+
+        logger.debug("Deleted {} rows missing from the source snapshot from '{}'", new Object[]{deleted, builder.getTargetTable()});
+    }
+
+    /**
+     * For the "single" transaction mode, commits the rows of all segments, if none of them failed. Otherwise rolls the
+     * transaction back, and marks all segments as failed, as none of their rows were saved. Must be called last, after
+     * the final {@link #flush()}, {@link #mergeSpilled()} and {@link #deleteMissing()}. Does nothing in the other
+     * modes, as the rows are committed as they are saved.
+     */
+    public void commit() {
+
+        if (transaction == null) {
+            return;
+        }
+
+        Exception failure = firstFailure();
+        PhaseTimings commitTimings = new PhaseTimings();
+
+        try {
+            if (failure == null) {
+                long t0 = System.nanoTime();
+                transaction.commit();
+                commitTimings.add(UpsertPhase.write, System.nanoTime() - t0);
+                committed = true;
+            }
+        } catch (SQLException e) {
+            failure = e;
+        } finally {
+            try {
+                transaction.close();
+            } catch (SQLException e) {
+                logger.warn("Failed to close connection", e);
+            }
+
+            transaction = null;
+            timings.add(commitTimings, 1, 1);
+        }
+
+        if (failure != null) {
+            failAll(failure);
+            logger.debug("Rolled back the save to '{}'", new Object[]{builder.getTargetTable()});
+            return;
+        }
+
+        int total = 0;
+        for (UpsertStats s : stats) {
+            total += s.getTotal();
+        }
+
+        for (UpsertStats s : stats) {
+            s.getTimings().add(commitTimings, s.getTotal(), total);
+        }
+    }
+
+    /**
+     * Returns the number of leading records of the segment that are committed to the target table. If the segment
+     * failed, it is the number of records that don't need to be saved again. Some rows of the failed chunk may be
+     * committed as well, which are not included (see {@link #isPartiallyCommitted(int)}). With a transaction managed
+     * by the caller, always returns zero.
+     */
+    public int getCommittedRows(int segment) {
+
+        if (builder.getConnection() != null) {
+            return 0;
+        }
+
+        // with a transaction spanning all chunks, either all rows are committed, or none
+        if (builder.isSingleTransaction() && !committed) {
+            return 0;
+        }
+
+        return stats.get(segment).getTotal();
+    }
+
+    /**
+     * Returns true if the segment failed, and some of its records past the {@link #getCommittedRows(int)} ones may be
+     * committed as well, as the failed chunk was committed every "commit interval" rows, or in parallel partitions.
+     */
+    public boolean isPartiallyCommitted(int segment) {
+        return partiallyCommitted.contains(segment);
+    }
+
+    /**
+     * Returns the highest watermark column value among the saved rows, or null if there's no watermark, or if some of
+     * the segments failed, so that the watermark never gets ahead of the rows that were not saved.
+     */
+    public Object getWatermarkValue() {
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                return null;
+            }
+        }
+
+        return watermarkValue;
+    }
+
+    public int size() {
+        return stats.size();
+    }
+
+    public boolean isFailed(int segment) {
+        return failures.get(segment) != null;
+    }
+
+    public Exception getFailure(int segment) {
+        return failures.get(segment);
+    }
+
+    public UpsertStats getStats(int segment) {
+        return stats.get(segment);
+    }
+
+    /**
+     * Returns the time spent in each upsert phase by all segments of this batch, including the failed ones.
+     */
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
+    // the connection of the transaction spanning all chunks, or null if the chunks are committed as they are saved
+    private Connection connection() {
+
+        if (builder.getConnection() != null) {
+            return builder.getConnection();
+        }
+
+        if (!builder.isSingleTransaction()) {
+            return null;
+        }
+
+        if (transaction == null) {
+            transaction = builder.beginTransaction();
+        }
+
+        return transaction.getConnection();
+    }
+
+    private Exception firstFailure() {
+
+        for (Exception failure : failures) {
+            if (failure != null) {
+                return failure;
+            }
+        }
+
+        return null;
+    }
+
+    private void failAll(Exception e) {
+        for (int i = 0; i < failures.size(); i++) {
+            if (failures.get(i) == null) {
+                failures.set(i, e);
+            }
+        }
+    }
+
+    private void discardChunk(Exception e) {
+
+        for (int[] s : chunkSegments) {
+            if (failures.get(s[0]) == null) {
+                failures.set(s[0], e);
+                failedSegments.putIfAbsent(s[0], e);
+            }
+        }
+
+        chunk.reset();
+        chunkSegments.clear();
+    }
+
+    private static class SavedChunk {
+
+        // segment numbers with their row ranges within the chunk
+        List<int[]> segments;
+
+        final PhaseTimings timings;
+        RowOutcome[] outcomes;
+        Object watermarkValue;
+        long[] keyHashes;
+        Exception failure;
+
+        SavedChunk(List<int[]> segments) {
+            this.segments = segments;
+            this.timings = new PhaseTimings();
+        }
+    }
+}
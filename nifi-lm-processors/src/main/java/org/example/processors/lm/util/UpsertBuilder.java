@@ -1,30 +1,72 @@
 package org.example.processors.lm.util;
 
 import com.nhl.dflib.DataFrame;
-import com.nhl.dflib.Printers;
 import com.nhl.dflib.Series;
 import com.nhl.dflib.jdbc.Jdbc;
-import com.nhl.dflib.jdbc.SaveOp;
 import com.nhl.dflib.jdbc.connector.JdbcConnector;
-import com.nhl.dflib.jdbc.connector.SaveStats;
-import com.nhl.dflib.jdbc.connector.TableSaver;
+import com.nhl.dflib.jdbc.connector.metadata.DbColumnMetadata;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import com.nhl.dflib.series.IntArraySeries;
 import org.apache.nifi.dbcp.DBCPService;
 import org.apache.nifi.logging.ComponentLog;
 import org.apache.nifi.processor.exception.ProcessException;
 import org.apache.nifi.serialization.MalformedRecordException;
 import org.apache.nifi.serialization.RecordReader;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.example.processors.lm.UpsertMetadataCache;
 import org.example.processors.lm.UpsertSQL;
 
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
 import java.util.Objects;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.function.IntPredicate;
 
 public class UpsertBuilder {
 
+    private static final int DEFAULT_RUN_SIZE = 100_000;
+
     private ComponentLog logger;
     private DBCPService db;
+    private UpsertMetadataCache metadataCache;
     private MatchStrategy matchStrategy;
     private String targetTable;
     private String[] keyColumns;
+    private String[] ignoredColumns;
+    private int recordsPerChunk;
+    private boolean trackOutcomes;
+    private RowDigestIndex rowDigestIndex;
+    private int jdbcBatchSize;
+    private boolean multiRowInsert;
+    private int maxStatementParameters;
+    private BulkLoadStrategy bulkLoadStrategy;
+    private int bulkLoadMinRows;
+    private int parallelism;
+    private ExecutorService executor;
+    private int keyLockStripes;
+    private Watermark watermark;
+    private DuplicateKeyPolicy duplicateKeyPolicy;
+    private JoinMode joinMode;
+    private Path spillDirectory;
+    private int mergeFetchSize;
+    private TransactionMode transactionMode;
+    private int commitInterval;
+    private TransactionIsolation isolation;
+    private int pipelineDepth;
+    private Executor pipelineExecutor;
+    private Connection externalConnection;
 
     public static UpsertBuilder create(ComponentLog logger) {
         return new UpsertBuilder(logger);
@@ -32,6 +74,19 @@ public class UpsertBuilder {
 
     protected UpsertBuilder(ComponentLog logger) {
         this.logger = Objects.requireNonNull(logger);
+        this.ignoredColumns = new String[0];
+        this.jdbcBatchSize = 1000;
+        this.maxStatementParameters = 2000;
+        this.bulkLoadStrategy = BulkLoadStrategy.none;
+        this.bulkLoadMinRows = 1000;
+        this.parallelism = 1;
+        this.duplicateKeyPolicy = DuplicateKeyPolicy.keep_all;
+        this.joinMode = JoinMode.in_memory;
+        this.spillDirectory = Paths.get(System.getProperty("java.io.tmpdir"));
+        this.mergeFetchSize = 10_000;
+        this.transactionMode = TransactionMode.per_chunk;
+        this.commitInterval = 10_000;
+        this.isolation = TransactionIsolation.pool_default;
     }
 
     public UpsertBuilder db(DBCPService db) {
@@ -39,6 +94,15 @@ public class UpsertBuilder {
         return this;
     }
 
+    /**
+     * Sets an optional cache of the target table metadata and record conversion plans. If not set, metadata is
+     * loaded from the DB on every upsert.
+     */
+    public UpsertBuilder metadataCache(UpsertMetadataCache metadataCache) {
+        this.metadataCache = metadataCache;
+        return this;
+    }
+
     public UpsertBuilder matchStrategy(String name) {
         this.matchStrategy = MatchStrategy.valueOf(name);
         return this;
@@ -49,6 +113,10 @@ public class UpsertBuilder {
         return this;
     }
 
+    public String getTargetTable() {
+        return targetTable;
+    }
+
     public UpsertBuilder keyColumns(String keyColumns) {
 
         if (keyColumns == null) {
@@ -60,40 +128,878 @@ public class UpsertBuilder {
         return this;
     }
 
-    public void upsert(RecordReader reader) throws IOException, MalformedRecordException {
-        JdbcConnector connector = createConnector();
+    /**
+     * Sets a comma-separated list of columns not compared to detect changed rows, e.g. load timestamps or audit
+     * fields. They are still updated together with the other changed columns.
+     */
+    public UpsertBuilder ignoredColumns(String ignoredColumns) {
+        this.ignoredColumns = ignoredColumns != null ? ignoredColumns.split(",") : new String[0];
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of records to read, match and save as one unit. Zero or a negative number means no
+     * limit, i.e. the entire record set is loaded in memory and saved at once.
+     */
+    public UpsertBuilder recordsPerChunk(int recordsPerChunk) {
+        this.recordsPerChunk = recordsPerChunk;
+        return this;
+    }
+
+    /**
+     * Enables tracking of per-row save outcomes in the {@link UpsertStats}.
+     */
+    public UpsertBuilder trackOutcomes(boolean trackOutcomes) {
+        this.trackOutcomes = trackOutcomes;
+        return this;
+    }
+
+    public boolean isTrackOutcomes() {
+        return trackOutcomes;
+    }
+
+    /**
+     * Returns true if the saved records are a complete snapshot of the target table, so that the target rows missing
+     * from it must be deleted.
+     */
+    public boolean isFullSync() {
+        return matchStrategy == MatchStrategy.full_sync;
+    }
+
+    /**
+     * Sets an optional index of row digests of the target table. Rows whose digest is found in the index are
+     * considered unchanged and are skipped without reading the target table. The index is updated after each save.
+     * Ignored for the "insert_only" strategy.
+     */
+    public UpsertBuilder rowDigestIndex(RowDigestIndex rowDigestIndex) {
+        this.rowDigestIndex = rowDigestIndex;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of rows sent to the DB in a single JDBC batch. The default is 1000.
+     */
+    public UpsertBuilder jdbcBatchSize(int jdbcBatchSize) {
+        this.jdbcBatchSize = jdbcBatchSize;
+        return this;
+    }
+
+    /**
+     * Enables inserting multiple rows per INSERT statement. The number of rows in each statement is limited by the
+     * JDBC batch size and the max number of statement parameters.
+     */
+    public UpsertBuilder multiRowInsert(boolean multiRowInsert) {
+        this.multiRowInsert = multiRowInsert;
+        return this;
+    }
+
+    /**
+     * Sets the maximum number of parameters in a single multi-row INSERT statement. The default is 2000, which is
+     * within the limits of all common DBs.
+     */
+    public UpsertBuilder maxStatementParameters(int maxStatementParameters) {
+        this.maxStatementParameters = maxStatementParameters;
+        return this;
+    }
+
+    /**
+     * Sets a DB-specific mechanism to insert new rows, used instead of INSERT statements when a chunk has at least
+     * "bulkLoadMinRows" new rows. Ignored for the "native_*" strategies.
+     */
+    public UpsertBuilder bulkLoadStrategy(String name) {
+        this.bulkLoadStrategy = BulkLoadStrategy.valueOf(name);
+        return this;
+    }
+
+    public UpsertBuilder bulkLoadMinRows(int bulkLoadMinRows) {
+        this.bulkLoadMinRows = bulkLoadMinRows;
+        return this;
+    }
+
+    /**
+     * Sets the number of partitions to split each chunk into by the match key hash, and the executor to save them
+     * in parallel, each partition on its own connection. Since partitions have disjoint keys, they don't contend
+     * for row locks. Each partition is committed separately.
+     */
+    public UpsertBuilder parallelism(int parallelism, ExecutorService executor) {
+        this.parallelism = parallelism;
+        this.executor = executor;
+        return this;
+    }
+
+    /**
+     * Enables in-JVM locking of the saved keys, striped by key hash, across all upserts to the same table and
+     * connection pool. Serializes concurrent saves of overlapping keys to avoid DB lock waits. Zero disables locking.
+     */
+    public UpsertBuilder keyLockStripes(int keyLockStripes) {
+        this.keyLockStripes = keyLockStripes;
+        return this;
+    }
+
+    /**
+     * Sets an optional watermark of the target table. Source rows above the watermark are newer than any saved row,
+     * so they can't be unchanged, and only their keys are read from the target table to tell inserts from updates.
+     * Rows at or below it are matched as usual, so late or replayed rows are still classified correctly.
+     */
+    public UpsertBuilder watermark(Watermark watermark) {
+        this.watermark = watermark;
+        return this;
+    }
+
+    public Watermark getWatermark() {
+        return watermark;
+    }
+
+    /**
+     * Sets how to handle rows with the same match key within a chunk. The default is "keep_all", i.e. to save every
+     * row. Ignored for the "insert_only" strategy.
+     */
+    public UpsertBuilder duplicateKeyPolicy(String name) {
+        this.duplicateKeyPolicy = DuplicateKeyPolicy.valueOf(name);
+        return this;
+    }
+
+    /**
+     * Sets how source rows are joined with the target rows. "sort_merge" spills source chunks to disk sorted by key,
+     * and merge-joins them with the target table streamed in key order, all in a single transaction. It only applies
+     * to the "pk" and "key_columns" strategies, and ignores the row digest index, watermark, duplicate key policy,
+     * key locks and parallelism.
+     */
+    public UpsertBuilder joinMode(String name) {
+        this.joinMode = JoinMode.valueOf(name);
+        return this;
+    }
+
+    /**
+     * Sets a local directory for the "sort_merge" join mode runs. The default is the system temp directory.
+     */
+    public UpsertBuilder spillDirectory(Path spillDirectory) {
+        this.spillDirectory = spillDirectory;
+        return this;
+    }
+
+    /**
+     * Sets the number of target rows fetched at once while streaming the whole target table, i.e. in the "sort_merge"
+     * join mode, the "full_sync" deletes and the row digest index rebuilds. The default is 10000.
+     */
+    public UpsertBuilder mergeFetchSize(int mergeFetchSize) {
+        this.mergeFetchSize = mergeFetchSize;
+        return this;
+    }
+
+    /**
+     * Sets how the saved rows are grouped into transactions. The default is "per_chunk". "single" saves all rows of a
+     * batch in one transaction, committed by {@link UpsertBatch#commit()}, and can't be used with the row digest
+     * index, which must only be updated after the commit.
+     */
+    public UpsertBuilder transactionMode(String name) {
+        this.transactionMode = TransactionMode.valueOf(name);
+        return this;
+    }
+
+    public boolean isSingleTransaction() {
+        return transactionMode == TransactionMode.single;
+    }
+
+    /**
+     * Sets the number of rows to commit at once in the "commit_interval" transaction mode. The default is 10000. Each
+     * chunk is split into slices of this size, that are matched and saved separately.
+     */
+    public UpsertBuilder commitInterval(int commitInterval) {
+        this.commitInterval = commitInterval;
+        return this;
+    }
+
+    /**
+     * Sets the isolation level of the save transactions. The default is "pool_default", i.e. the connection pool
+     * setting.
+     */
+    public UpsertBuilder isolation(String name) {
+        this.isolation = TransactionIsolation.valueOf(name);
+        return this;
+    }
+
+    /**
+     * Sets the number of full chunks that may be saved in the background, or wait to be saved, while the next chunk
+     * is read and converted, and the executor to save them with. Chunks are still saved one at a time, in the order
+     * they were read. Zero disables pipelining. Ignored for the "sort_merge" join mode, and with a connection set by
+     * the caller, which must not be used by multiple threads.
+     */
+    public UpsertBuilder pipeline(int depth, Executor executor) {
+        this.pipelineDepth = depth;
+        this.pipelineExecutor = executor;
+        return this;
+    }
+
+    /**
+     * Sets a connection to save all rows with, in a transaction managed by the caller. Rows are neither committed
+     * nor saved in parallel, and the transaction mode is ignored. Allows to save multiple tables in a single
+     * transaction. Can't be used with the "full_sync" strategy, the "sort_merge" join mode or the row digest index,
+     * which manage their own transactions.
+     */
+    public UpsertBuilder connection(Connection connection) {
+        this.externalConnection = connection;
+        return this;
+    }
+
+    public Connection getConnection() {
+        return externalConnection;
+    }
+
+    public boolean isSortMerge() {
+        return joinMode == JoinMode.sort_merge
+                && (matchStrategy == MatchStrategy.pk || matchStrategy == MatchStrategy.key_columns);
+    }
+
+    public UpsertStats upsert(RecordReader reader) throws IOException, MalformedRecordException {
+
+        UpsertBatch batch = createBatch();
+        int segment = batch.newSegment();
+
+        try {
+            batch.append(segment, reader);
+        } catch (IOException | MalformedRecordException | RuntimeException e) {
+            batch.fail(segment, e);
+
+            // still waits for the chunks being saved, rolls back the transaction and deletes the spilled rows
+            finish(batch);
+            throw e;
+        }
+
+        finish(batch);
+
+        if (batch.isFailed(segment)) {
+            throw new ProcessException("Failed to save records to '" + targetTable + "'", batch.getFailure(segment));
+        }
+
+        return batch.getStats(segment);
+    }
+
+    private void finish(UpsertBatch batch) {
+
+        batch.flush();
+
+        if (isSortMerge()) {
+            batch.mergeSpilled();
+        }
+
+        if (isFullSync()) {
+            batch.deleteMissing();
+        }
+
+        batch.commit();
+    }
+
+    /**
+     * Creates a batch that allows to save records from multiple readers in a single match-and-save pass. Reading
+     * records in chunks keeps memory use bounded regardless of the record set size. Each chunk is matched and saved
+     * independently.
+     */
+    public UpsertBatch createBatch() {
 
         // TODO: validate all properties are set
-        DataFrame df = new RecordsToDataFrameConverter(logger).toDataFrame(reader, connector.getMetadata().getTable(targetTable));
-        SaveStats saveStats = createSaver(connector).save(df);
-        Series<SaveOp> rowStatuses = saveStats.getRowSaveStatuses();
+        if (externalConnection != null && (isFullSync() || isSortMerge() || rowDigestIndex != null)) {
+            throw new IllegalStateException("Can't save to '" + targetTable + "' in an external transaction " +
+                    "with the 'full_sync' strategy, 'sort_merge' join mode or row digest index");
+        }
 
-        if (rowStatuses.size() > 0) {
-            logger.info(Printers.inline.toString(rowStatuses.valueCounts()));
+        if (isSingleTransaction() && isUsingRowDigestIndex()) {
+            throw new IllegalStateException("Can't save to '" + targetTable + "' in a single transaction " +
+                    "with the row digest index");
         }
 
-        // TODO: pass classified flow file down the pipe
+        // unlimited chunks would defeat the purpose of spilling
+        int maxRows = recordsPerChunk > 0 ? recordsPerChunk : (isSortMerge() ? DEFAULT_RUN_SIZE : Integer.MAX_VALUE);
+        JdbcConnector connector = createConnector();
+        return new UpsertBatch(this, connector, logger, maxRows);
     }
 
-    protected JdbcConnector createConnector() {
-        return Jdbc.connector(new DBCPServiceDataSource(db));
+    /**
+     * Saves a DataFrame to the target table, returning per-row outcomes. Duplicate keys are collapsed first, and the
+     * rest are saved in key order.
+     *
+     * @param connection a connection in a transaction spanning multiple chunks, that is committed by the caller, or
+     *                   null to commit the rows as they are saved
+     */
+    protected RowOutcome[] save(JdbcConnector connector, Connection connection, DataFrame df, PhaseTimings timings) {
+
+        String[] matchColumns = duplicateKeyPolicy != DuplicateKeyPolicy.keep_all ? matchColumns(connector) : null;
+        if (matchColumns == null) {
+            return saveInKeyOrder(connector, connection, df, timings);
+        }
+
+        long t0 = System.nanoTime();
+
+        int h = df.height();
+        boolean[] superseded = DuplicateKeys.superseded(df, matchColumns, duplicateKeyPolicy == DuplicateKeyPolicy.last_wins);
+        RowOutcome[] outcomes = new RowOutcome[h];
+        int[] unique = new int[h];
+        int uniqueCount = 0;
+
+        for (int i = 0; i < h; i++) {
+            if (superseded[i]) {
+                outcomes[i] = RowOutcome.collapsed;
+            } else {
+                unique[uniqueCount++] = i;
+            }
+        }
+
+        timings.add(UpsertPhase.match, System.nanoTime() - t0);
+
+        if (uniqueCount == h) {
+            return saveInKeyOrder(connector, connection, df, timings);
+        }
+
+        if (duplicateKeyPolicy == DuplicateKeyPolicy.fail) {
+            throw new ProcessException("Found " + (h - uniqueCount) + " row(s) with duplicate keys " +
+                    Arrays.toString(matchColumns) + " while saving to '" + targetTable + "'");
+        }
+
+        RowOutcome[] uniqueOutcomes = saveInKeyOrder(connector, connection, df.selectRows(new IntArraySeries(unique, 0, uniqueCount)), timings);
+        for (int i = 0; i < uniqueCount; i++) {
+            outcomes[unique[i]] = uniqueOutcomes[i];
+        }
+
+        return outcomes;
     }
 
-    protected TableSaver createSaver(JdbcConnector connector) {
-        TableSaver saver = connector.tableSaver(targetTable);
+    private RowOutcome[] saveInKeyOrder(JdbcConnector connector, Connection connection, DataFrame df, PhaseTimings timings) {
+
+        String[] matchColumns = matchColumns(connector);
+        if (matchColumns == null) {
+            return saveChunk(connector, connection, df, timings);
+        }
+
+        // saving rows in key order makes concurrent transactions lock the same rows in the same order
+        long[] keyHashes = new RowDigester(df.getColumnsIndex().getLabels(), matchColumns).keyHashes(df);
+        int[] order = KeyOrder.sortedOrder(keyHashes);
+        DataFrame sorted = df.selectRows(new IntArraySeries(order, 0, order.length));
+
+        KeyLocks locks = keyLockStripes > 0
+                ? KeyLocks.forTable(db.getIdentifier() + ":" + targetTable, keyLockStripes)
+                : null;
+
+        int[] lockedStripes = null;
+        if (locks != null) {
+            long t0 = System.nanoTime();
+            try {
+                lockedStripes = locks.lock(keyHashes);
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new ProcessException("Interrupted while waiting for key locks on '" + targetTable + "'", e);
+            }
+
+            timings.add(UpsertPhase.lock, System.nanoTime() - t0);
+        }
+
+        RowOutcome[] sortedOutcomes;
+        try {
+            sortedOutcomes = saveChunk(connector, connection, sorted, timings);
+        } finally {
+            if (lockedStripes != null) {
+                locks.unlock(lockedStripes);
+            }
+        }
+
+        RowOutcome[] outcomes = new RowOutcome[order.length];
+        for (int i = 0; i < order.length; i++) {
+            outcomes[order[i]] = sortedOutcomes[i];
+        }
+
+        return outcomes;
+    }
+
+    private RowOutcome[] saveChunk(JdbcConnector connector, Connection connection, DataFrame df, PhaseTimings timings) {
+
+        // the row digest index is not used with the transactions spanning multiple chunks
+        return isUsingRowDigestIndex()
+                ? saveChanged(connector, df, timings)
+                : saveRows(connector, connection, df, timings);
+    }
+
+    private RowOutcome[] saveRows(JdbcConnector connector, Connection connection, DataFrame df, PhaseTimings timings) {
+
+        RowSaver saver = createSaver(connector);
+        int partitions = Math.min(parallelism, df.height());
+
+        if (partitions <= 1 || executor == null || connection != null) {
+            return saveRows(saver, connection, df, timings);
+        }
+
+        int[][] partitionRows = new KeyPartitioner(matchColumns(connector), partitions).partition(df);
+
+        List<Future<RowOutcome[]>> futures = new ArrayList<>(partitionRows.length);
+        for (int[] rows : partitionRows) {
+            DataFrame partition = df.selectRows(new IntArraySeries(rows, 0, rows.length));
+            futures.add(executor.submit(() -> saveRows(saver, null, partition, timings)));
+        }
+
+        // wait for all partitions, even if some of them fail, so that no saves are still running when we return
+        RowOutcome[] outcomes = new RowOutcome[df.height()];
+        RuntimeException failure = null;
 
+        for (int p = 0; p < partitionRows.length; p++) {
+            try {
+                RowOutcome[] partitionOutcomes = futures.get(p).get();
+                int[] rows = partitionRows[p];
+                for (int i = 0; i < rows.length; i++) {
+                    outcomes[rows[i]] = partitionOutcomes[i];
+                }
+            } catch (ExecutionException e) {
+                if (failure == null) {
+                    failure = e.getCause() instanceof RuntimeException
+                            ? (RuntimeException) e.getCause()
+                            : new ProcessException("Failed to save records to '" + targetTable + "'", e.getCause());
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                futures.forEach(f -> f.cancel(true));
+                throw new ProcessException("Interrupted while saving records to '" + targetTable + "'", e);
+            }
+        }
+
+        if (failure != null) {
+            throw failure;
+        }
+
+        return outcomes;
+    }
+
+    private RowOutcome[] saveRows(RowSaver saver, Connection connection, DataFrame df, PhaseTimings timings) {
+
+        if (connection != null) {
+            try {
+                return saver.save(connection, df, timings);
+            } catch (SQLException e) {
+                throw new ProcessException("Failed to save records to '" + targetTable + "'", e);
+            }
+        }
+
+        int h = df.height();
+        int interval = commitInterval() > 0 ? commitInterval() : h;
+
+        try (Transaction tx = Transaction.begin(db, isolation)) {
+
+            if (interval >= h) {
+                RowOutcome[] outcomes = saver.save(tx.getConnection(), df, timings);
+                commit(tx, timings);
+                return outcomes;
+            }
+
+            // the rows are in key order, so the slices lock disjoint key ranges
+            RowOutcome[] outcomes = new RowOutcome[h];
+            int[] index = new int[h];
+            for (int i = 0; i < h; i++) {
+                index[i] = i;
+            }
+
+            for (int from = 0; from < h; from += interval) {
+                int len = Math.min(interval, h - from);
+                RowOutcome[] sliceOutcomes = saver.save(tx.getConnection(), df.selectRows(new IntArraySeries(index, from, len)), timings);
+                System.arraycopy(sliceOutcomes, 0, outcomes, from, len);
+                commit(tx, timings);
+            }
+
+            return outcomes;
+        } catch (SQLException e) {
+            throw new ProcessException("Failed to save records to '" + targetTable + "'", e);
+        }
+    }
+
+    private static void commit(Transaction tx, PhaseTimings timings) throws SQLException {
+        long t0 = System.nanoTime();
+        tx.commit();
+        timings.add(UpsertPhase.write, System.nanoTime() - t0);
+    }
+
+    /**
+     * Returns true if the rows of a chunk may be committed in parts, so that a failed chunk may still have some of its
+     * rows committed. That's the case if the chunk is committed every "commit interval" rows, or if it is saved in
+     * parallel partitions, each committed separately.
+     */
+    protected boolean isCommittedInParts() {
+        return externalConnection == null
+                && !isSingleTransaction()
+                && (commitInterval() > 0 || (parallelism > 1 && executor != null));
+    }
+
+    // the number of rows to commit at once, or zero to commit each chunk as a whole
+    private int commitInterval() {
+        return transactionMode == TransactionMode.commit_interval ? commitInterval : 0;
+    }
+
+    // null if the chunks are saved by the reading thread
+    protected Executor pipelineExecutor() {
+        return pipelineDepth > 0 && externalConnection == null && !isSortMerge() ? pipelineExecutor : null;
+    }
+
+    protected int pipelineDepth() {
+        return pipelineDepth;
+    }
+
+    /**
+     * Begins a transaction with the configured isolation level.
+     */
+    protected Transaction beginTransaction() {
+        try {
+            return Transaction.begin(db, isolation);
+        } catch (SQLException e) {
+            throw new ProcessException("Failed to start a transaction to save records to '" + targetTable + "'", e);
+        }
+    }
+
+    protected SpilledRuns createSpilledRuns(JdbcConnector connector) {
+        return new SpilledRuns(spillDirectory, matchColumns(connector));
+    }
+
+    /**
+     * Merge-joins the spilled rows with the target table and saves them in a single transaction, or every "commit
+     * interval" rows. Returns row outcome ordinals indexed by the row sequence number, with -1 for the rows of the
+     * skipped segments.
+     *
+     * @param connection a connection in a transaction committed by the caller, or null to commit the rows here
+     */
+    protected byte[] saveSpilled(JdbcConnector connector, Connection connection, SpilledRuns runs, IntPredicate skipSegment, PhaseTimings timings) {
+
+        DbTableMetadata tableMetadata = getTableMetadata(connector);
+        String[] matchColumns = matchColumns(connector);
+
+        // large enough for the bulk loader to kick in
+        int writeBatchRows = bulkLoadStrategy != BulkLoadStrategy.none
+                ? Math.max(jdbcBatchSize, bulkLoadMinRows)
+                : jdbcBatchSize;
+
+        SortMergeSaver saver = new SortMergeSaver(
+                targetTable,
+                matchColumns,
+                ignoredColumns,
+                createRowWriter(tableMetadata, matchColumns),
+                duplicateKeyPolicy,
+                mergeFetchSize,
+                writeBatchRows,
+                connection == null ? commitInterval() : 0);
+
+        // the reader is always rolled back, while the writer is committed, unless it belongs to the caller
+        try (Transaction reader = Transaction.begin(db, isolation);
+             Transaction writer = connection == null ? Transaction.begin(db, isolation) : null) {
+
+            byte[] outcomes = saver.save(reader.getConnection(), writer != null ? writer.getConnection() : connection, runs, skipSegment, timings);
+
+            if (writer != null) {
+                commit(writer, timings);
+            }
+
+            return outcomes;
+        } catch (SQLException | IOException e) {
+            throw new ProcessException("Failed to save records to '" + targetTable + "'", e);
+        }
+    }
+
+    /**
+     * Deletes target rows whose key hashes are not in the provided set, returning the number of deleted rows. Target
+     * keys are streamed over one connection, while the deletes are batched over another one, and committed at the end,
+     * or every "commit interval" rows, so the memory use doesn't depend on the table size.
+     *
+     * @param connection a connection in a transaction committed by the caller, or null to commit the deletes here
+     */
+    protected int deleteMissing(JdbcConnector connector, Connection connection, LongHashSet sourceKeys, PhaseTimings timings) {
+
+        long t0 = System.nanoTime();
+
+        String[] keys = matchColumns(connector);
+        DbTableMetadata tableMetadata = getTableMetadata(connector);
+        int[] keyTypes = new int[keys.length];
+        for (int i = 0; i < keys.length; i++) {
+            keyTypes[i] = tableMetadata.getColumn(keys[i]).getType();
+        }
+
+        String select = "SELECT " + String.join(", ", keys) + " FROM " + targetTable;
+        String delete = "DELETE FROM " + targetTable + " WHERE " + String.join(" = ? AND ", keys) + " = ?";
+
+        RowDigester digester = new RowDigester(keys, keys);
+        int commitEvery = connection == null ? commitInterval() : 0;
+        int batched = 0;
+        int deleted = 0;
+
+        // many drivers (e.g. PostgreSQL) only stream the results within a transaction
+        try (Transaction reader = Transaction.begin(db, isolation);
+             Transaction writer = connection == null ? Transaction.begin(db, isolation) : null) {
+
+            Connection writerConnection = writer != null ? writer.getConnection() : connection;
+
+            try (Statement st = reader.getConnection().createStatement();
+                 PreparedStatement deleteSt = writerConnection.prepareStatement(delete)) {
+
+                JdbcValues.setStreamingFetchSize(st, mergeFetchSize);
+
+                try (ResultSet rs = st.executeQuery(select)) {
+                    Object[] key = new Object[keys.length];
+                    int pending = 0;
+
+                    while (rs.next()) {
+                        for (int i = 0; i < keys.length; i++) {
+                            key[i] = rs.getObject(i + 1);
+                        }
+
+                        long keyHash = digester.keyHash(key);
+                        if (sourceKeys.contains(keyHash)) {
+                            continue;
+                        }
+
+                        for (int i = 0; i < keys.length; i++) {
+                            JdbcValues.bind(deleteSt, i + 1, key[i], keyTypes[i]);
+                        }
+
+                        deleteSt.addBatch();
+                        batched++;
+
+                        // removing the digest before the commit is safe, as at worst it causes an extra save later
+                        if (isUsingRowDigestIndex()) {
+                            rowDigestIndex.remove(keyHash);
+                        }
+
+                        boolean commit = commitEvery > 0 && batched % commitEvery == 0;
+                        if (++pending == jdbcBatchSize || commit) {
+                            deleted += deletedRows(deleteSt.executeBatch());
+                            pending = 0;
+                        }
+
+                        if (commit) {
+                            writerConnection.commit();
+                        }
+                    }
+
+                    if (pending > 0) {
+                        deleted += deletedRows(deleteSt.executeBatch());
+                    }
+                }
+            }
+
+            if (writer != null) {
+                writer.commit();
+            }
+        } catch (SQLException e) {
+            throw new ProcessException("Failed to delete missing rows from '" + targetTable + "'", e);
+        } finally {
+            if (isUsingRowDigestIndex()) {
+                rowDigestIndex.flush();
+            }
+
+            timings.add(UpsertPhase.delete, System.nanoTime() - t0);
+        }
+
+        return deleted;
+    }
+
+    // a row may have been deleted concurrently, so the count is taken from the DB rather than from the batch size
+    private static int deletedRows(int[] updateCounts) {
+        int deleted = 0;
+        for (int count : updateCounts) {
+
+            // the driver may not report the counts
+            deleted += count == Statement.SUCCESS_NO_INFO ? 1 : count;
+        }
+
+        return deleted;
+    }
+
+    // only saves the rows whose digests are not in the index
+    private RowOutcome[] saveChanged(JdbcConnector connector, DataFrame df, PhaseTimings timings) {
+
+        long t0 = System.nanoTime();
+
+        int h = df.height();
+        int w = df.width();
+
+        // digests cover the source columns, so the index is rebuilt once they are known
+        String[] labels = df.getColumnsIndex().getLabels();
+        if (rowDigestIndex.needsRebuild()) {
+            rebuildRowDigestIndex(connector, labels);
+        }
+
+        RowDigester digester = new RowDigester(labels, matchColumns(connector));
+        long[] keyHashes = new long[h];
+        long[] digests = new long[h];
+
+        Series<?>[] columns = new Series[w];
+        for (int j = 0; j < w; j++) {
+            columns[j] = df.getColumn(j);
+        }
+
+        RowOutcome[] outcomes = new RowOutcome[h];
+        int[] changed = new int[h];
+        int changedCount = 0;
+
+        Object[] row = new Object[w];
+        for (int i = 0; i < h; i++) {
+            for (int j = 0; j < w; j++) {
+                row[j] = columns[j].get(i);
+            }
+
+            keyHashes[i] = digester.keyHash(row);
+            digests[i] = digester.digest(row);
+
+            if (rowDigestIndex.matches(keyHashes[i], digests[i])) {
+                outcomes[i] = RowOutcome.skipped;
+            } else {
+                changed[changedCount++] = i;
+            }
+        }
+
+        timings.add(UpsertPhase.match, System.nanoTime() - t0);
+
+        if (changedCount == 0) {
+            return outcomes;
+        }
+
+        DataFrame toSave = changedCount == h ? df : df.selectRows(new IntArraySeries(changed, 0, changedCount));
+
+        long[] changedKeyHashes = new long[changedCount];
+        long[] changedDigests = new long[changedCount];
+        for (int i = 0; i < changedCount; i++) {
+            changedKeyHashes[i] = keyHashes[changed[i]];
+            changedDigests[i] = digests[changed[i]];
+        }
+
+        // fails before anything is written if the index is full, so that it can't miss committed rows
+        rowDigestIndex.beginSave(changedKeyHashes);
+
+        RowOutcome[] changedOutcomes;
+        try {
+            changedOutcomes = saveRows(connector, null, toSave, timings);
+        } catch (RuntimeException e) {
+            rowDigestIndex.endSave(changedKeyHashes, changedDigests, false);
+            throw e;
+        }
+
+        for (int i = 0; i < changedCount; i++) {
+            outcomes[changed[i]] = changedOutcomes[i];
+        }
+
+        // the save is committed at this point, so the index can be updated
+        long t1 = System.nanoTime();
+        rowDigestIndex.endSave(changedKeyHashes, changedDigests, true);
+        timings.add(UpsertPhase.write, System.nanoTime() - t1);
+
+        return outcomes;
+    }
+
+    private void rebuildRowDigestIndex(JdbcConnector connector, String[] columns) {
+
+        synchronized (rowDigestIndex) {
+
+            // may have been rebuilt by a concurrent save
+            if (!rowDigestIndex.needsRebuild()) {
+                return;
+            }
+
+            logger.info("Rebuilding row digest index {} for table '{}'", new Object[]{rowDigestIndex.getFile(), targetTable});
+
+            try (Connection c = db.getConnection()) {
+                rowDigestIndex.rebuild(c, targetTable, columns, matchColumns(connector), mergeFetchSize);
+            } catch (SQLException | IOException e) {
+                throw new ProcessException("Failed to rebuild row digest index for table '" + targetTable + "'", e);
+            }
+
+            logger.info("Rebuilt row digest index for table '{}' with {} rows", new Object[]{targetTable, rowDigestIndex.size()});
+        }
+    }
+
+    private boolean isUsingRowDigestIndex() {
+        return rowDigestIndex != null && matchStrategy != MatchStrategy.insert_only;
+    }
+
+    /**
+     * Returns the names of the columns used to match source rows against the target table rows, or null if the rows
+     * are not matched.
+     */
+    protected String[] matchColumns(JdbcConnector connector) {
         switch (matchStrategy) {
             case pk:
-                return saver.mergeByPk();
-            case key_columns:
-                if (keyColumns == null || keyColumns.length == 0) {
-                    throw new ProcessException("No '" + UpsertSQL.KEY_COLUMNS_PROPERTY.getName() +
-                            "' property set. It is required by 'key_columns' row matching strategy");
+            case full_sync:
+            case native_pk:
+                DbColumnMetadata[] pk = getTableMetadata(connector).getPkColumns();
+                String[] names = new String[pk.length];
+                for (int i = 0; i < pk.length; i++) {
+                    names[i] = pk[i].getName();
                 }
-                return saver.mergeByColumns(keyColumns);
-            case insert_only:
+                return names;
+            case key_columns:
+            case native_key_columns:
+                return requireKeyColumns();
+            default:
+                return null;
+        }
+    }
+
+    protected DbTableMetadata getTableMetadata(JdbcConnector connector) {
+        return metadataCache != null
+                ? metadataCache.getTableMetadata(db, targetTable)
+                : connector.getMetadata().getTable(targetTable);
+    }
+
+    protected JdbcConnector createConnector() {
+        return metadataCache != null
+                ? metadataCache.getConnector(db)
+                : Jdbc.connector(new DBCPServiceDataSource(db));
+    }
+
+    protected ConvertableRecordField[] createFieldConverters(JdbcConnector connector, RecordSchema schema) {
+
+        if (metadataCache != null) {
+            return metadataCache.getFieldConverters(db, targetTable, schema, logger);
+        }
+
+        return ConvertableRecordField.createFieldConverters(schema, getTableMetadata(connector), logger);
+    }
+
+    private String[] requireKeyColumns() {
+        if (keyColumns == null || keyColumns.length == 0) {
+            throw new ProcessException("No '" + UpsertSQL.KEY_COLUMNS_PROPERTY.getName() +
+                    "' property set. It is required by '" + matchStrategy + "' row matching strategy");
+        }
+
+        return keyColumns;
+    }
+
+    protected RowSaver createSaver(JdbcConnector connector) {
+
+        DbTableMetadata tableMetadata = getTableMetadata(connector);
+        String[] matchColumns = matchColumns(connector);
+
+        switch (matchStrategy) {
+            case native_pk:
+            case native_key_columns:
+                return new NativeUpsertSaver(tableMetadata, targetTable, matchColumns);
+            default:
+                TargetMatcher matcher = matchColumns != null
+                        ? new TargetMatcher(tableMetadata, targetTable, matchColumns, ignoredColumns, watermark)
+                        : null;
+                return new UpsertSaver(matcher, createRowWriter(tableMetadata, matchColumns));
+        }
+    }
+
+    protected RowWriter createRowWriter(DbTableMetadata tableMetadata, String[] matchColumns) {
+        return new RowWriter(
+                tableMetadata,
+                targetTable,
+                matchColumns,
+                jdbcBatchSize,
+                multiRowInsert,
+                maxStatementParameters,
+                createBulkLoader(),
+                bulkLoadMinRows);
+    }
+
+    protected BulkLoader createBulkLoader() {
+        switch (bulkLoadStrategy) {
+            case postgresql_copy:
+                return new PostgresCopyBulkLoader();
+            case h2_csvread:
+                return new H2CsvBulkLoader();
+            case none:
             default:
-                return saver;
+                return null;
         }
     }
 }
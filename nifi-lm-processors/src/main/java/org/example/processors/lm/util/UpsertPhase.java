@@ -0,0 +1,37 @@
+package org.example.processors.lm.util;
+
+/**
+ * Phases of an upsert, timed separately to find out where the time goes.
+ */
+public enum UpsertPhase {
+
+    /**
+     * Reading records and converting them to DataFrame rows
+     */
+    read,
+
+    /**
+     * Waiting for in-JVM key locks
+     */
+    lock,
+
+    /**
+     * Fetching the matching target rows, or looking up row digests
+     */
+    match,
+
+    /**
+     * Comparing source rows with the target rows
+     */
+    diff,
+
+    /**
+     * Writing rows to the target table, including the commit
+     */
+    write,
+
+    /**
+     * Deleting target rows missing from a full snapshot
+     */
+    delete
+}
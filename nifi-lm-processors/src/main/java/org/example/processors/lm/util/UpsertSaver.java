@@ -0,0 +1,44 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+
+import java.sql.Connection;
+import java.sql.SQLException;
+import java.util.Arrays;
+import java.util.BitSet;
+
+/**
+ * Saves a DataFrame by matching its rows against the existing target table rows, and then inserting new rows and
+ * updating the changed columns of the changed rows. Unchanged rows are skipped. If there are no key columns, all
+ * rows are inserted.
+ */
+public class UpsertSaver implements RowSaver {
+
+    private final TargetMatcher matcher;
+    private final RowWriter writer;
+
+    public UpsertSaver(TargetMatcher matcher, RowWriter writer) {
+        this.matcher = matcher;
+        this.writer = writer;
+    }
+
+    @Override
+    public RowOutcome[] save(Connection connection, DataFrame df, PhaseTimings timings) throws SQLException {
+
+        RowOutcome[] outcomes;
+        BitSet[] changes = null;
+        if (matcher != null) {
+            changes = new BitSet[df.height()];
+            outcomes = matcher.match(connection, df, timings, changes);
+        } else {
+            outcomes = new RowOutcome[df.height()];
+            Arrays.fill(outcomes, RowOutcome.inserted);
+        }
+
+        long t0 = System.nanoTime();
+        writer.write(connection, df, outcomes, changes);
+        timings.add(UpsertPhase.write, System.nanoTime() - t0);
+
+        return outcomes;
+    }
+}
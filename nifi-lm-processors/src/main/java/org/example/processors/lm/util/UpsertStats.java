@@ -0,0 +1,166 @@
+package org.example.processors.lm.util;
+
+import java.util.Arrays;
+
+/**
+ * Accumulates save statistics over one or more save operations, e.g. when a large FlowFile is saved in chunks. Optionally tracks per-row outcomes in the order the rows were added.
+ */
+public class UpsertStats {
+
+    private int inserted;
+    private int updated;
+    private int skipped;
+    private int upserted;
+    private int collapsed;
+    private int deleted;
+
+    // one byte per row is compact enough even for very large record sets
+    private byte[] outcomes;
+
+    private final PhaseTimings timings;
+
+    public UpsertStats() {
+        this(false);
+    }
+
+    public UpsertStats(boolean trackOutcomes) {
+        this.outcomes = trackOutcomes ? new byte[16] : null;
+        this.timings = new PhaseTimings();
+    }
+
+    /**
+     * Adds outcomes of a range of rows. Used when a single save operation covered rows from multiple record sets.
+     */
+    public UpsertStats add(RowOutcome[] rowOutcomes, int fromRow, int toRow) {
+
+        for (int i = fromRow; i < toRow; i++) {
+            add(rowOutcomes[i]);
+        }
+
+        return this;
+    }
+
+    /**
+     * Adds the counts and timings of other stats, e.g. of the rows of the same record set saved to different tables.
+     * Per-row outcomes can't be merged this way, as their order would be lost.
+     */
+    public UpsertStats add(UpsertStats other) {
+
+        if (outcomes != null) {
+            throw new IllegalStateException("Can't merge stats with tracked row outcomes");
+        }
+
+        inserted += other.inserted;
+        updated += other.updated;
+        skipped += other.skipped;
+        upserted += other.upserted;
+        collapsed += other.collapsed;
+        deleted += other.deleted;
+        timings.add(other.timings, 1, 1);
+        return this;
+    }
+
+    public UpsertStats add(RowOutcome outcome) {
+        switch (outcome) {
+            case inserted:
+                inserted++;
+                break;
+            case updated:
+                updated++;
+                break;
+            case upserted:
+                upserted++;
+                break;
+            case collapsed:
+                collapsed++;
+                break;
+            default:
+                skipped++;
+                break;
+        }
+
+        if (outcomes != null) {
+            int row = getTotal() - 1;
+            if (row == outcomes.length) {
+                outcomes = Arrays.copyOf(outcomes, outcomes.length * 2);
+            }
+
+            outcomes[row] = (byte) outcome.ordinal();
+        }
+
+        return this;
+    }
+
+    /**
+     * Returns the outcome of a row at the given position. Only available if the stats were created with outcome
+     * tracking enabled.
+     */
+    public RowOutcome getOutcome(int row) {
+
+        if (outcomes == null) {
+            throw new IllegalStateException("Row outcomes are not tracked");
+        }
+
+        if (row >= getTotal()) {
+            throw new IndexOutOfBoundsException("Row " + row + " is out of bounds. Total rows: " + getTotal());
+        }
+
+        return RowOutcome.ofOrdinal(outcomes[row]);
+    }
+
+    public int getInserted() {
+        return inserted;
+    }
+
+    public int getUpdated() {
+        return updated;
+    }
+
+    public int getSkipped() {
+        return skipped;
+    }
+
+    /**
+     * Returns the number of rows that were either inserted or updated, when the exact operation is not known.
+     */
+    public int getUpserted() {
+        return upserted;
+    }
+
+    /**
+     * Returns the number of rows that were not saved, as they were superseded by other rows with the same key.
+     */
+    public int getCollapsed() {
+        return collapsed;
+    }
+
+    /**
+     * Returns the number of target rows deleted because they were missing from the source snapshot. Deleted rows
+     * are not included in the {@link #getTotal() total}, which only counts the source rows.
+     */
+    public int getDeleted() {
+        return deleted;
+    }
+
+    public UpsertStats setDeleted(int deleted) {
+        this.deleted = deleted;
+        return this;
+    }
+
+    /**
+     * Returns the time spent in each upsert phase. For rows saved together with rows of other record sets, this is a
+     * share of the total time, proportional to the number of rows.
+     */
+    public PhaseTimings getTimings() {
+        return timings;
+    }
+
+    public int getTotal() {
+        return inserted + updated + skipped + upserted + collapsed;
+    }
+
+    @Override
+    public String toString() {
+        return "{insert:" + inserted + ",update:" + updated + ",skip:" + skipped + ",upsert:" + upserted + ",collapse:" + collapsed + ",delete:" + deleted + "}";
+    }
+}
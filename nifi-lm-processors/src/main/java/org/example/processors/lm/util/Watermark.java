@@ -0,0 +1,148 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.Series;
+
+import java.math.BigDecimal;
+import java.time.LocalDate;
+import java.time.LocalDateTime;
+import java.time.LocalTime;
+
+/**
+ * The highest "last modified" column value among the rows already saved to the target table. Source rows with higher
+ * values are newer than any saved row, so they can't be unchanged, and only need a key lookup in the target table.
+ * The value is kept as a String, and is parsed to the type of the compared row values on demand.
+ */
+public class Watermark {
+
+    private final String column;
+    private final String value;
+
+    // may be replaced concurrently, as rows are matched in parallel partitions
+    private volatile Parsed parsed;
+
+    /**
+     * @param column a "last modified" column of the target table, that must also be present in the source rows
+     * @param value  the stored watermark value, or null if nothing was saved yet
+     */
+    public Watermark(String column, String value) {
+        this.column = column;
+        this.value = value;
+    }
+
+    /**
+     * Converts a row value to a String that can be stored and later parsed back for comparison.
+     */
+    public static String format(Object rowValue) {
+        return JdbcValues.normalize(rowValue).toString();
+    }
+
+    /**
+     * Returns the highest of the current value and the non-null values of the column, normalized via
+     * {@link JdbcValues#normalize(Object)}.
+     */
+    public static Object max(Object current, Series<?> column) {
+
+        Object max = current;
+        int h = column.size();
+        for (int i = 0; i < h; i++) {
+            max = max(max, column.get(i));
+        }
+
+        return max;
+    }
+
+    /**
+     * Returns the greater of the two values, normalizing the second one with {@link JdbcValues#normalize(Object)}.
+     * Nulls are ignored.
+     */
+    @SuppressWarnings("unchecked")
+    public static Object max(Object current, Object value) {
+        Object v = JdbcValues.normalize(value);
+        return v != null && (current == null || ((Comparable<Object>) v).compareTo(current) > 0) ? v : current;
+    }
+
+    public String getColumn() {
+        return column;
+    }
+
+    public String getValue() {
+        return value;
+    }
+
+    /**
+     * Returns the position of the watermark column among the labels, compared ignoring case.
+     */
+    public int position(String[] labels) {
+        for (int i = 0; i < labels.length; i++) {
+            if (labels[i].equalsIgnoreCase(column)) {
+                return i;
+            }
+        }
+
+        throw new IllegalArgumentException("Watermark column '" + column + "' is not present in the data");
+    }
+
+    /**
+     * Returns true if the row value is below the watermark, i.e. the row was already saved. Rows with the value equal
+     * to the watermark are not covered, as there may be more rows with the same value that were not saved yet.
+     */
+    public boolean covers(Object rowValue) {
+        return value != null && rowValue != null && compareTo(rowValue) > 0;
+    }
+
+    /**
+     * Returns true if the row value is above the watermark, or there is no watermark yet.
+     */
+    public boolean isBelow(Object rowValue) {
+        return value == null || (rowValue != null && compareTo(rowValue) < 0);
+    }
+
+    private int compareTo(Object rowValue) {
+        Object normalized = JdbcValues.normalize(rowValue);
+        return parsed(normalized.getClass()).compareTo(normalized);
+    }
+
+    @SuppressWarnings("unchecked")
+    private Comparable<Object> parsed(Class<?> type) {
+
+        Parsed p = parsed;
+        if (p == null || p.type != type) {
+            p = new Parsed(type, (Comparable<Object>) parse(value, type));
+            parsed = p;
+        }
+
+        return p.value;
+    }
+
+    private static Object parse(String value, Class<?> type) {
+
+        if (Long.class.equals(type)) {
+            return Long.valueOf(value);
+        } else if (LocalDateTime.class.equals(type)) {
+            return LocalDateTime.parse(value);
+        } else if (LocalDate.class.equals(type)) {
+            return LocalDate.parse(value);
+        } else if (LocalTime.class.equals(type)) {
+            return LocalTime.parse(value);
+        } else if (BigDecimal.class.equals(type)) {
+            return new BigDecimal(value);
+        } else if (Double.class.equals(type)) {
+            return Double.valueOf(value);
+        } else if (String.class.equals(type)) {
+            return value;
+        }
+
+        throw new IllegalArgumentException("Unsupported watermark column type: " + type.getName());
+    }
+
+    private static class Parsed {
+
+        final Class<?> type;
+        final Comparable<Object> value;
+
+        Parsed(Class<?> type, Comparable<Object> value) {
+            this.type = type;
+            this.value = value;
+        }
+    }
+}
@@ -2,6 +2,8 @@ package org.example.processors.lm;
 
 import com.nhl.dflib.DataFrame;
 import com.nhl.dflib.jdbc.Jdbc;
+import com.nhl.dflib.jdbc.connector.JdbcConnector;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
 import com.nhl.dflib.junit5.DataFrameAsserts;
 import org.apache.avro.Schema;
 import org.apache.avro.file.DataFileWriter;
@@ -10,30 +12,46 @@ import org.apache.avro.generic.GenericDatumWriter;
 import org.apache.avro.generic.GenericRecord;
 import org.apache.avro.io.DatumWriter;
 import org.apache.nifi.avro.AvroReader;
+import org.apache.nifi.components.state.Scope;
 import org.apache.nifi.controller.AbstractControllerService;
 import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.json.JsonRecordSetWriter;
 import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.provenance.ProvenanceEventRecord;
+import org.apache.nifi.provenance.ProvenanceEventType;
 import org.apache.nifi.reporting.InitializationException;
 import org.apache.nifi.serialization.RecordReaderFactory;
+import org.apache.nifi.util.MockFlowFile;
 import org.apache.nifi.util.TestRunner;
 import org.apache.nifi.util.TestRunners;
 import org.example.processors.lm.util.DBCPServiceDataSource;
 import org.example.processors.lm.util.MatchStrategy;
+import org.example.processors.lm.util.TransactionIsolation;
+import org.example.processors.lm.util.TransactionMode;
+import org.example.processors.lm.util.UpsertPhase;
 import org.junit.jupiter.api.BeforeAll;
 import org.junit.jupiter.api.BeforeEach;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 import org.testcontainers.containers.PostgreSQLContainer;
 import org.testcontainers.junit.jupiter.Container;
 import org.testcontainers.junit.jupiter.Testcontainers;
 
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
+import java.nio.file.Path;
 import java.sql.Connection;
 import java.sql.DriverManager;
 import java.sql.SQLException;
 import java.sql.Statement;
 import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 
 @Testcontainers
 public class UpsertSQLIT {
@@ -43,6 +61,8 @@ public class UpsertSQLIT {
 
     private static final String SOURCE_READER = "SourceReader";
     private static final String TARGET_POOL = "TargetPool";
+    private static final String METADATA_CACHE = "MetadataCache";
+    private static final String OUTCOME_WRITER = "OutcomeWriter";
 
     static final DBCPService targetPool = new DBCPServiceImpl();
     static final Schema avroSchema;
@@ -60,6 +80,7 @@ public class UpsertSQLIT {
         try (Connection c = targetPool.getConnection()) {
             try (Statement s = c.createStatement()) {
                 s.executeUpdate("create table test_table (id bigint primary key, name varchar(100))");
+                s.executeUpdate("create table other_table (id bigint primary key, name varchar(100))");
             }
         }
     }
@@ -69,6 +90,7 @@ public class UpsertSQLIT {
         try (Connection c = targetPool.getConnection()) {
             try (Statement s = c.createStatement()) {
                 s.executeUpdate("delete from test_table");
+                s.executeUpdate("delete from other_table");
             }
         }
     }
@@ -93,9 +115,17 @@ public class UpsertSQLIT {
         return r;
     }
 
+    private static String tooLongName() {
+        return new String(new char[101]).replace('\0', 'x');
+    }
+
     private DataFrameAsserts assertDbData() {
+        return assertDbData("test_table");
+    }
+
+    private DataFrameAsserts assertDbData(String table) {
         DataFrame df = Jdbc.connector(new DBCPServiceDataSource(targetPool))
-                .tableLoader("test_table")
+                .tableLoader(table)
                 .load()
                 .sort("id", true);
         return new DataFrameAsserts(df, "id", "name");
@@ -177,6 +207,793 @@ public class UpsertSQLIT {
                 .expectRow(2, 3L, "d");
     }
 
+    @Test
+    @DisplayName("Upsert matching by PK, saving in chunks")
+    public void testByPk_Chunked() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "x"), createRecord(3L, "c"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(4)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "x")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, committing each chunk, and failing in the middle")
+    public void testByPk_PerChunkTransactions() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+
+        // the name is too long for the column
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, tooLongName()), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 0);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.FAILURE_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.RECOVERY_ATTRIBUTE, UpsertSQL.RECOVERY_RESUME);
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, saving a batch in a single transaction")
+    public void testByPk_SingleTransaction() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+        runner.setProperty(UpsertSQL.TRANSACTION_MODE_PROPERTY, TransactionMode.single.name());
+        runner.setProperty(UpsertSQL.TRANSACTION_ISOLATION_PROPERTY, TransactionIsolation.repeatable_read.name());
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, tooLongName()), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 0);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.FAILURE_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, "0");
+        ff.assertAttributeEquals(UpsertSQL.RECOVERY_ATTRIBUTE, UpsertSQL.RECOVERY_RESTART);
+        assertDbData().expectHeight(0);
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, committing every N records")
+    public void testByPk_CommitInterval() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.TRANSACTION_MODE_PROPERTY, TransactionMode.commit_interval.name());
+        runner.setProperty(UpsertSQL.COMMIT_INTERVAL_PROPERTY, "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "x"), createRecord(3L, "c"), createRecord(4L, "d"), createRecord(5L, "e")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "2");
+
+        assertDbData().expectHeight(5)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "x")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d")
+                .expectRow(4, 5L, "e");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, saving chunks in the background while reading the next ones")
+    public void testByPk_Pipelined() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+        runner.setProperty(UpsertSQL.MAX_FLOWFILES_PER_BATCH_PROPERTY, "10");
+        runner.setProperty(UpsertSQL.PIPELINE_DEPTH_PROPERTY, "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.enqueue(encodeAsAvro(createRecord(4L, "d"), createRecord(5L, tooLongName()), createRecord(6L, "f")));
+        runner.enqueue(encodeAsAvro(createRecord(2L, "x"), createRecord(7L, "g"), createRecord(8L, "h")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        MockFlowFile failed = runner.getFlowFilesForRelationship(UpsertSQL.FAILURE_RELATIONSHIP).get(0);
+        failed.assertAttributeEquals(UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, "0");
+        failed.assertAttributeEquals(UpsertSQL.RECOVERY_ATTRIBUTE, UpsertSQL.RECOVERY_RESTART);
+
+        // the rows of the failed FlowFile are only saved up to the failed chunk
+        assertDbData().expectHeight(6)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "x")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d")
+                .expectRow(4, 7L, "g")
+                .expectRow(5, 8L, "h");
+    }
+
+    @Test
+    @DisplayName("Match by PK, JDBC batches with multi-row inserts")
+    public void testByPk_MultiRowInsert() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.JDBC_BATCH_SIZE_PROPERTY, "2");
+        runner.setProperty(UpsertSQL.MULTI_ROW_INSERT_PROPERTY, "true");
+        runner.setProperty(UpsertSQL.MAX_STATEMENT_PARAMETERS_PROPERTY, "4");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "x"), createRecord(2L, "y"), createRecord(3L, "c"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+
+        assertDbData().expectHeight(4)
+                .expectRow(0, 1L, "x")
+                .expectRow(1, 2L, "y")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d");
+    }
+
+    @Test
+    @DisplayName("Match by PK, new rows loaded with PostgreSQL COPY")
+    public void testByPk_PostgresCopy() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.BULK_LOAD_STRATEGY_PROPERTY, "postgresql_copy");
+        runner.setProperty(UpsertSQL.BULK_LOAD_MIN_ROWS_PROPERTY, "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c, \"quoted\"")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c, \"quoted\"");
+
+        // a single new row is below the bulk load threshold
+        runner.enqueue(encodeAsAvro(createRecord(1L, "x"), createRecord(2L, "b"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(4)
+                .expectRow(0, 1L, "x")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c, \"quoted\"")
+                .expectRow(3, 4L, "d");
+    }
+
+    @Test
+    @DisplayName("Match by PK, partitions saved in parallel")
+    public void testByPk_Parallel() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.PARALLELISM_PROPERTY, "3");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(4)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "x"), createRecord(4L, "y"), createRecord(5L, "e")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+
+        assertDbData().expectHeight(5)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "x")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "y")
+                .expectRow(4, 5L, "e");
+    }
+
+    @Test
+    @DisplayName("Match by PK, phase timings and provenance reported")
+    public void testByPk_Timings() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.SLOW_BATCH_THRESHOLD_PROPERTY, "1 ms");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        for (UpsertPhase phase : UpsertPhase.values()) {
+            ff.assertAttributeExists(UpsertSQL.TIME_ATTRIBUTE_PREFIX + phase.name() + ".ms");
+        }
+
+        List<ProvenanceEventRecord> events = runner.getProvenanceEvents();
+        assertEquals(1, events.stream().filter(e -> e.getEventType() == ProvenanceEventType.SEND).count());
+        assertTrue(events.stream().anyMatch(e -> e.getTransitUri() != null && e.getTransitUri().startsWith("jdbc:postgresql:")));
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, with metadata cache")
+    public void testByPk_MetadataCache() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+
+        StandardUpsertMetadataCache cache = new StandardUpsertMetadataCache();
+        runner.addControllerService(METADATA_CACHE, cache);
+        runner.enableControllerService(cache);
+
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.METADATA_CACHE_PROPERTY, METADATA_CACHE);
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.enqueue(encodeAsAvro(createRecord(2L, "c"), createRecord(3L, "d")));
+        runner.run(2);
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "c")
+                .expectRow(2, 3L, "d");
+    }
+
+    @Test
+    @DisplayName("Metadata cache is kept on failures unrelated to the target table")
+    public void testByPk_MetadataCache_Failure() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+
+        StandardUpsertMetadataCache cache = new StandardUpsertMetadataCache();
+        runner.addControllerService(METADATA_CACHE, cache);
+        runner.enableControllerService(cache);
+
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.METADATA_CACHE_PROPERTY, METADATA_CACHE);
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a")));
+        runner.run();
+
+        JdbcConnector connector = cache.getConnector(targetPool);
+        DbTableMetadata table = cache.getTableMetadata(targetPool, "test_table");
+
+        runner.enqueue("not avro".getBytes());
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        assertSame(connector, cache.getConnector(targetPool));
+        assertSame(table, cache.getTableMetadata(targetPool, "test_table"));
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, merging FlowFiles in a batch")
+    public void testByPk_Batch() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MAX_FLOWFILES_PER_BATCH_PROPERTY, "10");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.enqueue("not avro".getBytes());
+        runner.enqueue(encodeAsAvro(createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+    }
+
+    @Test
+    @DisplayName("Upsert to the table named by a FlowFile attribute")
+    public void testByPk_TableAttribute() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "${target.table}");
+        runner.setProperty(UpsertSQL.MAX_FLOWFILES_PER_BATCH_PROPERTY, "10");
+
+        Map<String, String> test = new HashMap<>();
+        test.put("target.table", "test_table");
+        Map<String, String> other = new HashMap<>();
+        other.put("target.table", "other_table");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a")), test);
+        runner.enqueue(encodeAsAvro(createRecord(2L, "b")), other);
+        runner.enqueue(encodeAsAvro(createRecord(3L, "c")), test);
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 3);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 3L, "c");
+        assertDbData("other_table").expectHeight(1)
+                .expectRow(0, 2L, "b");
+    }
+
+    @Test
+    @DisplayName("Upsert to the tables selected by a record path, in a single transaction")
+    public void testByPk_TableRecordPath() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.TARGET_TABLE_RECORD_PATH_PROPERTY, "/name");
+        runner.setProperty(UpsertSQL.MAX_FLOWFILES_PER_BATCH_PROPERTY, "10");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "other_table"), createRecord(2L, "")));
+        runner.enqueue(encodeAsAvro(createRecord(3L, "test_table"), createRecord(4L, "other_table")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 2L, "")
+                .expectRow(1, 3L, "test_table");
+        assertDbData("other_table").expectHeight(2)
+                .expectRow(0, 1L, "other_table")
+                .expectRow(1, 4L, "other_table");
+
+        // the bad FlowFile is isolated on retry, while the rows of the good one are saved to both tables
+        runner.enqueue(encodeAsAvro(createRecord(5L, "other_table"), createRecord(6L, "no_such_table")));
+        runner.enqueue(encodeAsAvro(createRecord(7L, "other_table"), createRecord(8L, "")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 3);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        assertDbData().expectHeight(3)
+                .expectRow(0, 2L, "")
+                .expectRow(1, 3L, "test_table")
+                .expectRow(2, 8L, "");
+        assertDbData("other_table").expectHeight(3)
+                .expectRow(0, 1L, "other_table")
+                .expectRow(1, 4L, "other_table")
+                .expectRow(2, 7L, "other_table");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, writing record outcomes")
+    public void testByPk_Outcomes() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+
+        JsonRecordSetWriter writer = new JsonRecordSetWriter();
+        runner.addControllerService(OUTCOME_WRITER, writer);
+        runner.enableControllerService(writer);
+
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.OUTCOME_RECORD_WRITER, OUTCOME_WRITER);
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "c"), createRecord(3L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals("record.count", "3");
+        ff.assertContentEquals("[{\"id\":1,\"name\":\"a\",\"upsert_outcome\":\"skipped\"}," +
+                "{\"id\":2,\"name\":\"c\",\"upsert_outcome\":\"updated\"}," +
+                "{\"id\":3,\"name\":\"d\",\"upsert_outcome\":\"inserted\"}]");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK, with row digest index")
+    public void testByPk_RowDigestIndex(@TempDir Path indexDir) throws InitializationException, IOException, SQLException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.ROW_DIGEST_INDEX_DIRECTORY_PROPERTY, indexDir.toString());
+
+        try (Connection c = targetPool.getConnection()) {
+            try (Statement s = c.createStatement()) {
+                s.executeUpdate("insert into test_table (id, name) values (1, 'a')");
+            }
+        }
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "c"), createRecord(3L, "d")));
+        runner.run(2);
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "c")
+                .expectRow(2, 3L, "d");
+
+        // the first row is known from the index built via a table scan
+        MockFlowFile ff1 = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff1.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff1.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+
+        MockFlowFile ff2 = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff2.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff2.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff2.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+    }
+
+    @Test
+    @DisplayName("Upsert matching by PK with native upsert")
+    public void testNativePk() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.native_pk.name());
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "c"), createRecord(3L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "c")
+                .expectRow(2, 3L, "d");
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPSERTED_ATTRIBUTE, "2");
+    }
+
+    @Test
+    @DisplayName("Match by PK, sort-merge join with spilled runs")
+    public void testByPk_SortMerge(@TempDir Path spillDir) throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.JOIN_MODE_PROPERTY, "sort_merge");
+        runner.setProperty(UpsertSQL.SPILL_DIRECTORY_PROPERTY, spillDir.toString());
+        runner.setProperty(UpsertSQL.MERGE_FETCH_SIZE_PROPERTY, "2");
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(3L, "c"), createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.clearTransferState();
+
+        runner.enqueue(encodeAsAvro(createRecord(5L, "e"), createRecord(2L, "x"), createRecord(1L, "a"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+
+        assertDbData().expectHeight(5)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "x")
+                .expectRow(2, 3L, "c")
+                .expectRow(3, 4L, "d")
+                .expectRow(4, 5L, "e");
+    }
+
+    @Test
+    @DisplayName("Match by PK, sort-merge join collapsing duplicate keys across runs")
+    public void testByPk_SortMerge_DuplicateKeys(@TempDir Path spillDir) throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.JOIN_MODE_PROPERTY, "sort_merge");
+        runner.setProperty(UpsertSQL.SPILL_DIRECTORY_PROPERTY, spillDir.toString());
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+        runner.setProperty(UpsertSQL.DUPLICATE_KEY_POLICY_PROPERTY, "last_wins");
+
+        try (Connection c = targetPool.getConnection()) {
+            try (Statement s = c.createStatement()) {
+                s.executeUpdate("insert into test_table (id, name) values (2, 'b')");
+            }
+        }
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "x"), createRecord(1L, "c"), createRecord(2L, "b")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.COLLAPSED_ATTRIBUTE, "2");
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 1L, "c")
+                .expectRow(1, 2L, "b");
+    }
+
+    @Test
+    @DisplayName("Sort-merge join requires matching by key")
+    public void testSortMerge_InvalidMatchStrategy() throws InitializationException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.JOIN_MODE_PROPERTY, "sort_merge");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.full_sync.name());
+        runner.assertNotValid();
+
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.pk.name());
+        runner.assertValid();
+    }
+
+    @Test
+    @DisplayName("Match by PK, collapsing duplicate keys")
+    public void testByPk_DuplicateKeys() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.DUPLICATE_KEY_POLICY_PROPERTY, "last_wins");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(1L, "c"), createRecord(1L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.COLLAPSED_ATTRIBUTE, "2");
+        assertEquals(2L, runner.getCounterValue("Rows collapsed"));
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 1L, "d")
+                .expectRow(1, 2L, "b");
+    }
+
+    @Test
+    @DisplayName("Match by PK, failing on duplicate keys")
+    public void testByPk_DuplicateKeys_Fail() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.DUPLICATE_KEY_POLICY_PROPERTY, "fail");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(1L, "b")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+        assertDbData().expectHeight(0);
+    }
+
+    @Test
+    @DisplayName("Match by PK, ignoring changes in some columns")
+    public void testByPk_IgnoredColumns() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.IGNORED_COLUMNS_PROPERTY, "name");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.enqueue(encodeAsAvro(createRecord(1L, "x"), createRecord(3L, "c")));
+        runner.run(2);
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(1);
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "0");
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+    }
+
+    @Test
+    @DisplayName("Match by PK, reading only the keys of records above the watermark")
+    public void testByPk_Watermark() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.WATERMARK_COLUMN_PROPERTY, "id");
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.getStateManager().assertStateEquals("watermark.test_table.id", "2", Scope.CLUSTER);
+        runner.clearTransferState();
+
+        // "1" is below the watermark and "2" is at the watermark, so both are matched, "3" is above the watermark and
+        // only its key is looked up
+        runner.enqueue(encodeAsAvro(createRecord(1L, "x"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.SKIPPED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        runner.getStateManager().assertStateEquals("watermark.test_table.id", "3", Scope.CLUSTER);
+
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "x")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+    }
+
+    @Test
+    @DisplayName("Full sync, deleting rows missing from the snapshot")
+    public void testFullSync() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.full_sync.name());
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0).assertAttributeEquals(UpsertSQL.DELETED_ATTRIBUTE, "0");
+        runner.clearTransferState();
+
+        runner.enqueue(encodeAsAvro(createRecord(2L, "x"), createRecord(4L, "d")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.SUCCESS_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.INSERTED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.UPDATED_ATTRIBUTE, "1");
+        ff.assertAttributeEquals(UpsertSQL.DELETED_ATTRIBUTE, "2");
+        assertEquals(2L, runner.getCounterValue("Rows deleted"));
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 2L, "x")
+                .expectRow(1, 4L, "d");
+    }
+
+    @Test
+    @DisplayName("Full sync of a snapshot split into fragments")
+    public void testFullSync_Fragments() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.full_sync.name());
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, "c")));
+        runner.run();
+        runner.clearTransferState();
+
+        Map<String, String> fragment = new HashMap<>();
+        fragment.put("fragment.identifier", "s1");
+        fragment.put("fragment.count", "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(2L, "x")), fragment);
+        runner.run();
+
+        // waiting for the second fragment
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 0);
+        runner.assertQueueNotEmpty();
+
+        runner.enqueue(encodeAsAvro(createRecord(4L, "d")), fragment);
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 2);
+        runner.assertAllFlowFilesContainAttribute(UpsertSQL.SUCCESS_RELATIONSHIP, UpsertSQL.DELETED_ATTRIBUTE);
+
+        assertDbData().expectHeight(2)
+                .expectRow(0, 2L, "x")
+                .expectRow(1, 4L, "d");
+    }
+
+    @Test
+    @DisplayName("Full sync with a broken fragment does not delete anything")
+    public void testFullSync_FailedFragment() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.full_sync.name());
+
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b")));
+        runner.run();
+        runner.clearTransferState();
+
+        Map<String, String> fragment = new HashMap<>();
+        fragment.put("fragment.identifier", "s1");
+        fragment.put("fragment.count", "2");
+
+        runner.enqueue(encodeAsAvro(createRecord(3L, "c")), fragment);
+        runner.enqueue("not avro".getBytes(), fragment);
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 3L, "c");
+    }
+
     @Test
     @DisplayName("Insert only")
     public void testInsertOnly() throws InitializationException, IOException {
@@ -205,6 +1022,55 @@ public class UpsertSQLIT {
                 .expectRow(3, 4L, "c");
     }
 
+    @Test
+    @DisplayName("Insert only, not retrying a FlowFile with committed records")
+    public void testInsertOnly_PartiallyCommitted() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.insert_only.name());
+        runner.setProperty(UpsertSQL.RECORDS_PER_CHUNK_PROPERTY, "2");
+
+        // the name is too long for the column
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, tooLongName()), createRecord(4L, "d")));
+        runner.enqueue(encodeAsAvro(createRecord(5L, "e")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, 1);
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 1);
+
+        MockFlowFile ff = runner.getFlowFilesForRelationship(UpsertSQL.FAILURE_RELATIONSHIP).get(0);
+        ff.assertAttributeEquals(UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, "2");
+        ff.assertAttributeEquals(UpsertSQL.RECOVERY_ATTRIBUTE, UpsertSQL.RECOVERY_RESUME);
+
+        assertDbData().expectHeight(3)
+                .expectRow(0, 1L, "a")
+                .expectRow(1, 2L, "b")
+                .expectRow(2, 5L, "e");
+    }
+
+    @Test
+    @DisplayName("Insert only, not retrying a FlowFile whose failed chunk was partially committed")
+    public void testInsertOnly_ParallelPartiallyCommitted() throws InitializationException, IOException {
+        TestRunner runner = createRunnerWithControllers();
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, MatchStrategy.insert_only.name());
+        runner.setProperty(UpsertSQL.PARALLELISM_PROPERTY, "3");
+
+        // the name is too long for the column, while the other partitions may be committed
+        runner.enqueue(encodeAsAvro(createRecord(1L, "a"), createRecord(2L, "b"), createRecord(3L, tooLongName()), createRecord(4L, "d")));
+        runner.enqueue(encodeAsAvro(createRecord(5L, "e")));
+        runner.run();
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 2);
+
+        for (MockFlowFile ff : runner.getFlowFilesForRelationship(UpsertSQL.FAILURE_RELATIONSHIP)) {
+            ff.assertAttributeEquals(UpsertSQL.COMMITTED_ROWS_ATTRIBUTE, "0");
+            ff.assertAttributeEquals(UpsertSQL.RECOVERY_ATTRIBUTE, UpsertSQL.RECOVERY_RESUME);
+        }
+    }
+
     @Test
     @DisplayName("Upsert matching by columns")
     public void testByColumns() throws InitializationException, IOException {
@@ -0,0 +1,287 @@
+package org.example.processors.lm;
+
+import org.apache.avro.Schema;
+import org.apache.avro.file.DataFileWriter;
+import org.apache.avro.generic.GenericData;
+import org.apache.avro.generic.GenericDatumWriter;
+import org.apache.avro.generic.GenericRecord;
+import org.apache.nifi.avro.AvroReader;
+import org.apache.nifi.controller.AbstractControllerService;
+import org.apache.nifi.dbcp.DBCPService;
+import org.apache.nifi.processor.exception.ProcessException;
+import org.apache.nifi.reporting.InitializationException;
+import org.apache.nifi.util.TestRunner;
+import org.apache.nifi.util.TestRunners;
+import org.example.processors.lm.util.MatchStrategy;
+import org.junit.jupiter.api.DynamicTest;
+import org.junit.jupiter.api.TestFactory;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.stream.Stream;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+/**
+ * A load harness that runs UpsertSQL against an embedded H2 DB in PostgreSQL compatibility mode, so that it works
+ * without Docker or network access. Reports throughput and heap high-water mark for each {@link MatchStrategy}. Load
+ * is configured with system properties:
+ *
+ * <ul>
+ * <li>"load.rows" - the total number of source records (default 20000)</li>
+ * <li>"load.recordsPerFlowFile" - the number of records in each FlowFile (default 1000)</li>
+ * <li>"load.updateRatio" - the share of records that update existing rows (default 0.2)</li>
+ * <li>"load.insertRatio" - the share of records that are new (default 0.3). The rest are unchanged</li>
+ * </ul>
+ */
+public class UpsertSQLLoadIT {
+
+    private static final String SOURCE_READER = "SourceReader";
+    private static final String TARGET_POOL = "TargetPool";
+
+    private static final int ROWS = Integer.getInteger("load.rows", 20_000);
+    private static final int RECORDS_PER_FLOWFILE = Integer.getInteger("load.recordsPerFlowFile", 1000);
+    private static final double UPDATE_RATIO = Double.parseDouble(System.getProperty("load.updateRatio", "0.2"));
+    private static final double INSERT_RATIO = Double.parseDouble(System.getProperty("load.insertRatio", "0.3"));
+
+    private static final Schema avroSchema;
+
+    static {
+        try {
+            avroSchema = new Schema.Parser().parse(UpsertSQLLoadIT.class.getResourceAsStream("test.avsc"));
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    @TestFactory
+    public Stream<DynamicTest> testLoad() {
+        return Stream.of(MatchStrategy.values())
+                .map(s -> DynamicTest.dynamicTest(s.name(), () -> runLoad(s)));
+    }
+
+    private void runLoad(MatchStrategy strategy) throws Exception {
+
+        H2DBCPService pool = new H2DBCPService("jdbc:h2:mem:load_" + strategy + ";MODE=PostgreSQL;DB_CLOSE_DELAY=-1");
+        LoadData data = new LoadData(strategy != MatchStrategy.insert_only);
+        data.createTable(pool);
+
+        List<byte[]> flowFiles = data.encodeFlowFiles();
+        TestRunner runner = createRunner(pool, strategy);
+
+        // a full sync snapshot is saved in one go, so its FlowFiles are marked as fragments of a single snapshot
+        boolean fullSync = strategy == MatchStrategy.full_sync;
+        Map<String, String> fragment = new HashMap<>();
+        if (fullSync) {
+            fragment.put("fragment.identifier", "load");
+            fragment.put("fragment.count", String.valueOf(flowFiles.size()));
+        }
+
+        for (byte[] ff : flowFiles) {
+            runner.enqueue(ff, fragment);
+        }
+
+        HeapSampler heap = new HeapSampler();
+        heap.start();
+
+        long t0 = System.nanoTime();
+        runner.run(fullSync ? 1 : flowFiles.size());
+        long nanos = System.nanoTime() - t0;
+
+        long heapHighWater = heap.stopAndGet();
+
+        runner.assertTransferCount(UpsertSQL.FAILURE_RELATIONSHIP, 0);
+        runner.assertTransferCount(UpsertSQL.SUCCESS_RELATIONSHIP, flowFiles.size());
+        assertEquals(data.expectedRows, countRows(pool));
+
+        System.out.printf("%-20s %8d records in %6d ms: %10.0f records/sec, heap high-water mark %5d MB above baseline%n",
+                strategy,
+                ROWS,
+                nanos / 1_000_000,
+                ROWS / (nanos / 1_000_000_000.0),
+                heapHighWater / (1024 * 1024));
+    }
+
+    private TestRunner createRunner(DBCPService pool, MatchStrategy strategy) throws InitializationException {
+        TestRunner runner = TestRunners.newTestRunner(UpsertSQL.class);
+
+        AvroReader sourceReader = new AvroReader();
+        runner.addControllerService(SOURCE_READER, sourceReader);
+        runner.enableControllerService(sourceReader);
+
+        runner.addControllerService(TARGET_POOL, pool, new HashMap<>());
+        runner.enableControllerService(pool);
+
+        runner.setProperty(UpsertSQL.SOURCE_RECORD_READER, SOURCE_READER);
+        runner.setProperty(UpsertSQL.TARGET_CONNECTION_POOL_PROPERTY, TARGET_POOL);
+        runner.setProperty(UpsertSQL.TARGET_TABLE_NAME_PROPERTY, "test_table");
+        runner.setProperty(UpsertSQL.MATCH_STRATEGY_PROPERTY, strategy.name());
+
+        if (strategy == MatchStrategy.key_columns || strategy == MatchStrategy.native_key_columns) {
+            runner.setProperty(UpsertSQL.KEY_COLUMNS_PROPERTY, "id");
+        }
+
+        runner.assertValid();
+        return runner;
+    }
+
+    private static int countRows(DBCPService pool) throws SQLException {
+        try (Connection c = pool.getConnection();
+             Statement st = c.createStatement();
+             ResultSet rs = st.executeQuery("select count(*) from test_table")) {
+            rs.next();
+            return rs.getInt(1);
+        }
+    }
+
+    /**
+     * Generates source records and the matching target table state. Each record is randomly chosen to be an update,
+     * an insert or unchanged, according to the configured ratios.
+     */
+    private static class LoadData {
+
+        private final boolean withExistingRows;
+        private final List<Long> existingIds;
+        private final List<GenericRecord> records;
+        private final int expectedRows;
+
+        LoadData(boolean withExistingRows) {
+            this.withExistingRows = withExistingRows;
+            this.existingIds = new ArrayList<>();
+            this.records = new ArrayList<>(ROWS);
+
+            Random random = new Random(42);
+            for (long id = 0; id < ROWS; id++) {
+
+                double roll = random.nextDouble();
+                boolean insert = !withExistingRows || roll < INSERT_RATIO;
+                boolean update = !insert && roll < INSERT_RATIO + UPDATE_RATIO;
+
+                if (!insert) {
+                    existingIds.add(id);
+                }
+
+                GenericRecord r = new GenericData.Record(avroSchema);
+                r.put("id", id);
+                r.put("name", update ? "updated_" + id : "name_" + id);
+                records.add(r);
+            }
+
+            this.expectedRows = ROWS;
+        }
+
+        void createTable(DBCPService pool) throws SQLException {
+            try (Connection c = pool.getConnection()) {
+                try (Statement s = c.createStatement()) {
+                    s.executeUpdate("drop table if exists test_table");
+                    s.executeUpdate("create table test_table (id bigint primary key, name varchar(100))");
+                }
+
+                if (withExistingRows) {
+                    try (PreparedStatement st = c.prepareStatement("insert into test_table (id, name) values (?, ?)")) {
+                        for (long id : existingIds) {
+                            st.setLong(1, id);
+                            st.setString(2, "name_" + id);
+                            st.addBatch();
+                        }
+
+                        st.executeBatch();
+                    }
+                }
+            }
+        }
+
+        List<byte[]> encodeFlowFiles() throws IOException {
+            List<byte[]> flowFiles = new ArrayList<>();
+
+            for (int from = 0; from < records.size(); from += RECORDS_PER_FLOWFILE) {
+                int to = Math.min(records.size(), from + RECORDS_PER_FLOWFILE);
+
+                ByteArrayOutputStream out = new ByteArrayOutputStream();
+                try (DataFileWriter<GenericRecord> writer = new DataFileWriter<>(new GenericDatumWriter<>(avroSchema))) {
+                    writer.create(avroSchema, out);
+                    for (GenericRecord r : records.subList(from, to)) {
+                        writer.append(r);
+                    }
+                }
+
+                flowFiles.add(out.toByteArray());
+            }
+
+            return flowFiles;
+        }
+    }
+
+    /**
+     * Polls used heap in the background, tracking its maximum above the level at the start.
+     */
+    private static class HeapSampler extends Thread {
+
+        private final long baseline;
+        private volatile boolean stopped;
+        private volatile long max;
+
+        HeapSampler() {
+            setDaemon(true);
+            System.gc();
+            this.baseline = used();
+        }
+
+        private static long used() {
+            Runtime rt = Runtime.getRuntime();
+            return rt.totalMemory() - rt.freeMemory();
+        }
+
+        @Override
+        public void run() {
+            while (!stopped) {
+                max = Math.max(max, used() - baseline);
+                try {
+                    Thread.sleep(5);
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+        }
+
+        long stopAndGet() throws InterruptedException {
+            stopped = true;
+            join();
+            return max;
+        }
+    }
+
+    private static class H2DBCPService extends AbstractControllerService implements DBCPService {
+
+        private final String url;
+
+        H2DBCPService(String url) {
+            this.url = url;
+        }
+
+        @Override
+        public String getIdentifier() {
+            return TARGET_POOL;
+        }
+
+        @Override
+        public Connection getConnection() throws ProcessException {
+            try {
+                return DriverManager.getConnection(url);
+            } catch (Exception e) {
+                throw new ProcessException("getConnection failed: " + e);
+            }
+        }
+    }
+}
@@ -0,0 +1,55 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.LongSeries;
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class ColumnBuilderTest {
+
+    @Test
+    @DisplayName("Long column is stored as primitive series")
+    public void testLong() {
+        ColumnBuilder b = ColumnBuilder.forType(Long.class);
+        for (long i = 0; i < 100; i++) {
+            b = b.add(i);
+        }
+
+        Series<?> s = b.toSeries();
+        assertTrue(s instanceof LongSeries);
+        assertEquals(100, s.size());
+        assertEquals(0L, s.get(0));
+        assertEquals(99L, s.get(99));
+    }
+
+    @Test
+    @DisplayName("Primitive column is converted to object column on null")
+    public void testLong_Nulls() {
+        ColumnBuilder b = ColumnBuilder.forType(Long.class);
+        b = b.add(1L);
+        b = b.add(null);
+        b = b.add(3L);
+
+        Series<?> s = b.toSeries();
+        assertFalse(s instanceof LongSeries);
+        assertEquals(3, s.size());
+        assertEquals(1L, s.get(0));
+        assertNull(s.get(1));
+        assertEquals(3L, s.get(2));
+    }
+
+    @Test
+    @DisplayName("Unknown types are stored in object column")
+    public void testObject() {
+        ColumnBuilder b = ColumnBuilder.forType(String.class);
+        b = b.add("a");
+        b = b.add(null);
+
+        Series<?> s = b.toSeries();
+        assertEquals(2, s.size());
+        assertEquals("a", s.get(0));
+        assertNull(s.get(1));
+    }
+}
@@ -0,0 +1,43 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class DuplicateKeysTest {
+
+    private static final DataFrame DF = DataFrame.newFrame("id", "name").columns(
+            Series.forData(1L, 2L, 1, 3L, null, 1L, null),
+            Series.forData("a", "b", "c", "d", "e", "f", "g"));
+
+    @Test
+    @DisplayName("All but the last row with the same key are superseded")
+    public void testLastWins() {
+        assertArrayEquals(
+                new boolean[]{true, false, true, false, false, false, false},
+                DuplicateKeys.superseded(DF, new String[]{"id"}, true));
+    }
+
+    @Test
+    @DisplayName("All but the first row with the same key are superseded")
+    public void testFirstWins() {
+        assertArrayEquals(
+                new boolean[]{false, false, true, false, false, true, false},
+                DuplicateKeys.superseded(DF, new String[]{"id"}, false));
+    }
+
+    @Test
+    @DisplayName("Composite keys are compared as a whole")
+    public void testCompositeKey() {
+        DataFrame df = DataFrame.newFrame("a", "b").columns(
+                Series.forData(1L, 1L, 1L),
+                Series.forData("x", "y", "x"));
+
+        assertArrayEquals(
+                new boolean[]{true, false, false},
+                DuplicateKeys.superseded(df, new String[]{"a", "b"}, true));
+    }
+}
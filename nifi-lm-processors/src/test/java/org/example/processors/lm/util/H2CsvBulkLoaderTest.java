@@ -0,0 +1,66 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.DriverManager;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class H2CsvBulkLoaderTest {
+
+    private Connection connection;
+
+    @BeforeEach
+    public void createTable() throws SQLException {
+        connection = DriverManager.getConnection("jdbc:h2:mem:bulk");
+        try (Statement st = connection.createStatement()) {
+            st.executeUpdate("CREATE TABLE t (id BIGINT PRIMARY KEY, name VARCHAR(100), ts TIMESTAMP)");
+        }
+    }
+
+    @AfterEach
+    public void dropTable() throws SQLException {
+        try (Statement st = connection.createStatement()) {
+            st.executeUpdate("DROP TABLE t");
+        }
+
+        connection.close();
+    }
+
+    @Test
+    @DisplayName("Loads a subset of rows, preserving nulls and special chars")
+    public void testLoad() throws SQLException {
+        DataFrame df = DataFrame.newFrame("id", "name", "ts").columns(
+                Series.forData(1L, 2L, 3L),
+                Series.forData("a,\"b\"", null, ""),
+                Series.forData(LocalDateTime.of(2020, 5, 1, 10, 15), null, null));
+
+        new H2CsvBulkLoader().load(connection, "t", df, new int[]{0, 1, 2}, 2);
+
+        try (Statement st = connection.createStatement();
+             ResultSet rs = st.executeQuery("SELECT id, name, ts FROM t ORDER BY id")) {
+
+            assertTrue(rs.next());
+            assertEquals(1L, rs.getLong(1));
+            assertEquals("a,\"b\"", rs.getString(2));
+            assertEquals(LocalDateTime.of(2020, 5, 1, 10, 15), rs.getTimestamp(3).toLocalDateTime());
+
+            assertTrue(rs.next());
+            assertEquals(2L, rs.getLong(1));
+            assertNull(rs.getString(2));
+            assertNull(rs.getTimestamp(3));
+
+            assertFalse(rs.next());
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.processors.lm.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class KeyLocksTest {
+
+    @Test
+    @DisplayName("Locks are shared per table, with the stripe count of the first caller")
+    public void testForTable() {
+        KeyLocks l1 = KeyLocks.forTable("KeyLocksTest:t1", 16);
+        KeyLocks l2 = KeyLocks.forTable("KeyLocksTest:t1", 32);
+        assertSame(l1, l2);
+        assertEquals(16, l2.getStripeCount());
+        assertNotSame(l1, KeyLocks.forTable("KeyLocksTest:t2", 16));
+    }
+
+    @Test
+    @DisplayName("Overlapping keys are locked exclusively, disjoint keys are not")
+    public void testLock() throws InterruptedException {
+        KeyLocks locks = new KeyLocks(8);
+        int[] held = locks.lock(new long[]{1L, 2L});
+
+        // disjoint stripes
+        int[] other = locks.lock(new long[]{3L, 11L});
+        locks.unlock(other);
+
+        CountDownLatch started = new CountDownLatch(1);
+        AtomicBoolean acquired = new AtomicBoolean();
+        Thread t = new Thread(() -> {
+            started.countDown();
+            try {
+                int[] s = locks.lock(new long[]{10L});
+                acquired.set(true);
+                locks.unlock(s);
+            } catch (InterruptedException e) {
+                // ignore
+            }
+        });
+
+        t.start();
+        started.await();
+        t.join(100);
+        assertFalse(acquired.get(), "Stripe 2 is held and must block");
+
+        locks.unlock(held);
+        t.join(TimeUnit.SECONDS.toMillis(5));
+        assertTrue(acquired.get());
+    }
+}
@@ -0,0 +1,16 @@
+package org.example.processors.lm.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+
+public class KeyOrderTest {
+
+    @Test
+    @DisplayName("Rows are ordered by unsigned key hash")
+    public void testSortedOrder() {
+        long[] hashes = {5L, -1L, 3L, 5L, 0L};
+        assertArrayEquals(new int[]{4, 2, 0, 3, 1}, KeyOrder.sortedOrder(hashes));
+    }
+}
@@ -0,0 +1,49 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class KeyPartitionerTest {
+
+    @Test
+    @DisplayName("Rows with the same key end up in the same partition")
+    public void testPartition() {
+        DataFrame df = DataFrame.newFrame("id", "name").columns(
+                Series.forData(1L, 2L, 3L, 4L, 5L, 1L, 2L, 3L, 4L, 5L),
+                Series.forData("a", "b", "c", "d", "e", "f", "g", "h", "i", "j"));
+
+        int[][] partitions = new KeyPartitioner(new String[]{"id"}, 3).partition(df);
+
+        Map<Object, Integer> partitionOfKey = new HashMap<>();
+        int total = 0;
+        for (int p = 0; p < partitions.length; p++) {
+            for (int row : partitions[p]) {
+                Integer existing = partitionOfKey.put(df.getColumn("id").get(row), p);
+                if (existing != null) {
+                    assertEquals(existing.intValue(), p);
+                }
+                total++;
+            }
+        }
+
+        assertEquals(10, total);
+    }
+
+    @Test
+    @DisplayName("Rows without keys are distributed round-robin")
+    public void testPartition_NoKeys() {
+        DataFrame df = DataFrame.newFrame("id").columns(Series.forData(1L, 2L, 3L, 4L, 5L));
+
+        int[][] partitions = new KeyPartitioner(null, 2).partition(df);
+        assertEquals(2, partitions.length);
+        assertEquals(3, partitions[0].length);
+        assertEquals(2, partitions[1].length);
+    }
+}
@@ -0,0 +1,52 @@
+package org.example.processors.lm.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Random;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class LongHashSetTest {
+
+    @Test
+    @DisplayName("Added values are found after resizing, others are not")
+    public void testAddContains() {
+        LongHashSet set = new LongHashSet();
+
+        Random random = new Random(1);
+        long[] values = new long[10_000];
+        for (int i = 0; i < values.length; i++) {
+            values[i] = random.nextLong();
+            set.add(values[i]);
+        }
+
+        assertEquals(values.length, set.size());
+        for (long v : values) {
+            assertTrue(set.contains(v));
+        }
+
+        assertFalse(set.contains(random.nextLong()));
+    }
+
+    @Test
+    @DisplayName("Duplicates and zero are handled")
+    public void testDuplicatesAndZero() {
+        LongHashSet set = new LongHashSet();
+        assertFalse(set.contains(0L));
+
+        set.add(0L);
+        set.add(0L);
+        set.add(5L);
+        set.add(5L);
+        set.add(-1L);
+
+        assertEquals(3, set.size());
+        assertTrue(set.contains(0L));
+        assertTrue(set.contains(5L));
+        assertTrue(set.contains(-1L));
+        assertFalse(set.contains(6L));
+    }
+}
@@ -0,0 +1,104 @@
+package org.example.processors.lm.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.lang.reflect.Proxy;
+import java.sql.DatabaseMetaData;
+import java.sql.SQLException;
+import java.sql.SQLFeatureNotSupportedException;
+
+import static java.util.Arrays.asList;
+import static java.util.Collections.emptyList;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+
+public class NativeUpsertSaverTest {
+
+    private static final String[] COLUMNS = {"id", "name", "salary"};
+
+    @Test
+    @DisplayName("PostgreSQL upsert skips unchanged rows")
+    public void testPostgresql() {
+        assertEquals("INSERT INTO e AS t (id, name, salary) VALUES (?, ?, ?) ON CONFLICT (id) " +
+                        "DO UPDATE SET name = EXCLUDED.name, salary = EXCLUDED.salary " +
+                        "WHERE (t.name, t.salary) IS DISTINCT FROM (EXCLUDED.name, EXCLUDED.salary)",
+                NativeUpsertSaver.Dialect.postgresql.upsertSql("e", COLUMNS, asList("name", "salary")));
+
+        assertEquals("INSERT INTO e AS t (id) VALUES (?) ON CONFLICT (id) DO NOTHING",
+                NativeUpsertSaver.Dialect.postgresql.upsertSql("e", new String[]{"id"}, emptyList()));
+    }
+
+    @Test
+    @DisplayName("MySQL upsert")
+    public void testMysql() {
+        assertEquals("INSERT INTO e (id, name, salary) VALUES (?, ?, ?) " +
+                        "ON DUPLICATE KEY UPDATE name = VALUES(name), salary = VALUES(salary)",
+                NativeUpsertSaver.Dialect.mysql.upsertSql("e", COLUMNS, asList("name", "salary")));
+
+        // an unchanged row is counted as found
+        assertEquals(RowOutcome.upserted, NativeUpsertSaver.Dialect.mysql.outcome(1));
+        assertEquals(RowOutcome.updated, NativeUpsertSaver.Dialect.mysql.outcome(2));
+
+        assertEquals(RowOutcome.inserted, NativeUpsertSaver.Dialect.mysql_affected_rows.outcome(1));
+        assertEquals(RowOutcome.updated, NativeUpsertSaver.Dialect.mysql_affected_rows.outcome(2));
+        assertEquals(RowOutcome.skipped, NativeUpsertSaver.Dialect.mysql_affected_rows.outcome(0));
+    }
+
+    @Test
+    @DisplayName("Standard MERGE only updates changed rows")
+    public void testMerge() {
+        assertEquals("MERGE INTO e t USING (VALUES (?, ?, ?)) s (id, name, salary) ON (t.id = s.id) " +
+                        "WHEN MATCHED AND (t.name <> s.name " +
+                        "OR (t.name IS NULL AND s.name IS NOT NULL) OR (t.name IS NOT NULL AND s.name IS NULL) " +
+                        "OR t.salary <> s.salary " +
+                        "OR (t.salary IS NULL AND s.salary IS NOT NULL) OR (t.salary IS NOT NULL AND s.salary IS NULL)) " +
+                        "THEN UPDATE SET name = s.name, salary = s.salary " +
+                        "WHEN NOT MATCHED THEN INSERT (id, name, salary) VALUES (s.id, s.name, s.salary)",
+                NativeUpsertSaver.Dialect.merge.upsertSql("e", COLUMNS, asList("name", "salary")));
+    }
+
+    @Test
+    @DisplayName("SQL Server MERGE is terminated with a semicolon")
+    public void testSqlServer() {
+        assertEquals("MERGE INTO e t USING (VALUES (?, ?)) s (id, name) ON (t.id = s.id) " +
+                        "WHEN MATCHED AND (t.name <> s.name " +
+                        "OR (t.name IS NULL AND s.name IS NOT NULL) OR (t.name IS NOT NULL AND s.name IS NULL)) " +
+                        "THEN UPDATE SET name = s.name " +
+                        "WHEN NOT MATCHED THEN INSERT (id, name) VALUES (s.id, s.name);",
+                NativeUpsertSaver.Dialect.sqlserver.upsertSql("e", new String[]{"id", "name"}, asList("name")));
+    }
+
+    @Test
+    @DisplayName("Oracle MERGE selects the source row from dual")
+    public void testOracle() {
+        assertEquals("MERGE INTO e t USING (SELECT ? id, ? name FROM dual) s ON (t.id = s.id) " +
+                        "WHEN MATCHED THEN UPDATE SET t.name = s.name WHERE t.name <> s.name " +
+                        "OR (t.name IS NULL AND s.name IS NOT NULL) OR (t.name IS NOT NULL AND s.name IS NULL) " +
+                        "WHEN NOT MATCHED THEN INSERT (id, name) VALUES (s.id, s.name)",
+                NativeUpsertSaver.Dialect.oracle.upsertSql("e", new String[]{"id", "name"}, asList("name")));
+
+        assertEquals("MERGE INTO e t USING (SELECT ? id FROM dual) s ON (t.id = s.id) " +
+                        "WHEN NOT MATCHED THEN INSERT (id) VALUES (s.id)",
+                NativeUpsertSaver.Dialect.oracle.upsertSql("e", new String[]{"id"}, emptyList()));
+    }
+
+    @Test
+    @DisplayName("Databases without a known upsert syntax are rejected")
+    public void testDetect() throws SQLException {
+        assertEquals(NativeUpsertSaver.Dialect.merge, NativeUpsertSaver.Dialect.detect(metaData("H2")));
+        assertEquals(NativeUpsertSaver.Dialect.merge, NativeUpsertSaver.Dialect.detect(metaData("HSQL Database Engine")));
+        assertEquals(NativeUpsertSaver.Dialect.sqlserver, NativeUpsertSaver.Dialect.detect(metaData("Microsoft SQL Server")));
+        assertEquals(NativeUpsertSaver.Dialect.oracle, NativeUpsertSaver.Dialect.detect(metaData("Oracle")));
+
+        assertThrows(SQLFeatureNotSupportedException.class,
+                () -> NativeUpsertSaver.Dialect.detect(metaData("Apache Derby")));
+    }
+
+    private static DatabaseMetaData metaData(String productName) {
+        return (DatabaseMetaData) Proxy.newProxyInstance(
+                DatabaseMetaData.class.getClassLoader(),
+                new Class[]{DatabaseMetaData.class},
+                (proxy, method, args) -> method.getName().equals("getDatabaseProductName") ? productName : null);
+    }
+}
@@ -0,0 +1,41 @@
+package org.example.processors.lm.util;
+
+import org.apache.nifi.serialization.SimpleRecordSchema;
+import org.apache.nifi.serialization.record.RecordField;
+import org.apache.nifi.serialization.record.RecordFieldType;
+import org.apache.nifi.serialization.record.RecordSchema;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.util.Arrays;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class OutcomeRecordWriterTest {
+
+    @Test
+    @DisplayName("Outcome field is appended to the source fields")
+    public void testOutcomeSchema() {
+        RecordSchema source = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("id", RecordFieldType.INT.getDataType()),
+                new RecordField("name", RecordFieldType.STRING.getDataType())));
+
+        RecordSchema schema = new OutcomeRecordWriter("upsert_outcome").outcomeSchema(source);
+
+        assertEquals(Arrays.asList("id", "name", "upsert_outcome"), schema.getFieldNames());
+    }
+
+    @Test
+    @DisplayName("Source field with the outcome field name is replaced in place")
+    public void testOutcomeSchema_ExistingField() {
+        RecordSchema source = new SimpleRecordSchema(Arrays.asList(
+                new RecordField("id", RecordFieldType.INT.getDataType()),
+                new RecordField("upsert_outcome", RecordFieldType.INT.getDataType()),
+                new RecordField("name", RecordFieldType.STRING.getDataType())));
+
+        RecordSchema schema = new OutcomeRecordWriter("upsert_outcome").outcomeSchema(source);
+
+        assertEquals(Arrays.asList("id", "upsert_outcome", "name"), schema.getFieldNames());
+        assertEquals(RecordFieldType.STRING.getDataType(), schema.getDataType("upsert_outcome").get());
+    }
+}
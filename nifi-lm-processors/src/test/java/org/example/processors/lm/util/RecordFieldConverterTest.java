@@ -4,11 +4,21 @@ import org.apache.nifi.serialization.record.DataType;
 import org.junit.jupiter.api.DisplayName;
 import org.junit.jupiter.api.Test;
 
+import java.math.BigDecimal;
+import java.sql.Time;
+import java.sql.Timestamp;
 import java.time.LocalDate;
 import java.time.LocalDateTime;
+import java.time.LocalTime;
+import java.time.OffsetDateTime;
+import java.time.ZoneOffset;
 
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
 import static org.junit.jupiter.api.Assertions.assertEquals;
 import static org.junit.jupiter.api.Assertions.assertNotNull;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertThrows;
+import static org.junit.jupiter.api.Assertions.assertTrue;
 import static org.mockito.Mockito.mock;
 
 public class RecordFieldConverterTest {
@@ -47,6 +57,163 @@ public class RecordFieldConverterTest {
                 c.convert(mock(DataType.class), "2020-09-01T11:05:06"));
     }
 
+    @Test
+    @DisplayName("Integer converter can convert typed values")
+    public void testConvertValue_Integer() {
+        RecordFieldConverter c = RecordFieldConverter.converter(Integer.class);
+        assertEquals(15, c.convertValue(mock(DataType.class), 15));
+        assertEquals(15, c.convertValue(mock(DataType.class), (short) 15));
+        assertEquals(15, c.convertValue(mock(DataType.class), 15L));
+        assertEquals(15, c.convertValue(mock(DataType.class), "15"));
+        assertNull(c.convertValue(mock(DataType.class), null));
+        assertThrows(ArithmeticException.class, () -> c.convertValue(mock(DataType.class), Long.MAX_VALUE));
+    }
+
+    @Test
+    @DisplayName("Long converter can convert typed values")
+    public void testConvertValue_Long() {
+        RecordFieldConverter c = RecordFieldConverter.converter(Long.class);
+        assertEquals(15L, c.convertValue(mock(DataType.class), 15L));
+        assertEquals(15L, c.convertValue(mock(DataType.class), 15));
+        assertEquals(15L, c.convertValue(mock(DataType.class), "15"));
+    }
+
+    @Test
+    @DisplayName("LocalDate converter can convert typed values")
+    public void testConvertValue_LocalDate() {
+        RecordFieldConverter c = RecordFieldConverter.converter(LocalDate.class);
+        LocalDate expected = LocalDate.of(2020, 9, 1);
+        assertEquals(expected, c.convertValue(mock(DataType.class), expected));
+        assertEquals(expected, c.convertValue(mock(DataType.class), java.sql.Date.valueOf(expected)));
+        assertEquals(expected, c.convertValue(mock(DataType.class), "2020-09-01"));
+    }
+
+    @Test
+    @DisplayName("LocalDateTime converter can convert typed values")
+    public void testConvertValue_LocalDateTime() {
+        RecordFieldConverter c = RecordFieldConverter.converter(LocalDateTime.class);
+        LocalDateTime expected = LocalDateTime.of(2020, 9, 1, 11, 5, 6);
+        assertEquals(expected, c.convertValue(mock(DataType.class), expected));
+        assertEquals(expected, c.convertValue(mock(DataType.class), Timestamp.valueOf(expected)));
+        assertEquals(expected, c.convertValue(mock(DataType.class), "2020-09-01T11:05:06"));
+    }
+
+    @Test
+    @DisplayName("BigDecimal converter can convert typed values")
+    public void testConvertValue_BigDecimal() {
+        RecordFieldConverter c = RecordFieldConverter.converter(BigDecimal.class);
+        assertEquals(new BigDecimal("10.50"), c.convertValue(mock(DataType.class), new BigDecimal("10.50")));
+        assertEquals(new BigDecimal("10.5"), c.convertValue(mock(DataType.class), 10.5));
+        assertEquals(new BigDecimal("0.1"), c.convertValue(mock(DataType.class), 0.1f));
+        assertEquals(new BigDecimal("15"), c.convertValue(mock(DataType.class), 15));
+        assertEquals(new BigDecimal("10.50"), c.convertValue(mock(DataType.class), " 10.50"));
+    }
+
+    @Test
+    @DisplayName("Double and Float converters can convert typed values")
+    public void testConvertValue_Floating() {
+        RecordFieldConverter d = RecordFieldConverter.converter(Double.class);
+        assertEquals(0.1, d.convertValue(mock(DataType.class), 0.1));
+        assertEquals(0.1, d.convertValue(mock(DataType.class), 0.1f));
+        assertEquals(15.0, d.convertValue(mock(DataType.class), 15L));
+        assertEquals(1.5, d.convertValue(mock(DataType.class), "1.5"));
+
+        RecordFieldConverter f = RecordFieldConverter.converter(Float.class);
+        assertEquals(0.1f, f.convertValue(mock(DataType.class), 0.1f));
+        assertEquals(0.1f, f.convertValue(mock(DataType.class), 0.1));
+        assertEquals(1.5f, f.convertValue(mock(DataType.class), "1.5"));
+    }
+
+    @Test
+    @DisplayName("Boolean converter can convert typed values")
+    public void testConvertValue_Boolean() {
+        RecordFieldConverter c = RecordFieldConverter.converter(Boolean.class);
+        assertEquals(true, c.convertValue(mock(DataType.class), true));
+        assertEquals(true, c.convertValue(mock(DataType.class), 1));
+        assertEquals(false, c.convertValue(mock(DataType.class), 0L));
+        assertEquals(true, c.convertValue(mock(DataType.class), "TRUE"));
+        assertEquals(false, c.convertValue(mock(DataType.class), "0"));
+        assertThrows(IllegalArgumentException.class, () -> c.convertValue(mock(DataType.class), "yes"));
+    }
+
+    @Test
+    @DisplayName("LocalTime converter can convert typed values")
+    public void testConvertValue_LocalTime() {
+        RecordFieldConverter c = RecordFieldConverter.converter(LocalTime.class);
+        LocalTime expected = LocalTime.of(11, 5, 6);
+        assertEquals(expected, c.convertValue(mock(DataType.class), expected));
+        assertEquals(expected, c.convertValue(mock(DataType.class), Time.valueOf(expected)));
+        assertEquals(expected, c.convertValue(mock(DataType.class), "11:05:06"));
+    }
+
+    @Test
+    @DisplayName("OffsetDateTime converter can convert typed values")
+    public void testConvertValue_OffsetDateTime() {
+        RecordFieldConverter c = RecordFieldConverter.converter(OffsetDateTime.class);
+        OffsetDateTime expected = OffsetDateTime.of(2020, 9, 1, 11, 5, 6, 0, ZoneOffset.ofHours(2));
+        assertEquals(expected, c.convertValue(mock(DataType.class), expected));
+        assertEquals(expected, c.convertValue(mock(DataType.class), "2020-09-01T11:05:06+02:00"));
+
+        // Timestamps are instants, so only the offset may differ
+        OffsetDateTime fromTimestamp = (OffsetDateTime) c.convertValue(
+                mock(DataType.class),
+                Timestamp.from(expected.toInstant()));
+        assertEquals(expected.toInstant(), fromTimestamp.toInstant());
+    }
+
+    @Test
+    @DisplayName("Binary converter can convert typed values")
+    public void testConvertValue_Bytes() {
+        RecordFieldConverter c = RecordFieldConverter.converter(byte[].class);
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) c.convertValue(mock(DataType.class), new byte[]{1, 2}));
+        assertArrayEquals(new byte[]{1, 2}, (byte[]) c.convertValue(mock(DataType.class), new Object[]{(byte) 1, (byte) 2}));
+    }
+
+    @Test
+    @DisplayName("Converted values compare equal to the values read from the DB")
+    public void testSameAsDbValues() {
+        assertTrue(JdbcValues.same(new BigDecimal("10.5"), new BigDecimal("10.500")));
+        assertTrue(JdbcValues.same(new byte[]{1, 2}, new byte[]{1, 2}));
+
+        OffsetDateTime odt = OffsetDateTime.of(2020, 9, 1, 11, 5, 6, 0, ZoneOffset.ofHours(2));
+        assertTrue(JdbcValues.same(odt, Timestamp.from(odt.toInstant())));
+    }
+
+    @Test
+    @DisplayName("Date/time converters parse Strings with the field format")
+    public void testConvertValue_Format() {
+        assertEquals(
+                LocalDate.of(2020, 9, 1),
+                RecordFieldConverter.converter(LocalDate.class, "dd.MM.yyyy").convertValue(mock(DataType.class), "01.09.2020"));
+
+        RecordFieldConverter c = RecordFieldConverter.converter(LocalDateTime.class, "yyyy-MM-dd HH:mm:ss");
+        assertEquals(LocalDateTime.of(2020, 9, 1, 11, 5, 6), c.convertValue(mock(DataType.class), "2020-09-01 11:05:06"));
+
+        RecordFieldConverter dateOnly = RecordFieldConverter.converter(LocalDateTime.class, "yyyy-MM-dd");
+        assertEquals(LocalDateTime.of(2020, 9, 1, 0, 0), dateOnly.convertValue(mock(DataType.class), "2020-09-01"));
+
+        assertEquals(
+                LocalTime.of(11, 5),
+                RecordFieldConverter.converter(LocalTime.class, "HH:mm").convertValue(mock(DataType.class), "11:05"));
+
+        // the format doesn't affect other types
+        assertEquals(15L, RecordFieldConverter.converter(Long.class, "yyyy").convertValue(mock(DataType.class), "15"));
+    }
+
+    @Test
+    @DisplayName("Date/time converters treat numbers as epoch millis")
+    public void testConvertValue_EpochMillis() {
+        LocalDateTime expected = LocalDateTime.of(2020, 9, 1, 11, 5, 6);
+        long millis = Timestamp.valueOf(expected).getTime();
+
+        RecordFieldConverter c = RecordFieldConverter.converter(LocalDateTime.class);
+        assertEquals(expected, c.convertValue(mock(DataType.class), millis));
+        assertEquals(expected, c.convertValue(mock(DataType.class), String.valueOf(millis)));
+
+        RecordFieldConverter d = RecordFieldConverter.converter(LocalDate.class);
+        assertEquals(expected.toLocalDate(), d.convertValue(mock(DataType.class), millis));
+    }
+
     @Test
     @DisplayName("For unknown type converter should return original String")
     public void testConverter_CustomType() {
@@ -0,0 +1,116 @@
+package org.example.processors.lm.util;
+
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.time.LocalDate;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+public class RowDigestIndexTest {
+
+    @TempDir
+    Path tempDir;
+
+    @Test
+    @DisplayName("XXH64 produces reference hashes")
+    public void testXxHash64() {
+        assertEquals(0xEF46DB3751D8E999L, hash(""));
+        assertEquals(0x44BC2CF5AD770999L, hash("abc"));
+        assertEquals(0xFBCEA83C8A378BF1L, hash("Nobody inspects the spammish repetition"));
+    }
+
+    @Test
+    @DisplayName("Digests ignore column order and integral number types")
+    public void testDigester() {
+        RowDigester d1 = new RowDigester(new String[]{"id", "name", "date"}, new String[]{"id"});
+        RowDigester d2 = new RowDigester(new String[]{"NAME", "date", "ID"}, new String[]{"id"});
+
+        Object[] r1 = {1L, "a", LocalDate.of(2020, 1, 1)};
+        Object[] r2 = {"a", java.sql.Date.valueOf("2020-01-01"), 1};
+
+        assertEquals(d1.keyHash(r1), d2.keyHash(r2));
+        assertEquals(d1.digest(r1), d2.digest(r2));
+        assertNotEquals(d1.digest(r1), d1.digest(new Object[]{1L, "b", LocalDate.of(2020, 1, 1)}));
+        assertNotEquals(d1.digest(r1), d1.digest(new Object[]{1L, null, LocalDate.of(2020, 1, 1)}));
+    }
+
+    @Test
+    @DisplayName("Index survives reopening and grows as needed")
+    public void testPersistence() throws IOException {
+        Path file = tempDir.resolve("t.digest");
+
+        try (RowDigestIndex index = RowDigestIndex.open(file)) {
+            assertTrue(index.needsRebuild());
+
+            for (long i = 0; i < 10_000; i++) {
+                index.put(i, i * 31);
+            }
+
+            index.put(5, 6);
+        }
+
+        try (RowDigestIndex index = RowDigestIndex.open(file)) {
+            assertFalse(index.needsRebuild());
+            assertEquals(10_000, index.size());
+            assertTrue(index.matches(5, 6));
+            assertTrue(index.matches(9_999, 9_999 * 31));
+            assertFalse(index.matches(9_999, 1));
+            assertFalse(index.matches(10_000, 10_000 * 31));
+        }
+    }
+
+    @Test
+    @DisplayName("Index with unflushed changes is reset on open")
+    public void testDirty() throws IOException {
+        Path file = tempDir.resolve("t.digest");
+
+        RowDigestIndex index = RowDigestIndex.open(file);
+        index.put(1, 2);
+        index.flush();
+        index.put(3, 4);
+
+        // simulate a crash by opening the file without closing the index
+        try (RowDigestIndex reopened = RowDigestIndex.open(file)) {
+            assertTrue(reopened.needsRebuild());
+            assertEquals(0, reopened.size());
+        }
+    }
+
+    @Test
+    @DisplayName("Keys saved concurrently or by a failed save lose their digests")
+    public void testSave() throws IOException {
+        try (RowDigestIndex index = RowDigestIndex.open(tempDir.resolve("t.digest"))) {
+            index.put(1, 10);
+            index.put(2, 20);
+
+            index.beginSave(new long[]{1, 3});
+            index.beginSave(new long[]{3, 4});
+            index.endSave(new long[]{1, 3}, new long[]{11, 31}, true);
+            index.endSave(new long[]{3, 4}, new long[]{32, 41}, true);
+
+            assertTrue(index.matches(1, 11));
+            assertEquals(0, index.get(3));
+            assertTrue(index.matches(4, 41));
+
+            index.beginSave(new long[]{2});
+            index.endSave(new long[]{2}, new long[]{21}, false);
+            assertFalse(index.matches(2, 20));
+            assertFalse(index.matches(2, 21));
+
+            // no longer contended
+            index.beginSave(new long[]{3});
+            index.endSave(new long[]{3}, new long[]{33}, true);
+            assertTrue(index.matches(3, 33));
+        }
+    }
+
+    private static long hash(String s) {
+        byte[] bytes = s.getBytes(StandardCharsets.UTF_8);
+        return XxHash64.hash(bytes, 0, bytes.length, 0);
+    }
+}
@@ -0,0 +1,95 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import com.nhl.dflib.jdbc.Jdbc;
+import com.nhl.dflib.jdbc.connector.metadata.DbTableMetadata;
+import org.h2.jdbcx.JdbcDataSource;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Connection;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.sql.Statement;
+import java.util.BitSet;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class RowWriterTest {
+
+    private static final String[] COLUMNS = {"id", "name", "salary"};
+
+    @Test
+    @DisplayName("Multi-row INSERT")
+    public void testInsertSql() {
+        RowWriter writer = new RowWriter(null, "e", new String[]{"id"}, 100, true, 1000);
+
+        assertEquals("INSERT INTO e (id, name, salary) VALUES (?, ?, ?)", writer.insertSql(COLUMNS, 1));
+        assertEquals("INSERT INTO e (id, name, salary) VALUES (?, ?, ?), (?, ?, ?)", writer.insertSql(COLUMNS, 2));
+    }
+
+    @Test
+    @DisplayName("UPDATE by composite key")
+    public void testUpdateSql() {
+        RowWriter writer = new RowWriter(null, "e", new String[]{"id", "name"}, 100, false, 1000);
+
+        assertEquals("UPDATE e SET salary = ? WHERE id = ? AND name = ?",
+                writer.updateSql(COLUMNS, new int[]{2}, new int[]{0, 1}));
+    }
+
+    @Test
+    @DisplayName("Narrow UPDATE only sets the changed columns")
+    public void testUpdate_ChangedColumns() throws SQLException {
+        JdbcDataSource dataSource = new JdbcDataSource();
+        dataSource.setURL("jdbc:h2:mem:rowwriter");
+
+        // keeps the in-memory DB open
+        try (Connection connection = dataSource.getConnection()) {
+            try (Statement st = connection.createStatement()) {
+                st.executeUpdate("CREATE TABLE E (ID BIGINT PRIMARY KEY, NAME VARCHAR(100), SALARY INT)");
+                st.executeUpdate("INSERT INTO E VALUES (1, 'a', 10), (2, 'b', 20), (3, 'c', 30)");
+            }
+
+            DbTableMetadata tableMetadata = Jdbc.connector(dataSource).getMetadata().getTable("E");
+            RowWriter writer = new RowWriter(tableMetadata, "E", new String[]{"ID"}, 100, false, 1000);
+
+            // the unchanged values are stale, and must not overwrite the table
+            DataFrame df = DataFrame.newFrame("ID", "NAME", "SALARY").columns(
+                    Series.forData(1L, 2L, 3L),
+                    Series.forData("x", "stale", "z"),
+                    Series.forData(0, 21, 0));
+
+            BitSet name = new BitSet();
+            name.set(1);
+            BitSet salary = new BitSet();
+            salary.set(2);
+
+            writer.write(
+                    connection,
+                    df,
+                    new RowOutcome[]{RowOutcome.updated, RowOutcome.updated, RowOutcome.updated},
+                    new BitSet[]{name, salary, name});
+
+            try (Statement st = connection.createStatement();
+                 ResultSet rs = st.executeQuery("SELECT ID, NAME, SALARY FROM E ORDER BY ID")) {
+
+                assertTrue(rs.next());
+                assertEquals("x", rs.getString(2));
+                assertEquals(10, rs.getInt(3));
+
+                assertTrue(rs.next());
+                assertEquals("b", rs.getString(2));
+                assertEquals(21, rs.getInt(3));
+
+                assertTrue(rs.next());
+                assertEquals("z", rs.getString(2));
+                assertEquals(30, rs.getInt(3));
+
+                assertFalse(rs.next());
+            }
+        }
+    }
+}
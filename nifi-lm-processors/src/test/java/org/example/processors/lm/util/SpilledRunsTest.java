@@ -0,0 +1,87 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.DataFrame;
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.time.LocalDate;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.stream.Stream;
+
+import static java.util.Arrays.asList;
+import static org.junit.jupiter.api.Assertions.assertArrayEquals;
+import static org.junit.jupiter.api.Assertions.assertEquals;
+
+public class SpilledRunsTest {
+
+    @Test
+    @DisplayName("Runs are merged in key order, with nulls first and ties in sequence order")
+    public void testMerge(@TempDir Path dir) throws IOException {
+
+        try (SpilledRuns runs = new SpilledRuns(dir, new String[]{"id"})) {
+            runs.add(DataFrame.newFrame("id", "name").columns(
+                    Series.forData(5, 1, null, 3),
+                    Series.forData("e", "a", "n", "c")), new int[]{0, 0, 0, 1}, 0);
+
+            runs.add(DataFrame.newFrame("id", "name").columns(
+                    Series.forData(4, 1, 2),
+                    Series.forData("d", "a2", "b")), new int[]{1, 2, 2}, 4);
+
+            assertEquals(2, runs.getRunCount());
+            assertEquals(7, runs.size());
+
+            List<Object> ids = new ArrayList<>();
+            List<Integer> seqs = new ArrayList<>();
+            List<Integer> segments = new ArrayList<>();
+            try (SpilledRuns.Merge merge = runs.merge()) {
+                while (merge.next()) {
+                    ids.add(merge.getValues()[0]);
+                    seqs.add(merge.getSeq());
+                    segments.add(merge.getSegment());
+                }
+            }
+
+            assertEquals(asList(null, 1L, 1L, 2L, 3L, 4L, 5L), ids);
+            assertEquals(asList(2, 1, 5, 6, 3, 4, 0), seqs);
+            assertEquals(asList(0, 0, 2, 2, 1, 1, 0), segments);
+        }
+
+        try (Stream<Path> files = Files.list(dir)) {
+            assertEquals(0, files.count());
+        }
+    }
+
+    @Test
+    @DisplayName("Values of supported types survive spilling")
+    public void testValues(@TempDir Path dir) throws IOException {
+
+        Object[] row = {1L, "x", LocalDate.of(2020, 1, 2), new byte[]{1, 2}, true, 1.5, new BigDecimal("1.10")};
+
+        try (SpilledRuns runs = new SpilledRuns(dir, new String[]{"a"})) {
+            Series<?>[] columns = new Series[row.length];
+            for (int j = 0; j < row.length; j++) {
+                columns[j] = Series.forData(row[j]);
+            }
+
+            runs.add(DataFrame.newFrame("a", "b", "c", "d", "e", "f", "g").columns(columns), new int[]{0}, 0);
+
+            try (SpilledRuns.Merge merge = runs.merge()) {
+                merge.next();
+                Object[] values = merge.getValues();
+                assertEquals(asList(row[0], row[1], row[2]), asList(values[0], values[1], values[2]));
+                assertArrayEquals((byte[]) row[3], (byte[]) values[3]);
+                assertEquals(asList(row[4], row[5]), asList(values[4], values[5]));
+
+                // decimals are normalized, so only the value is preserved, not the scale
+                assertEquals(0, ((BigDecimal) row[6]).compareTo((BigDecimal) values[6]));
+            }
+        }
+    }
+}
@@ -0,0 +1,56 @@
+package org.example.processors.lm.util;
+
+import com.nhl.dflib.Series;
+import org.junit.jupiter.api.DisplayName;
+import org.junit.jupiter.api.Test;
+
+import java.sql.Timestamp;
+import java.time.LocalDateTime;
+
+import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertNull;
+import static org.junit.jupiter.api.Assertions.assertTrue;
+
+public class WatermarkTest {
+
+    @Test
+    @DisplayName("Only values strictly below the watermark are covered")
+    public void testCovers() {
+        Watermark w = new Watermark("updated", "2020-05-01T10:00");
+
+        assertTrue(w.covers(LocalDateTime.of(2020, 5, 1, 9, 59)));
+        assertTrue(w.covers(Timestamp.valueOf("2020-04-30 00:00:00")));
+        assertFalse(w.covers(LocalDateTime.of(2020, 5, 1, 10, 0)));
+        assertFalse(w.covers(LocalDateTime.of(2020, 5, 2, 0, 0)));
+        assertFalse(w.covers(null));
+    }
+
+    @Test
+    @DisplayName("Nothing is covered without a stored value")
+    public void testCovers_NoValue() {
+        Watermark w = new Watermark("id", null);
+        assertFalse(w.covers(1L));
+        assertTrue(w.isBelow(1L));
+    }
+
+    @Test
+    @DisplayName("Max is calculated over normalized non-null values and can be parsed back")
+    public void testMax() {
+        Object max = Watermark.max(null, Series.forData(3, null, 7, 5));
+        assertEquals(7L, max);
+        assertEquals(7L, Watermark.max(max, Series.forData(1L, 2L)));
+        assertNull(Watermark.max(null, Series.forData(null, null)));
+
+        Watermark w = new Watermark("id", Watermark.format(max));
+        assertTrue(w.covers(6));
+        assertFalse(w.covers(7L));
+        assertTrue(w.isBelow(8L));
+    }
+
+    @Test
+    @DisplayName("Watermark column is found ignoring case")
+    public void testPosition() {
+        assertEquals(1, new Watermark("UPDATED", null).position(new String[]{"id", "updated"}));
+    }
+}